@@ -0,0 +1,42 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks (the main class of target/benchmarks.jar). It takes the
+ * usual JMH command line, e.g. a regular expression of the benchmarks to run
+ * and -p length=128,512 to override parameters, but writes the results as
+ * JSON to jmh-result.json unless -rf or -rff say otherwise, so runs can be
+ * compared by tools.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The file the results are written to by default.
+     */
+    public static final String RESULT_FILE = "jmh-result.json";
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the JMH command line
+     * @throws Exception if the command line is invalid or a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue()) {
+            builder.result(RESULT_FILE);
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,124 @@
+package weka.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.DTWDistance;
+import weka.core.Instances;
+import weka.core.PreparedSeries;
+import weka.core.SelectedTag;
+
+/**
+ * Benchmark of DTWDistance: one distance between two series of a dataset,
+ * without cut off so the whole band is calculated, across lengths, window
+ * sizes, kernels and precisions. The lockstep benchmark calculates a block of
+ * candidates at once and is reported per distance.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DTWDistanceBenchmark {
+
+    /**
+     * The number of series the pairs are taken from.
+     */
+    private static final int SERIES = 64;
+    /**
+     * The number of candidates calculated in lockstep.
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * The length of the series.
+     */
+    @Param({"128", "256", "512", "1024"})
+    public int length;
+    /**
+     * The warping window, in percent of the length.
+     */
+    @Param({"5", "10", "20", "100"})
+    public int window;
+    /**
+     * The kernel, one of DTWDistance.TAGS_KERNEL.
+     */
+    @Param({"0", "1"})
+    public int kernel;
+    /**
+     * Whether the series are compared in single precision.
+     */
+    @Param({"false", "true"})
+    public boolean singlePrecision;
+
+    private Instances m_Data;
+    private DTWDistance m_DTW;
+    private PreparedSeries m_Series;
+    private int[] m_Offsets;
+    private double[] m_Distances;
+    private int m_Next;
+
+    /**
+     * Generates the series and sets up the distance function.
+     */
+    @Setup
+    public void setup() {
+        m_Data = SyntheticData.cylinderBellFunnel(SERIES, length, 1);
+        m_DTW = new DTWDistance();
+        m_DTW.setWarpingWindowSize(window);
+        m_DTW.setKernel(new SelectedTag(kernel, DTWDistance.TAGS_KERNEL));
+        m_DTW.setSinglePrecision(singlePrecision);
+        m_DTW.setInstances(m_Data);
+        m_Series = m_DTW.getPreparedSeries();
+        m_Offsets = new int[BLOCK];
+        m_Distances = new double[BLOCK];
+    }
+
+    /**
+     * Calculates the distance between the next pair of series.
+     *
+     * @return the distance
+     */
+    @Benchmark
+    public double distance() {
+        int first = m_Next;
+        m_Next = (m_Next + 1) % (SERIES - 1);
+        return m_DTW.distance(m_Data.instance(first), m_Data.instance(first + 1));
+    }
+
+    /**
+     * Calculates the distances between the first series and the next block of
+     * series in lockstep.
+     *
+     * @return the distances
+     */
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] lockstep() {
+        for (int c = 0; c < BLOCK; c++) {
+            m_Offsets[c] = m_Series.offset(1 + m_Next + c);
+        }
+        m_Next = (m_Next + BLOCK) % (SERIES - BLOCK - 1);
+        if (singlePrecision) {
+            m_DTW.distances(m_Series.getFloatValues(), m_Offsets, BLOCK, m_Series.getFloatValues(), 0, length,
+                    Double.POSITIVE_INFINITY, m_Distances);
+        } else {
+            m_DTW.distances(m_Series.getValues(), m_Offsets, BLOCK, m_Series.getValues(), 0, length,
+                    Double.POSITIVE_INFINITY, m_Distances);
+        }
+        return m_Distances;
+    }
+}
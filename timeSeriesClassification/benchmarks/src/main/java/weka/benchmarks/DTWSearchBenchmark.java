@@ -0,0 +1,115 @@
+package weka.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.DTWDistance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.neighboursearch.DTWSearch;
+import weka.core.neighboursearch.IndexedDTWSearch;
+
+/**
+ * Benchmark of DTWSearch and IndexedDTWSearch: the k nearest neighbours of one
+ * query, across training set sizes, k, lower bounds and the order the
+ * candidates are visited in (which IndexedDTWSearch ignores). The queries are drawn from the same distribution as the
+ * training set and taken in turn.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DTWSearchBenchmark {
+
+    /**
+     * The number of queries taken in turn.
+     */
+    private static final int QUERIES = 100;
+
+    /**
+     * The number of training series.
+     */
+    @Param({"1000", "10000"})
+    public int trainingSize;
+    /**
+     * The number of neighbours.
+     */
+    @Param({"1", "10"})
+    public int k;
+    /**
+     * The length of the series.
+     */
+    @Param({"128"})
+    public int length;
+    /**
+     * The warping window, in percent of the length.
+     */
+    @Param({"10"})
+    public int window;
+    /**
+     * The lower bounds, one of DTWSearch.TAGS_LOWER_BOUND.
+     */
+    @Param({"0", "3"})
+    public int lowerBound;
+    /**
+     * Whether the candidates are visited in ascending order of their lower
+     * bounds.
+     */
+    @Param({"false", "true"})
+    public boolean orderCandidates;
+    /**
+     * Whether the candidates are searched through the index of
+     * IndexedDTWSearch instead of scanned.
+     */
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private Instances m_Queries;
+    private DTWSearch m_Search;
+    private int m_Next;
+
+    /**
+     * Generates the series and sets up the search.
+     *
+     * @throws Exception if the search cannot be set up
+     */
+    @Setup
+    public void setup() throws Exception {
+        Instances training = SyntheticData.cylinderBellFunnel(trainingSize, length, 1);
+        m_Queries = SyntheticData.cylinderBellFunnel(QUERIES, length, 2);
+
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(window);
+        m_Search = indexed ? new IndexedDTWSearch() : new DTWSearch();
+        m_Search.setDistanceFunction(dtw);
+        m_Search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+        m_Search.setOrderCandidates(orderCandidates);
+        m_Search.setInstances(training);
+    }
+
+    /**
+     * Finds the k nearest neighbours of the next query.
+     *
+     * @return the neighbours
+     * @throws Exception if the search fails
+     */
+    @Benchmark
+    public Instances kNearestNeighbours() throws Exception {
+        int query = m_Next;
+        m_Next = (m_Next + 1) % QUERIES;
+        return m_Search.kNearestNeighbours(m_Queries.instance(query), k);
+    }
+}
@@ -0,0 +1,90 @@
+package weka.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.DTWDistance;
+import weka.core.Instances;
+import weka.filters.supervised.instance.NumerosityReduction;
+
+/**
+ * Benchmark of NumerosityReduction: filtering a whole dataset, i.e.
+ * setInputFormat(), input() of every instance and batchFinished(), across
+ * dataset sizes.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NumerosityReductionBenchmark {
+
+    /**
+     * The number of series of the dataset.
+     */
+    @Param({"100", "500", "1000"})
+    public int size;
+    /**
+     * The length of the series.
+     */
+    @Param({"128"})
+    public int length;
+    /**
+     * The warping window, in percent of the length.
+     */
+    @Param({"10"})
+    public int window;
+    /**
+     * The percentage of instances removed.
+     */
+    @Param({"50"})
+    public int percentage;
+
+    private Instances m_Data;
+
+    /**
+     * Generates the dataset.
+     */
+    @Setup
+    public void setup() {
+        m_Data = SyntheticData.cylinderBellFunnel(size, length, 1);
+    }
+
+    /**
+     * Filters the dataset.
+     *
+     * @return the reduced dataset
+     * @throws Exception if the filter fails
+     */
+    @Benchmark
+    public Instances batchFinished() throws Exception {
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(window);
+        NumerosityReduction filter = new NumerosityReduction();
+        filter.setDistanceFunction(dtw);
+        filter.setPercentageToRemove(percentage);
+        filter.setInputFormat(m_Data);
+        for (int i = 0; i < m_Data.numInstances(); i++) {
+            filter.input(m_Data.instance(i));
+        }
+        filter.batchFinished();
+
+        Instances reduced = filter.getOutputFormat();
+        while (filter.numPendingOutput() > 0) {
+            reduced.add(filter.output());
+        }
+        return reduced;
+    }
+}
@@ -0,0 +1,123 @@
+package weka.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Class generating synthetic datasets shaped like the ones of the UCR Time
+ * Series Classification Archive: the Cylinder-Bell-Funnel problem (Saito,
+ * 1994), stretched to any length. Each series is a plateau (cylinder), a rising
+ * ramp (bell) or a falling ramp (funnel) of random position, width and
+ * height over Gaussian noise, z-normalized like the series of the archive.
+ * The classes take turns, so every dataset is balanced.
+ *
+ * <p/>
+ * Usage: java weka.benchmarks.SyntheticData [-n instances] [-l length] [-s
+ * seed]<br/>
+ * prints the dataset in ARFF format.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SyntheticData {
+
+    /**
+     * The names of the classes.
+     */
+    private static final String[] CLASSES = {"cylinder", "bell", "funnel"};
+
+    /**
+     * Generates a Cylinder-Bell-Funnel dataset, with the class as the last
+     * attribute.
+     *
+     * @param numInstances the number of series
+     * @param length the length of the series
+     * @param seed the seed of the random numbers
+     * @return the dataset
+     */
+    public static Instances cylinderBellFunnel(int numInstances, int length, long seed) {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(length + 1);
+        for (int i = 0; i < length; i++) {
+            attributes.add(new Attribute("t" + (i + 1)));
+        }
+        ArrayList<String> classes = new ArrayList<String>();
+        for (String name : CLASSES) {
+            classes.add(name);
+        }
+        attributes.add(new Attribute("class", classes));
+
+        Instances data = new Instances("CBF-" + length, attributes, numInstances);
+        data.setClassIndex(length);
+
+        Random random = new Random(seed);
+        for (int n = 0; n < numInstances; n++) {
+            int label = n % CLASSES.length;
+            double[] values = new double[length + 1];
+            series(label, random, values, length);
+            values[length] = label;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /**
+     * Generates one series of a class and z-normalizes it.
+     *
+     * @param label the class of the series
+     * @param random the random numbers to use
+     * @param values the array receiving the series
+     * @param length the length of the series
+     */
+    private static void series(int label, Random random, double[] values, int length) {
+        // the original problem has a length of 128, a in [16, 32] and b - a in [32, 96]
+        int a = length / 8 + random.nextInt(length / 8 + 1);
+        int b = Math.min(length - 1, a + length / 4 + random.nextInt(length / 2 + 1));
+        double height = 6 + random.nextGaussian();
+
+        double sum = 0;
+        for (int t = 0; t < length; t++) {
+            double shape = 0;
+            if (t >= a && t <= b) {
+                if (label == 0) {
+                    shape = 1;
+                } else if (label == 1) {
+                    shape = (double) (t - a) / Math.max(1, b - a);
+                } else {
+                    shape = (double) (b - t) / Math.max(1, b - a);
+                }
+            }
+            values[t] = height * shape + random.nextGaussian();
+            sum += values[t];
+        }
+
+        double mean = sum / length;
+        double squares = 0;
+        for (int t = 0; t < length; t++) {
+            squares += (values[t] - mean) * (values[t] - mean);
+        }
+        double std = Math.sqrt(squares / length);
+        for (int t = 0; t < length; t++) {
+            values[t] = std > 0 ? (values[t] - mean) / std : 0;
+        }
+    }
+
+    /**
+     * Prints a generated dataset in ARFF format.
+     *
+     * @param args the options, see the description of the class
+     * @throws Exception if an option cannot be parsed
+     */
+    public static void main(String[] args) throws Exception {
+        String tmpStr = Utils.getOption('n', args);
+        int numInstances = tmpStr.length() != 0 ? Integer.parseInt(tmpStr) : 900;
+        tmpStr = Utils.getOption('l', args);
+        int length = tmpStr.length() != 0 ? Integer.parseInt(tmpStr) : 128;
+        tmpStr = Utils.getOption('s', args);
+        long seed = tmpStr.length() != 0 ? Long.parseLong(tmpStr) : 1;
+
+        System.out.println(cylinderBellFunnel(numInstances, length, seed));
+    }
+}
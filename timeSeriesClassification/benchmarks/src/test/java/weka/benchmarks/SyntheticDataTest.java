@@ -0,0 +1,105 @@
+package weka.benchmarks;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.DTWDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.neighboursearch.DTWSearch;
+
+/**
+ * Tests SyntheticData.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SyntheticDataTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public SyntheticDataTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that the classes take turns and that every series is
+     * z-normalized.
+     */
+    public void testBalancedAndNormalized() {
+        Instances data = SyntheticData.cylinderBellFunnel(30, 100, 1);
+        assertEquals(30, data.numInstances());
+        assertEquals(101, data.numAttributes());
+        assertEquals(100, data.classIndex());
+        assertEquals(3, data.numClasses());
+
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            assertEquals(i % 3, (int) inst.classValue());
+            double sum = 0;
+            double squares = 0;
+            for (int t = 0; t < 100; t++) {
+                sum += inst.value(t);
+                squares += inst.value(t) * inst.value(t);
+            }
+            assertEquals(0, sum / 100, 1e-9);
+            assertEquals(1, squares / 100, 1e-9);
+        }
+    }
+
+    /**
+     * Tests that a seed always gives the same dataset and another seed a
+     * different one.
+     */
+    public void testSeed() {
+        Instances first = SyntheticData.cylinderBellFunnel(6, 64, 2);
+        assertEquals(first.toString(), SyntheticData.cylinderBellFunnel(6, 64, 2).toString());
+        assertFalse(first.toString().equals(SyntheticData.cylinderBellFunnel(6, 64, 3).toString()));
+    }
+
+    /**
+     * Tests that the classes are told apart by a 1-NN DTW classifier, like
+     * those of the original problem, so the benchmarks search data with the
+     * structure of real series rather than noise.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testSeparable() throws Exception {
+        Instances train = SyntheticData.cylinderBellFunnel(60, 128, 4);
+        Instances test = SyntheticData.cylinderBellFunnel(60, 128, 5);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setInstances(train);
+
+        int correct = 0;
+        for (int i = 0; i < test.numInstances(); i++) {
+            Instance nearest = search.nearestNeighbour(test.instance(i));
+            if (nearest.classValue() == test.instance(i).classValue()) {
+                correct++;
+            }
+        }
+        assertTrue("accuracy " + correct + "/60", correct >= 48);
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(SyntheticDataTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
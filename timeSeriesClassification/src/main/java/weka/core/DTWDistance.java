@@ -1,8 +1,10 @@
 package weka.core;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Vector;
+import weka.core.neighboursearch.DTWPerformanceStats;
 import weka.core.neighboursearch.PerformanceStats;
 
 /**
@@ -31,13 +33,46 @@ import weka.core.neighboursearch.PerformanceStats;
  * <pre> -V
  *  Invert matching sense of column indices.</pre>
  *
+ * <pre> -F
+ *  Store the series and calculate DTW in single precision.</pre>
+ *
+ * <pre> -K &lt;num&gt;
+ *  The order in which the cells of the band are calculated:
+ *  0 = row by row, 1 = anti-diagonal by anti-diagonal
+ *  (default 0)</pre>
+ *
  * <!-- options-end -->
  *
+ * <p/>
+ * Thread safety: once configured, one instance can be shared by any number of
+ * threads calculating distances (e.g. the workers of a parallel search or of
+ * a parallel evaluation) without cloning or locking. The scratch rows of the
+ * calculations are kept per thread, and the prepared series and the
+ * attributes they are made of are fixed when setInstances(Instances) is
+ * called: changing an option afterwards prepares new series instead of
+ * modifying the ones other threads may be reading. Options should not be
+ * changed and update(Instance) must not be called while distances are being
+ * calculated.
+ *
  * @author Csar Soto (csoto@uclv.edu.cu)
  *
  */
-public class DTWDistance implements DistanceFunction, Serializable, Cloneable, OptionHandler {
+public class DTWDistance implements MetricDistance, Serializable, Cloneable, OptionHandler {
 
+    /**
+     * The band is calculated row by row.
+     */
+    public static final int KERNEL_ROWS = 0;
+    /**
+     * The band is calculated anti-diagonal by anti-diagonal.
+     */
+    public static final int KERNEL_DIAGONALS = 1;
+    /**
+     * The DTW kernels.
+     */
+    public static final Tag[] TAGS_KERNEL = {
+        new Tag(KERNEL_ROWS, "Rows"),
+        new Tag(KERNEL_DIAGONALS, "Anti-diagonals")};
     /**
      * The instances used internally.
      */
@@ -50,6 +85,36 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
      * The range of attributes to use for calculating the distance.
      */
     private Range m_AttributeIndices = new Range("first-last");
+    /**
+     * The series of the instances, extracted once in setInstances(). Replaced
+     * as a whole when the options change; update(Instance) appends rows to it
+     * in place, so that searches keeping data per row (envelopes, an index)
+     * can tell new rows from series prepared again.
+     */
+    private volatile PreparedSeries m_Series = null;
+    /**
+     * Whether the series are stored and compared in single precision.
+     */
+    private boolean m_SinglePrecision = false;
+    /**
+     * The order in which the cells of the band are calculated.
+     */
+    private int m_Kernel = KERNEL_ROWS;
+    /**
+     * The number of points the Euclidean distance sums between two checks of
+     * the cut off.
+     */
+    private static final int EUCLIDEAN_BLOCK = 16;
+    /**
+     * Per-thread scratch rows of the DTW kernels, so threads sharing the
+     * distance function never share them. They only grow.
+     */
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
 
     /**
      * Calculates the distance between two instances.
@@ -61,7 +126,7 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     @Override
     public double distance(Instance first, Instance second) {
 
-        return distance(first, second, Double.POSITIVE_INFINITY);
+        return Math.sqrt(distance(first, second, Double.POSITIVE_INFINITY));
 
     }
 
@@ -75,15 +140,16 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
      */
     @Override
     public double distance(Instance first, Instance second, PerformanceStats stats) throws Exception {
-        return distance(first, second, Double.POSITIVE_INFINITY, stats);
+        return Math.sqrt(distance(first, second, Double.POSITIVE_INFINITY, stats));
     }
 
     /**
      * Calculates the distance between two instances. Offers speed up (if the
      * distance function class in use supports it) in nearest neighbour search
-     * by taking into account the cutOff or maximum distance. Depending on the
-     * distance function class, post processing of the distances by
-     * postProcessDistances(double []) may be required if this function is used.
+     * by taking into account the cutOff or maximum distance. Like the
+     * EuclideanDistance, the distance and the cutOff are squared, i.e. the
+     * root is not taken, so postProcessDistances(double []) must be applied to
+     * the distances returned by this function.
      *
      * @param first the first instance
      * @param second the second instance
@@ -101,15 +167,17 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     /**
      * Calculates the distance between two instances. Offers speed up (if the
      * distance function class in use supports it) in nearest neighbour search
-     * by taking into account the cutOff or maximum distance. Depending on the
-     * distance function class, post processing of the distances by
-     * postProcessDistances(double []) may be required if this function is used.
+     * by taking into account the cutOff or maximum distance. Like the
+     * EuclideanDistance, the distance and the cutOff are squared, i.e. the
+     * root is not taken, so postProcessDistances(double []) must be applied to
+     * the distances returned by this function.
      *
      * @param first the first instance
      * @param second the second instance
      * @param cutOffValue If the distance being calculated becomes larger than
      * cutOffValue then the rest of the calculation is discarded.
-     * @param stats the performance stats object
+     * @param stats the performance stats object, counting the cells of the
+     * DTW matrix calculated as coordinates, or null
      * @return the distance between the two given instances or
      * Double.POSITIVE_INFINITY if the distance being calculated becomes larger
      * than cutOffValue.
@@ -117,91 +185,950 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     @Override
     public double distance(Instance first, Instance second, double cutOffValue, PerformanceStats stats) {
 
-        double attsFirst[] = first.toDoubleArray();
-        double attsSecond[] = second.toDoubleArray();
+        Workspace ws = WORKSPACE.get();
+        PreparedSeries series = m_Series;
+        int[] attributes = series != null ? series.getAttributes()
+                : seriesAttributes(first.dataset());
+        int length = attributes.length;
+
+        if (series != null ? series.isSinglePrecision() : m_SinglePrecision) {
+            return distanceSinglePrecision(first, second, series, attributes, cutOffValue, stats, ws);
+        }
+
+        // instances of the current set are read from their prepared rows
+        double[] ts1;
+        double[] ts2;
+        int offset1;
+        int offset2;
+        int row = series != null ? series.indexOf(first) : -1;
+        if (row >= 0) {
+            ts1 = series.getValues();
+            offset1 = series.offset(row);
+        } else {
+            ws.ensureSeriesCapacity(length);
+            ts1 = ws.m_First;
+            offset1 = 0;
+            PreparedSeries.extract(first, attributes, ts1, offset1);
+        }
+        row = series != null ? series.indexOf(second) : -1;
+        if (row >= 0) {
+            ts2 = series.getValues();
+            offset2 = series.offset(row);
+        } else {
+            ws.ensureSeriesCapacity(length);
+            ts2 = ws.m_Second;
+            offset2 = 0;
+            PreparedSeries.extract(second, attributes, ts2, offset2);
+        }
+
+        return distance(ts1, offset1, ts2, offset2, length, cutOffValue, stats);
+
+    }
 
-        int classIndexOfFirst = first.classAttribute().index();
+    /**
+     * Calculates the squared DTW distance between two instances in single
+     * precision.
+     *
+     * @param first the first instance
+     * @param second the second instance
+     * @param series the prepared series, or null
+     * @param attributes the indices of the attributes that make up a series
+     * @param cutOffValue the squared distance above which the calculation is
+     * abandoned
+     * @param stats the performance stats object, or null
+     * @param ws the workspace to use
+     * @return the squared DTW distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOffValue
+     */
+    private double distanceSinglePrecision(Instance first, Instance second, PreparedSeries series,
+            int[] attributes, double cutOffValue, PerformanceStats stats, Workspace ws) {
 
-        double attsFirstF[] = new double[attsFirst.length - 1];
-        double attsSecondF[] = new double[attsFirst.length - 1];
+        int length = attributes.length;
+        float[] ts1;
+        float[] ts2;
+        int offset1;
+        int offset2;
+        int row = series != null ? series.indexOf(first) : -1;
+        if (row >= 0) {
+            ts1 = series.getFloatValues();
+            offset1 = series.offset(row);
+        } else {
+            ws.ensureSeriesCapacity(length);
+            ts1 = ws.m_FirstFloat;
+            offset1 = 0;
+            PreparedSeries.extract(first, attributes, ts1, offset1);
+        }
+        row = series != null ? series.indexOf(second) : -1;
+        if (row >= 0) {
+            ts2 = series.getFloatValues();
+            offset2 = series.offset(row);
+        } else {
+            ws.ensureSeriesCapacity(length);
+            ts2 = ws.m_SecondFloat;
+            offset2 = 0;
+            PreparedSeries.extract(second, attributes, ts2, offset2);
+        }
 
-        int j = 0;
-        for (int i = 0; i < attsFirst.length; i++) {
-            if (i != classIndexOfFirst) {
-                attsFirstF[j] = attsFirst[i];
-                attsSecondF[j] = attsSecond[i];
-                j++;
+        return distance(ts1, offset1, ts2, offset2, length, cutOffValue, stats);
+    }
+
+    /**
+     * Calculates the squared DTW distance between two time series that are
+     * stored in arrays of floats, e.g. two rows of prepared series in single
+     * precision. The matrix is calculated in single precision as well, see
+     * setSinglePrecision(boolean) for the accuracy.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param length the length of both time series
+     * @param cutOffValue If the squared distance being calculated becomes
+     * larger than cutOffValue then the rest of the calculation is discarded.
+     * @return the squared DTW distance between the two time series or
+     * Double.POSITIVE_INFINITY if it becomes larger than cutOffValue
+     */
+    public double distance(float[] ts1, int offset1, float[] ts2, int offset2, int length, double cutOffValue) {
+        return distance(ts1, offset1, ts2, offset2, length, cutOffValue, null);
+    }
+
+    /**
+     * Calculates the squared DTW distance between two time series that are
+     * stored in arrays of floats, counting the cells of the DTW matrix calculated.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param length the length of both time series
+     * @param cutOffValue If the squared distance being calculated becomes
+     * larger than cutOffValue then the rest of the calculation is discarded.
+     * @param stats the performance stats object counting the cells as
+     * coordinates, or null
+     * @return the squared DTW distance between the two time series or
+     * Double.POSITIVE_INFINITY if it becomes larger than cutOffValue
+     */
+    public double distance(float[] ts1, int offset1, float[] ts2, int offset2, int length, double cutOffValue,
+            PerformanceStats stats) {
+        Workspace ws = WORKSPACE.get();
+        double distance;
+        if (m_Kernel == KERNEL_DIAGONALS) {
+            distance = wavefrontDTW(ts1, offset1, ts2, offset2, length, getWindow(length), cutOffValue, ws);
+        } else {
+            distance = bandedDTW(ts1, offset1, ts2, offset2, length, getWindow(length), cutOffValue, ws);
+        }
+        if (stats != null) {
+            countCells(stats, ws.m_Cells);
+        }
+        return distance;
+    }
+
+    /**
+     * Calculates the squared DTW distance between two time series that are
+     * stored in arrays, e.g. two rows of the prepared series. Both the
+     * distance and the cutOff are squared, like in distance(Instance, Instance,
+     * double), so searches can compare distances without taking roots.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param length the length of both time series
+     * @param cutOffValue If the squared distance being calculated becomes
+     * larger than cutOffValue then the rest of the calculation is discarded.
+     * @return the squared DTW distance between the two time series or
+     * Double.POSITIVE_INFINITY if it becomes larger than cutOffValue
+     */
+    public double distance(double[] ts1, int offset1, double[] ts2, int offset2, int length, double cutOffValue) {
+        return distance(ts1, offset1, ts2, offset2, length, cutOffValue, null);
+    }
+
+    /**
+     * Calculates the squared DTW distance between two time series that are
+     * stored in arrays, counting the cells of the DTW matrix calculated.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param length the length of both time series
+     * @param cutOffValue If the squared distance being calculated becomes
+     * larger than cutOffValue then the rest of the calculation is discarded.
+     * @param stats the performance stats object counting the cells as
+     * coordinates, or null
+     * @return the squared DTW distance between the two time series or
+     * Double.POSITIVE_INFINITY if it becomes larger than cutOffValue
+     */
+    public double distance(double[] ts1, int offset1, double[] ts2, int offset2, int length, double cutOffValue,
+            PerformanceStats stats) {
+        Workspace ws = WORKSPACE.get();
+        double distance;
+        if (m_Kernel == KERNEL_DIAGONALS) {
+            distance = wavefrontDTW(ts1, offset1, ts2, offset2, length, getWindow(length), cutOffValue, ws);
+        } else {
+            distance = bandedDTW(ts1, offset1, ts2, offset2, length, getWindow(length), cutOffValue, ws);
+        }
+        if (stats != null) {
+            countCells(stats, ws.m_Cells);
+        }
+        return distance;
+    }
+
+    /**
+     * Calculates the squared DTW distances between one time series and a block
+     * of candidates at once. The candidates are interleaved (value j of all
+     * candidates next to each other) and the band is calculated for all of
+     * them in lockstep, so every cell is updated for the whole block in one
+     * loop without dependencies the JIT may vectorize, and the values of the
+     * query are read once per row for all candidates. The distances are the
+     * same as the ones of distance(double[], int, double[], int, int, double)
+     * for each candidate.
+     * <p/>
+     * The block is only abandoned when all its candidates exceed the cut off,
+     * so it works best for candidates that survived the lower bounds, whose
+     * distances tend to be close to each other.
+     *
+     * @param values the array holding the candidates
+     * @param offsets the position of each candidate in values
+     * @param count the number of candidates
+     * @param query the array holding the other time series
+     * @param queryOffset the position of the other time series in query
+     * @param length the length of all time series
+     * @param cutOffValue If the squared distance of a candidate becomes larger
+     * than cutOffValue then its distance is Double.POSITIVE_INFINITY.
+     * @param distances the array receiving the squared distances of the
+     * candidates
+     */
+    public void distances(double[] values, int[] offsets, int count, double[] query, int queryOffset, int length,
+            double cutOffValue, double[] distances) {
+        lockstepDTW(values, offsets, count, query, queryOffset, length, getWindow(length), cutOffValue, distances,
+                WORKSPACE.get());
+    }
+
+    /**
+     * Calculates the squared DTW distances between one time series and a block
+     * of candidates at once in single precision, like
+     * distances(double[], int[], int, double[], int, int, double, double[]).
+     *
+     * @param values the array holding the candidates
+     * @param offsets the position of each candidate in values
+     * @param count the number of candidates
+     * @param query the array holding the other time series
+     * @param queryOffset the position of the other time series in query
+     * @param length the length of all time series
+     * @param cutOffValue If the squared distance of a candidate becomes larger
+     * than cutOffValue then its distance is Double.POSITIVE_INFINITY.
+     * @param distances the array receiving the squared distances of the
+     * candidates
+     */
+    public void distances(float[] values, int[] offsets, int count, float[] query, int queryOffset, int length,
+            double cutOffValue, double[] distances) {
+        lockstepDTW(values, offsets, count, query, queryOffset, length, getWindow(length), cutOffValue, distances,
+                WORKSPACE.get());
+    }
+
+    /**
+     * Counts the cells of a DTW calculation as coordinates visited, in bulk if
+     * the statistics are the ones of a DTW search.
+     *
+     * @param stats the performance stats object
+     * @param cells the number of cells calculated
+     */
+    private static void countCells(PerformanceStats stats, int cells) {
+        if (stats instanceof DTWPerformanceStats) {
+            ((DTWPerformanceStats) stats).incrCellCount(cells);
+        } else {
+            for (int i = 0; i < cells; i++) {
+                stats.incrCoordCount();
             }
         }
-        return distanceDTW(attsFirstF, attsSecondF, getM_WindowSize());
+    }
+
+    /**
+     * Returns the absolute width of the Sakoe-Chiba Band for time series of
+     * the given length, i.e. the window size percentage applied to the length.
+     *
+     * @param length the length of the time series
+     * @return the number of cells the warping path may deviate from the
+     * diagonal
+     */
+    public int getWindow(int length) {
+        int window = m_WindowSize * length / 100;
+        return Math.min(window, length - 1);
+    }
 
+    /**
+     * Returns whether the distance is a metric. DTW does not satisfy the
+     * triangle inequality, but when the band is a single cell wide no warping
+     * is allowed and the distance is the Euclidean distance between the
+     * series. In single precision the rounding of the sums may break the
+     * triangle inequality, so the distance is not declared a metric then.
+     *
+     * @return true if the band of the series (of the current instances, if
+     * any) allows no warping and the distance is calculated in double
+     * precision
+     */
+    @Override
+    public boolean isMetric() {
+        if (m_SinglePrecision) {
+            return false;
+        }
+        PreparedSeries series = m_Series;
+        return series != null ? getWindow(series.getLength()) == 0 : m_WindowSize == 0;
     }
 
     /**
-     * Internal method to calculate the DTW distance between two time series
-     * using the Sakoe-Chiba Band.
+     * Computes the squared DTW distance constrained to the Sakoe-Chiba Band.
+     * Only two rows of the band (2 * window + 1 cells each) are kept, so no
+     * memory is allocated once the rows of the workspace are large enough.
+     * Row i holds the cells of columns i - window .. i + window at positions 1
+     * .. 2 * window + 1; position 0 and position 2 * window + 2 are kept at
+     * infinity and stand for the cells outside of the band.
+     * <p/>
+     * Since every warping path crosses every row, the minimum of a row is a
+     * lower bound of the result, so the calculation is abandoned as soon as a
+     * whole row lies above the cut off.
      *
-     * @param ts1 A time series.
-     * @param ts2 A time series.
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
      * @param window The size of the Sakoe-Chiba Band.
-     * @return
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the scratch rows to use
+     * @return the squared DTW distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
      */
-    private double distanceDTW(double[] ts1, double[] ts2, int window) {
+    static double bandedDTW(double[] ts1, int offset1, double[] ts2, int offset2, int n, int window,
+            double cutOff, Workspace ws) {
+
+        if (window == 0) {
+            return squaredEuclidean(ts1, offset1, ts2, offset2, n, cutOff, ws);
+        }
+
+        int width = 2 * window + 1;
+        ws.ensureCapacity(width + 2);
+        double[] previous = ws.m_Previous;
+        double[] current = ws.m_Current;
+        previous[width + 1] = Double.POSITIVE_INFINITY;
+        current[width + 1] = Double.POSITIVE_INFINITY;
+
+        // first row: only a horizontal path is possible
+        current[window] = Double.POSITIVE_INFINITY;
+        double sum = 0;
+        double y = ts2[offset2];
+        for (int j = 0; j <= window; j++) {
+            double d = ts1[offset1 + j] - y;
+            sum += d * d;
+            current[j + window + 1] = sum;
+        }
+        ws.m_Cells = window + 1;
+        if (current[window + 1] > cutOff) {
+            return Double.POSITIVE_INFINITY;
+        }
 
+        for (int i = 1; i < n; i++) {
+            double[] swap = previous;
+            previous = current;
+            current = swap;
 
-        window = (int) m_WindowSize * (ts1.length) / 100;
-        window = Math.min(window, ts1.length - 1);
+            int jStart = Math.max(0, i - window);
+            int jEnd = Math.min(i + window, n - 1);
+            int offset = window + 1 - i;
+            y = ts2[offset2 + i];
+            ws.m_Cells += jEnd - jStart + 1;
 
-        // treating the case when the two time series have length = 1
-        if (ts1.length == 1) {
-            return (ts1[0] - ts2[0]) * (ts1[0] - ts2[0]);
+            // left neighbour of the first cell (and diagonal of the next row)
+            current[jStart + offset - 1] = Double.POSITIVE_INFINITY;
+            double rowMin = Double.POSITIVE_INFINITY;
+            for (int j = jStart; j <= jEnd; j++) {
+                int k = j + offset;
+                double d = ts1[offset1 + j] - y;
+                current[k] = d * d + Math.min(Math.min(previous[k], current[k - 1]), previous[k + 1]);
+                if (current[k] < rowMin) {
+                    rowMin = current[k];
+                }
+            }
+            if (rowMin > cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+
+        return current[window + 1] > cutOff ? Double.POSITIVE_INFINITY : current[window + 1];
+    }
+
+    /**
+     * Computes the squared Euclidean distance, i.e. DTW within a band of width
+     * 0. The points are summed in blocks of EUCLIDEAN_BLOCK without branches,
+     * so the JIT may vectorize the differences, in the same order as the
+     * banded DTW does, so the result is the same. The cut off is checked after
+     * every block.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the workspace counting the cells
+     * @return the squared Euclidean distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
+     */
+    static double squaredEuclidean(double[] ts1, int offset1, double[] ts2, int offset2, int n, double cutOff,
+            Workspace ws) {
+
+        double sum = 0;
+        for (int start = 0; start < n; start += EUCLIDEAN_BLOCK) {
+            int end = Math.min(n, start + EUCLIDEAN_BLOCK);
+            ws.m_Cells = end;
+            for (int i = start; i < end; i++) {
+                double d = ts1[offset1 + i] - ts2[offset2 + i];
+                sum += d * d;
+            }
+            if (sum > cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
         }
+        return sum;
+    }
 
-        double[][] array = new double[ts1.length][ts2.length];
+    /**
+     * Computes the squared Euclidean distance in single precision, in blocks
+     * like the double version.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the workspace counting the cells
+     * @return the squared Euclidean distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
+     */
+    static double squaredEuclidean(float[] ts1, int offset1, float[] ts2, int offset2, int n, double cutOff,
+            Workspace ws) {
 
-        // fill the array with infinite values first
-        for (int i = 0; i < array.length; i++) {
-            for (int j = 0; j < array.length; j++) {
-                array[i][j] = Double.MAX_VALUE;
+        float sum = 0;
+        for (int start = 0; start < n; start += EUCLIDEAN_BLOCK) {
+            int end = Math.min(n, start + EUCLIDEAN_BLOCK);
+            ws.m_Cells = end;
+            for (int i = start; i < end; i++) {
+                float d = ts1[offset1 + i] - ts2[offset2 + i];
+                sum += d * d;
+            }
+            if (sum > cutOff) {
+                return Double.POSITIVE_INFINITY;
             }
         }
+        return sum;
+    }
 
-        // set the value in [0][0] position
-        array[0][0] = (ts1[0] - ts2[0]) * (ts1[0] - ts2[0]);
+    /**
+     * Computes the squared DTW distance constrained to the Sakoe-Chiba Band in
+     * single precision, with the same layout of the rows as the double
+     * version. The cells are compared with the cut off in double precision.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
+     * @param window The size of the Sakoe-Chiba Band.
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the scratch rows to use
+     * @return the squared DTW distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
+     */
+    static double bandedDTW(float[] ts1, int offset1, float[] ts2, int offset2, int n, int window,
+            double cutOff, Workspace ws) {
 
-        for (int i = 1; i <= window; i++) {
-            array[0][i] = (ts1[i] - ts2[0]) * (ts1[i] - ts2[0]) + array[0][i - 1];
+        if (window == 0) {
+            return squaredEuclidean(ts1, offset1, ts2, offset2, n, cutOff, ws);
         }
 
-        for (int i = 1; i <= window; i++) {
-            array[i][0] = (ts1[0] - ts2[i]) * (ts1[0] - ts2[i]) + array[i - 1][0];
+        int width = 2 * window + 1;
+        ws.ensureCapacity(width + 2);
+        float[] previous = ws.m_PreviousFloat;
+        float[] current = ws.m_CurrentFloat;
+        previous[width + 1] = Float.POSITIVE_INFINITY;
+        current[width + 1] = Float.POSITIVE_INFINITY;
+
+        // first row: only a horizontal path is possible
+        current[window] = Float.POSITIVE_INFINITY;
+        float sum = 0;
+        float y = ts2[offset2];
+        for (int j = 0; j <= window; j++) {
+            float d = ts1[offset1 + j] - y;
+            sum += d * d;
+            current[j + window + 1] = sum;
+        }
+        ws.m_Cells = window + 1;
+        if (current[window + 1] > cutOff) {
+            return Double.POSITIVE_INFINITY;
         }
 
-        for (int i = 1; i < array.length; i++) {
-            for (int j = Math.max(1, i - window); j <= Math.min(i + window, array.length - 1); j++) {
-                if (j == i + window) {
-                    array[i][j] = (ts1[j] - ts2[i]) * (ts1[j] - ts2[i]) + Math.min(array[i - 1][j - 1], array[i][j - 1]);
-                } else if (j == i - window) {
-                    array[i][j] = (ts1[j] - ts2[i]) * (ts1[j] - ts2[i]) + Math.min(array[i - 1][j - 1], array[i - 1][j]);
-                } else {
-                    array[i][j] = (ts1[j] - ts2[i]) * (ts1[j] - ts2[i]) + Math.min(Math.min(array[i - 1][j - 1], array[i][j - 1]), array[i - 1][j]);
+        for (int i = 1; i < n; i++) {
+            float[] swap = previous;
+            previous = current;
+            current = swap;
+
+            int jStart = Math.max(0, i - window);
+            int jEnd = Math.min(i + window, n - 1);
+            int offset = window + 1 - i;
+            y = ts2[offset2 + i];
+            ws.m_Cells += jEnd - jStart + 1;
+
+            // left neighbour of the first cell (and diagonal of the next row)
+            current[jStart + offset - 1] = Float.POSITIVE_INFINITY;
+            float rowMin = Float.POSITIVE_INFINITY;
+            for (int j = jStart; j <= jEnd; j++) {
+                int k = j + offset;
+                float d = ts1[offset1 + j] - y;
+                current[k] = d * d + Math.min(Math.min(previous[k], current[k - 1]), previous[k + 1]);
+                if (current[k] < rowMin) {
+                    rowMin = current[k];
                 }
             }
+            if (rowMin > cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+
+        return current[window + 1] > cutOff ? Double.POSITIVE_INFINITY : current[window + 1];
+    }
+
+    /**
+     * Computes the squared DTW distance constrained to the Sakoe-Chiba Band
+     * anti-diagonal by anti-diagonal. The cells of an anti-diagonal (i + j =
+     * s) only depend on the two anti-diagonals before it, not on each other,
+     * so the inner loop has no dependency chain and the JIT may vectorize it.
+     * ts1 is copied reversed into the workspace so both
+     * series are read forwards along an anti-diagonal. Three anti-diagonals
+     * are kept, indexed by the row plus one; the positions around the cells of
+     * the band are kept at infinity. The result is the same as the one of the
+     * row by row calculation.
+     * <p/>
+     * A warping path crosses at least one of any two consecutive
+     * anti-diagonals, so the calculation is abandoned as soon as two of them
+     * lie above the cut off.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
+     * @param window The size of the Sakoe-Chiba Band.
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the scratch anti-diagonals to use
+     * @return the squared DTW distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
+     */
+    static double wavefrontDTW(double[] ts1, int offset1, double[] ts2, int offset2, int n, int window,
+            double cutOff, Workspace ws) {
+
+        if (window == 0) {
+            return squaredEuclidean(ts1, offset1, ts2, offset2, n, cutOff, ws);
+        }
+
+        ws.ensureDiagonalCapacity(n);
+        double[] reversed = ws.m_Reversed;
+        for (int j = 0; j < n; j++) {
+            reversed[j] = ts1[offset1 + n - 1 - j];
+        }
+        double[] before = ws.m_Diagonal0;
+        double[] previous = ws.m_Diagonal1;
+        double[] current = ws.m_Diagonal2;
+
+        // anti-diagonal 0 only holds the first cell, the one before it is empty
+        previous[0] = Double.POSITIVE_INFINITY;
+        previous[1] = Double.POSITIVE_INFINITY;
+        double d = ts1[offset1] - ts2[offset2];
+        current[0] = Double.POSITIVE_INFINITY;
+        current[1] = d * d;
+        current[2] = Double.POSITIVE_INFINITY;
+        ws.m_Cells = 1;
+        if (current[1] > cutOff) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double previousMin = current[1];
+
+        for (int s = 1; s <= 2 * n - 2; s++) {
+            double[] swap = before;
+            before = previous;
+            previous = current;
+            current = swap;
+
+            int iStart = Math.max(Math.max(0, s - n + 1), (s - window + 1) >> 1);
+            int iEnd = Math.min(Math.min(n - 1, s), (s + window) >> 1);
+            // reversed[shift + i] is ts1[s - i]
+            int shift = n - 1 - s;
+            ws.m_Cells += iEnd - iStart + 1;
+
+            double diagonalMin = Double.POSITIVE_INFINITY;
+            for (int i = iStart; i <= iEnd; i++) {
+                d = reversed[shift + i] - ts2[offset2 + i];
+                // diagonal, left and upper neighbour
+                double cell = d * d + Math.min(Math.min(before[i], previous[i + 1]), previous[i]);
+                current[i + 1] = cell;
+                diagonalMin = Math.min(diagonalMin, cell);
+            }
+            current[iStart] = Double.POSITIVE_INFINITY;
+            current[iEnd + 2] = Double.POSITIVE_INFINITY;
+
+            if (diagonalMin > cutOff && previousMin > cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
+            previousMin = diagonalMin;
         }
 
-        return Math.sqrt(array[array.length - 1][array.length - 1]);
+        return current[n] > cutOff ? Double.POSITIVE_INFINITY : current[n];
+    }
+
+    /**
+     * Computes the squared DTW distance constrained to the Sakoe-Chiba Band
+     * anti-diagonal by anti-diagonal in single precision, like the double
+     * version.
+     *
+     * @param ts1 the array holding the first time series
+     * @param offset1 the position of the first time series in ts1
+     * @param ts2 the array holding the second time series
+     * @param offset2 the position of the second time series in ts2
+     * @param n the length of both time series
+     * @param window The size of the Sakoe-Chiba Band.
+     * @param cutOff the squared distance above which the calculation is
+     * abandoned
+     * @param ws the scratch anti-diagonals to use
+     * @return the squared DTW distance or Double.POSITIVE_INFINITY if it
+     * becomes larger than cutOff
+     */
+    static double wavefrontDTW(float[] ts1, int offset1, float[] ts2, int offset2, int n, int window,
+            double cutOff, Workspace ws) {
+
+        if (window == 0) {
+            return squaredEuclidean(ts1, offset1, ts2, offset2, n, cutOff, ws);
+        }
+
+        ws.ensureDiagonalCapacity(n);
+        float[] reversed = ws.m_ReversedFloat;
+        for (int j = 0; j < n; j++) {
+            reversed[j] = ts1[offset1 + n - 1 - j];
+        }
+        float[] before = ws.m_Diagonal0Float;
+        float[] previous = ws.m_Diagonal1Float;
+        float[] current = ws.m_Diagonal2Float;
+
+        // anti-diagonal 0 only holds the first cell, the one before it is empty
+        previous[0] = Float.POSITIVE_INFINITY;
+        previous[1] = Float.POSITIVE_INFINITY;
+        float d = ts1[offset1] - ts2[offset2];
+        current[0] = Float.POSITIVE_INFINITY;
+        current[1] = d * d;
+        current[2] = Float.POSITIVE_INFINITY;
+        ws.m_Cells = 1;
+        if (current[1] > cutOff) {
+            return Double.POSITIVE_INFINITY;
+        }
+        float previousMin = current[1];
+
+        for (int s = 1; s <= 2 * n - 2; s++) {
+            float[] swap = before;
+            before = previous;
+            previous = current;
+            current = swap;
+
+            int iStart = Math.max(Math.max(0, s - n + 1), (s - window + 1) >> 1);
+            int iEnd = Math.min(Math.min(n - 1, s), (s + window) >> 1);
+            // reversed[shift + i] is ts1[s - i]
+            int shift = n - 1 - s;
+            ws.m_Cells += iEnd - iStart + 1;
+
+            float diagonalMin = Float.POSITIVE_INFINITY;
+            for (int i = iStart; i <= iEnd; i++) {
+                d = reversed[shift + i] - ts2[offset2 + i];
+                // diagonal, left and upper neighbour
+                float cell = d * d + Math.min(Math.min(before[i], previous[i + 1]), previous[i]);
+                current[i + 1] = cell;
+                diagonalMin = Math.min(diagonalMin, cell);
+            }
+            current[iStart] = Float.POSITIVE_INFINITY;
+            current[iEnd + 2] = Float.POSITIVE_INFINITY;
+
+            if (diagonalMin > cutOff && previousMin > cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
+            previousMin = diagonalMin;
+        }
+
+        return current[n] > cutOff ? Double.POSITIVE_INFINITY : current[n];
+    }
+
+    /**
+     * Computes the squared DTW distances constrained to the Sakoe-Chiba Band
+     * between a block of candidates (ts1) and one time series (ts2), with the
+     * candidates in lockstep. The rows are laid out like the ones of
+     * bandedDTW, with the cells of all candidates next to each other, i.e.
+     * position k of candidate c is at k * count + c.
+     *
+     * @param values the array holding the candidates
+     * @param offsets the position of each candidate in values
+     * @param count the number of candidates
+     * @param ts2 the array holding the other time series
+     * @param offset2 the position of the other time series in ts2
+     * @param n the length of all time series
+     * @param window The size of the Sakoe-Chiba Band.
+     * @param cutOff the squared distance above which a candidate is abandoned
+     * @param distances the array receiving the squared distances, or
+     * Double.POSITIVE_INFINITY for the candidates that became larger than
+     * cutOff
+     * @param ws the scratch rows to use
+     */
+    static void lockstepDTW(double[] values, int[] offsets, int count, double[] ts2, int offset2, int n,
+            int window, double cutOff, double[] distances, Workspace ws) {
+
+        if (window == 0) {
+            int cells = 0;
+            for (int c = 0; c < count; c++) {
+                distances[c] = squaredEuclidean(values, offsets[c], ts2, offset2, n, cutOff, ws);
+                cells += ws.m_Cells;
+            }
+            ws.m_Cells = cells;
+            return;
+        }
+
+        int width = 2 * window + 1;
+        ws.ensureLockstepCapacity(count, n, width + 2);
+        double[] lanes = ws.m_Lanes;
+        double[] previous = ws.m_LanePrevious;
+        double[] current = ws.m_LaneCurrent;
+        double[] rowMin = ws.m_LaneMin;
+        for (int c = 0; c < count; c++) {
+            int offset = offsets[c];
+            for (int j = 0; j < n; j++) {
+                lanes[j * count + c] = values[offset + j];
+            }
+        }
+        Arrays.fill(previous, (width + 1) * count, (width + 2) * count, Double.POSITIVE_INFINITY);
+        Arrays.fill(current, (width + 1) * count, (width + 2) * count, Double.POSITIVE_INFINITY);
+
+        // first row: only a horizontal path is possible
+        Arrays.fill(current, window * count, (window + 1) * count, Double.POSITIVE_INFINITY);
+        double y = ts2[offset2];
+        int first = (window + 1) * count;
+        for (int c = 0; c < count; c++) {
+            double d = lanes[c] - y;
+            current[first + c] = d * d;
+        }
+        for (int j = 1; j <= window; j++) {
+            int base = (j + window + 1) * count;
+            int value = j * count;
+            for (int c = 0; c < count; c++) {
+                double d = lanes[value + c] - y;
+                current[base + c] = current[base - count + c] + d * d;
+            }
+        }
+        ws.m_Cells = (window + 1) * count;
+        if (allAbove(current, first, count, cutOff)) {
+            Arrays.fill(distances, 0, count, Double.POSITIVE_INFINITY);
+            return;
+        }
+
+        for (int i = 1; i < n; i++) {
+            double[] swap = previous;
+            previous = current;
+            current = swap;
+
+            int jStart = Math.max(0, i - window);
+            int jEnd = Math.min(i + window, n - 1);
+            int offset = window + 1 - i;
+            y = ts2[offset2 + i];
+            ws.m_Cells += (jEnd - jStart + 1) * count;
+
+            // left neighbours of the first cells (and diagonals of the next row)
+            Arrays.fill(current, (jStart + offset - 1) * count, (jStart + offset) * count,
+                    Double.POSITIVE_INFINITY);
+            Arrays.fill(rowMin, 0, count, Double.POSITIVE_INFINITY);
+            for (int j = jStart; j <= jEnd; j++) {
+                int base = (j + offset) * count;
+                int value = j * count;
+                for (int c = 0; c < count; c++) {
+                    double d = lanes[value + c] - y;
+                    double cell = d * d + Math.min(Math.min(previous[base + c], current[base - count + c]),
+                            previous[base + count + c]);
+                    current[base + c] = cell;
+                    rowMin[c] = Math.min(rowMin[c], cell);
+                }
+            }
+            if (allAbove(rowMin, 0, count, cutOff)) {
+                Arrays.fill(distances, 0, count, Double.POSITIVE_INFINITY);
+                return;
+            }
+        }
+
+        // the candidates whose rows exceeded the cut off end above it as well
+        for (int c = 0; c < count; c++) {
+            double distance = current[first + c];
+            distances[c] = distance > cutOff ? Double.POSITIVE_INFINITY : distance;
+        }
+    }
+
+    /**
+     * Computes the squared DTW distances between a block of candidates and
+     * one time series in single precision, like the double version.
+     *
+     * @param values the array holding the candidates
+     * @param offsets the position of each candidate in values
+     * @param count the number of candidates
+     * @param ts2 the array holding the other time series
+     * @param offset2 the position of the other time series in ts2
+     * @param n the length of all time series
+     * @param window The size of the Sakoe-Chiba Band.
+     * @param cutOff the squared distance above which a candidate is abandoned
+     * @param distances the array receiving the squared distances, or
+     * Double.POSITIVE_INFINITY for the candidates that became larger than
+     * cutOff
+     * @param ws the scratch rows to use
+     */
+    static void lockstepDTW(float[] values, int[] offsets, int count, float[] ts2, int offset2, int n,
+            int window, double cutOff, double[] distances, Workspace ws) {
+
+        if (window == 0) {
+            int cells = 0;
+            for (int c = 0; c < count; c++) {
+                distances[c] = squaredEuclidean(values, offsets[c], ts2, offset2, n, cutOff, ws);
+                cells += ws.m_Cells;
+            }
+            ws.m_Cells = cells;
+            return;
+        }
+
+        int width = 2 * window + 1;
+        ws.ensureLockstepCapacity(count, n, width + 2);
+        float[] lanes = ws.m_LanesFloat;
+        float[] previous = ws.m_LanePreviousFloat;
+        float[] current = ws.m_LaneCurrentFloat;
+        float[] rowMin = ws.m_LaneMinFloat;
+        for (int c = 0; c < count; c++) {
+            int offset = offsets[c];
+            for (int j = 0; j < n; j++) {
+                lanes[j * count + c] = values[offset + j];
+            }
+        }
+        Arrays.fill(previous, (width + 1) * count, (width + 2) * count, Float.POSITIVE_INFINITY);
+        Arrays.fill(current, (width + 1) * count, (width + 2) * count, Float.POSITIVE_INFINITY);
+
+        // first row: only a horizontal path is possible
+        Arrays.fill(current, window * count, (window + 1) * count, Float.POSITIVE_INFINITY);
+        float y = ts2[offset2];
+        int first = (window + 1) * count;
+        for (int c = 0; c < count; c++) {
+            float d = lanes[c] - y;
+            current[first + c] = d * d;
+        }
+        for (int j = 1; j <= window; j++) {
+            int base = (j + window + 1) * count;
+            int value = j * count;
+            for (int c = 0; c < count; c++) {
+                float d = lanes[value + c] - y;
+                current[base + c] = current[base - count + c] + d * d;
+            }
+        }
+        ws.m_Cells = (window + 1) * count;
+        if (allAbove(current, first, count, cutOff)) {
+            Arrays.fill(distances, 0, count, Double.POSITIVE_INFINITY);
+            return;
+        }
+
+        for (int i = 1; i < n; i++) {
+            float[] swap = previous;
+            previous = current;
+            current = swap;
+
+            int jStart = Math.max(0, i - window);
+            int jEnd = Math.min(i + window, n - 1);
+            int offset = window + 1 - i;
+            y = ts2[offset2 + i];
+            ws.m_Cells += (jEnd - jStart + 1) * count;
+
+            // left neighbours of the first cells (and diagonals of the next row)
+            Arrays.fill(current, (jStart + offset - 1) * count, (jStart + offset) * count,
+                    Float.POSITIVE_INFINITY);
+            Arrays.fill(rowMin, 0, count, Float.POSITIVE_INFINITY);
+            for (int j = jStart; j <= jEnd; j++) {
+                int base = (j + offset) * count;
+                int value = j * count;
+                for (int c = 0; c < count; c++) {
+                    float d = lanes[value + c] - y;
+                    float cell = d * d + Math.min(Math.min(previous[base + c], current[base - count + c]),
+                            previous[base + count + c]);
+                    current[base + c] = cell;
+                    rowMin[c] = Math.min(rowMin[c], cell);
+                }
+            }
+            if (allAbove(rowMin, 0, count, cutOff)) {
+                Arrays.fill(distances, 0, count, Double.POSITIVE_INFINITY);
+                return;
+            }
+        }
+
+        // the candidates whose rows exceeded the cut off end above it as well
+        for (int c = 0; c < count; c++) {
+            float distance = current[first + c];
+            distances[c] = distance > cutOff ? Double.POSITIVE_INFINITY : distance;
+        }
+    }
+
+    /**
+     * Returns whether all values of a range lie above the cut off.
+     *
+     * @param values the values
+     * @param from the first value
+     * @param count the number of values
+     * @param cutOff the cut off
+     * @return true if no value is smaller than or equal to cutOff
+     */
+    private static boolean allAbove(double[] values, int from, int count, double cutOff) {
+        for (int c = from; c < from + count; c++) {
+            if (values[c] <= cutOff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether all values of a range lie above the cut off.
+     *
+     * @param values the values
+     * @param from the first value
+     * @param count the number of values
+     * @param cutOff the cut off
+     * @return true if no value is smaller than or equal to cutOff
+     */
+    private static boolean allAbove(float[] values, int from, int count, double cutOff) {
+        for (int c = from; c < from + count; c++) {
+            if (values[c] <= cutOff) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    
     /**
      * Returns an enumeration describing the available options.
      *
      * @return an enumeration of all the available options.
      */
     @Override
-    public Enumeration listOptions() {
+    public Enumeration<Option> listOptions() {
 
-        Vector result = new Vector();
+        Vector<Option> result = new Vector<Option>();
         result.addElement(new Option(
                 "\tSet the size of the Sakoe-Chiba Band for DTW algorithm.",
                 "W", 1, "-W"));
@@ -216,6 +1143,16 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
                 "\tInvert matching sense of column indices.",
                 "V", 0, "-V"));
 
+        result.addElement(new Option(
+                "\tStore the series and calculate DTW in single precision.",
+                "F", 0, "-F"));
+
+        result.addElement(new Option(
+                "\tThe order in which the cells of the band are calculated:\n"
+                + "\t0 = row by row, 1 = anti-diagonal by anti-diagonal\n"
+                + "\t(default 0)",
+                "K", 1, "-K <num>"));
+
         return result.elements();
     }
 
@@ -240,17 +1177,25 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
 
         setInvertSelection(Utils.getFlag('V', options));
 
+        setSinglePrecision(Utils.getFlag('F', options));
+
+        tmpStr = Utils.getOption('K', options);
+        if (tmpStr.length() != 0) {
+            setKernel(new SelectedTag(Integer.parseInt(tmpStr), TAGS_KERNEL));
+        } else {
+            setKernel(new SelectedTag(KERNEL_ROWS, TAGS_KERNEL));
+        }
+
     }
 
     /**
-     * Gets the current settings. Returns empty array.
+     * Gets the current settings: the warping window, the attribute range and
+     * whether it is inverted, the precision and the kernel.
      *
      * @return an array of strings suitable for passing to setOptions()
      */
     @Override
     public String[] getOptions() {
-        // TODO Auto-generated method stub
-
         Vector<String> result;
 
         result = new Vector<String>();
@@ -265,6 +1210,13 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
             result.add("-V");
         }
 
+        if (getSinglePrecision()) {
+            result.add("-F");
+        }
+
+        result.add("-K");
+        result.add("" + m_Kernel);
+
         return result.toArray(new String[result.size()]);
     }
 
@@ -311,6 +1263,9 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
      */
     @Override
     public void postProcessDistances(double distances[]) {
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = Math.sqrt(distances[i]);
+        }
     }
 
     /**
@@ -333,7 +1288,9 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     @Override
     public void setAttributeIndices(String value) {
         m_AttributeIndices.setRanges(value);
-
+        if (m_Data != null) {
+            setInstances(m_Data);
+        }
     }
 
     /**
@@ -367,6 +1324,33 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     @Override
     public void setInstances(Instances insts) {
         m_Data = insts;
+        m_Series = insts != null
+                ? new PreparedSeries(insts, seriesAttributes(insts), m_SinglePrecision) : null;
+    }
+
+    /**
+     * Returns the indices of the attributes that make up the series of a
+     * dataset. A copy of the range of attributes is resolved, since resolving
+     * a range modifies it and other threads may be resolving it at the same
+     * time.
+     *
+     * @param data the dataset
+     * @return the attribute indices in ascending order
+     */
+    private int[] seriesAttributes(Instances data) {
+        Range range = new Range(m_AttributeIndices.getRanges());
+        range.setInvert(m_AttributeIndices.getInvert());
+        return PreparedSeries.seriesAttributes(data, range);
+    }
+
+    /**
+     * Returns the series of the instances currently set, extracted once when
+     * the instances were set and kept up to date by update(Instance).
+     *
+     * @return the prepared series, or null if no instances are set
+     */
+    public PreparedSeries getPreparedSeries() {
+        return m_Series;
     }
 
     /**
@@ -377,7 +1361,9 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     @Override
     public void setInvertSelection(boolean value) {
         m_AttributeIndices.setInvert(value);
-
+        if (m_Data != null) {
+            setInstances(m_Data);
+        }
     }
 
     /**
@@ -402,13 +1388,100 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
                 + "true, only non-selected attributes will be used for the calculation.";
     }
 
+    /**
+     * Sets whether the series are stored and compared in single precision.
+     * The series then take half the memory and half the bandwidth to scan.
+     * The values are rounded to floats (exact for integer data of up to 24
+     * bits, e.g. the samples of 16-bit ADCs) and the DTW matrix is summed in
+     * single precision, so the squared distances differ from the double
+     * precision ones by a relative error of at most about 2n * 2^-24 for
+     * series of length n (1e-4 for a length of about 800, and in practice
+     * one or two orders of magnitude smaller since the rounding errors
+     * partially cancel).
+     * Nearest neighbours can only differ from the double precision ones when
+     * their distances tie within that tolerance.
+     *
+     * @param value if true the series are stored as floats
+     */
+    public void setSinglePrecision(boolean value) {
+        m_SinglePrecision = value;
+        if (m_Data != null) {
+            setInstances(m_Data);
+        }
+    }
+
+    /**
+     * Gets whether the series are stored and compared in single precision.
+     *
+     * @return true if the series are stored as floats
+     */
+    public boolean getSinglePrecision() {
+        return m_SinglePrecision;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String singlePrecisionTipText() {
+        return "Store the series and calculate DTW in single precision, which halves "
+                + "the memory and the bandwidth. The squared distances match the double "
+                + "precision ones within a relative error of about 2n * 2^-24 for "
+                + "series of length n.";
+    }
+
+    /**
+     * Sets the order in which the cells of the band are calculated. Both
+     * kernels give the same distances. The cells of an anti-diagonal do not
+     * depend on each other, so the JIT may vectorize them (DTWDistanceBenchmark
+     * in the benchmarks times both kernels); the anti-diagonal kernel keeps a
+     * reversed copy of one series and three anti-diagonals of the length of
+     * the series instead of two rows of the width of the band.
+     *
+     * @param value the kernel, one of TAGS_KERNEL
+     */
+    public void setKernel(SelectedTag value) {
+        if (value.getTags() == TAGS_KERNEL) {
+            m_Kernel = value.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Gets the order in which the cells of the band are calculated.
+     *
+     * @return the kernel, one of TAGS_KERNEL
+     */
+    public SelectedTag getKernel() {
+        return new SelectedTag(m_Kernel, TAGS_KERNEL);
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String kernelTipText() {
+        return "The order in which the cells of the Sakoe-Chiba band are calculated: "
+                + "row by row, or anti-diagonal by anti-diagonal (independent cells the "
+                + "JIT may vectorize). Both give the same distances.";
+    }
+
     /**
      * Update the distance function (if necessary) for the newly added instance.
+     * The series of the instance is appended to the prepared series in place,
+     * not to a copy, so no distances may be calculated by other threads at the
+     * same time.
      *
      * @param ins	the instance to add
      */
     @Override
     public void update(Instance ins) {
+        if (m_Series != null && m_Series.indexOf(ins) < 0) {
+            m_Series.add(ins);
+        }
     }
 
     /**
@@ -429,4 +1502,115 @@ public class DTWDistance implements DistanceFunction, Serializable, Cloneable, O
     public int getM_WindowSize() {
         return m_WindowSize;
     }
+
+    /**
+     * Internal class holding the two rows of the banded DTW, the three
+     * anti-diagonals of the wavefront DTW, the interleaved rows of the
+     * lockstep DTW and the series of instances that are not part of the
+     * prepared series.
+     */
+    static class Workspace {
+
+        private double[] m_Previous = new double[0];
+        private double[] m_Current = new double[0];
+        private double[] m_First = new double[0];
+        private double[] m_Second = new double[0];
+        private float[] m_PreviousFloat = new float[0];
+        private float[] m_CurrentFloat = new float[0];
+        private float[] m_FirstFloat = new float[0];
+        private float[] m_SecondFloat = new float[0];
+        private double[] m_Reversed = new double[0];
+        private double[] m_Diagonal0 = new double[0];
+        private double[] m_Diagonal1 = new double[0];
+        private double[] m_Diagonal2 = new double[0];
+        private float[] m_ReversedFloat = new float[0];
+        private float[] m_Diagonal0Float = new float[0];
+        private float[] m_Diagonal1Float = new float[0];
+        private float[] m_Diagonal2Float = new float[0];
+        private double[] m_Lanes = new double[0];
+        private double[] m_LanePrevious = new double[0];
+        private double[] m_LaneCurrent = new double[0];
+        private double[] m_LaneMin = new double[0];
+        private float[] m_LanesFloat = new float[0];
+        private float[] m_LanePreviousFloat = new float[0];
+        private float[] m_LaneCurrentFloat = new float[0];
+        private float[] m_LaneMinFloat = new float[0];
+        /**
+         * The number of cells calculated by the last kernel.
+         */
+        private int m_Cells;
+
+        /**
+         * Makes sure both rows hold at least the given number of cells.
+         *
+         * @param size the number of cells needed
+         */
+        void ensureCapacity(int size) {
+            if (m_Previous.length < size) {
+                m_Previous = new double[size];
+                m_Current = new double[size];
+                m_PreviousFloat = new float[size];
+                m_CurrentFloat = new float[size];
+            }
+        }
+
+        /**
+         * Makes sure both series buffers hold at least the given number of
+         * values.
+         *
+         * @param length the length of the series
+         */
+        void ensureSeriesCapacity(int length) {
+            if (m_First.length < length) {
+                m_First = new double[length];
+                m_Second = new double[length];
+                m_FirstFloat = new float[length];
+                m_SecondFloat = new float[length];
+            }
+        }
+
+        /**
+         * Makes sure the reversed series and the anti-diagonals are large
+         * enough for series of the given length.
+         *
+         * @param length the length of the series
+         */
+        void ensureDiagonalCapacity(int length) {
+            if (m_Reversed.length < length) {
+                m_Reversed = new double[length];
+                m_Diagonal0 = new double[length + 2];
+                m_Diagonal1 = new double[length + 2];
+                m_Diagonal2 = new double[length + 2];
+                m_ReversedFloat = new float[length];
+                m_Diagonal0Float = new float[length + 2];
+                m_Diagonal1Float = new float[length + 2];
+                m_Diagonal2Float = new float[length + 2];
+            }
+        }
+
+        /**
+         * Makes sure the interleaved candidates and rows are large enough for
+         * the lockstep DTW.
+         *
+         * @param count the number of candidates
+         * @param length the length of the series
+         * @param size the number of cells of a row of one candidate
+         */
+        void ensureLockstepCapacity(int count, int length, int size) {
+            if (m_Lanes.length < count * length) {
+                m_Lanes = new double[count * length];
+                m_LanesFloat = new float[count * length];
+            }
+            if (m_LanePrevious.length < count * size) {
+                m_LanePrevious = new double[count * size];
+                m_LaneCurrent = new double[count * size];
+                m_LanePreviousFloat = new float[count * size];
+                m_LaneCurrentFloat = new float[count * size];
+            }
+            if (m_LaneMin.length < count) {
+                m_LaneMin = new double[count];
+                m_LaneMinFloat = new float[count];
+            }
+        }
+    }
 }
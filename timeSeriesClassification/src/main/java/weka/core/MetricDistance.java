@@ -0,0 +1,25 @@
+package weka.core;
+
+/**
+ * Interface of the distance functions that can declare themselves a metric:
+ * with their current settings, the distance returned by
+ * distance(Instance, Instance) is non-negative, symmetric, zero between
+ * identical instances and satisfies the triangle inequality. Nearest
+ * neighbour searches over a metric index (e.g. VPTreeSearch) rely on the
+ * triangle inequality to prune candidates, so a distance function must only
+ * declare itself a metric when it holds for every pair of instances, e.g. an
+ * implementation of ERP or MSM, or DTWDistance without warping.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public interface MetricDistance extends DistanceFunction {
+
+    /**
+     * Returns whether the distance function, with its current settings, is a
+     * metric.
+     *
+     * @return true if distance(Instance, Instance) satisfies the triangle
+     * inequality
+     */
+    boolean isMetric();
+}
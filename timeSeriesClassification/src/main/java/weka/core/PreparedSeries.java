@@ -0,0 +1,261 @@
+package weka.core;
+
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+
+/**
+ * Class holding the time series of a set of instances as contiguous rows of
+ * primitive values. The attributes that make up a series are resolved and
+ * extracted once (the class attribute is always left out), so distance
+ * calculations and lower bounds can work on the rows without touching the
+ * instances again.<br/>
+ * <br/>
+ * Row i holds the series of the i-th instance that was stored, the row of a
+ * stored instance can also be found by identity. The values of an instance are
+ * not tracked after it has been stored.<br/>
+ * <br/>
+ * The rows are held either as doubles (getValues()) or, in single precision,
+ * as floats (getFloatValues()), which halves the memory of the series and the
+ * bandwidth needed to scan them.<br/>
+ * <br/>
+ * Any number of threads may read the rows at the same time, but not while
+ * add(Instance) is called.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class PreparedSeries implements Serializable {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 7480088275605316457L;
+
+    /**
+     * The indices of the attributes that make up a series.
+     */
+    private int[] m_Attributes;
+    /**
+     * The number of stored series.
+     */
+    private int m_NumSeries = 0;
+    /**
+     * The values of all series, one row of m_Attributes.length values after
+     * the other.
+     */
+    private double[] m_Values;
+    /**
+     * The values of all series in single precision, laid out like m_Values
+     * (only one of both arrays is used).
+     */
+    private float[] m_FloatValues;
+    /**
+     * The row of each stored instance.
+     */
+    private IdentityHashMap<Instance, Integer> m_Rows;
+
+    /**
+     * Constructor that stores the series of the given instances.
+     *
+     * @param data the instances to store
+     * @param attributes the indices of the attributes that make up a series,
+     * see seriesAttributes(Instances, Range)
+     */
+    public PreparedSeries(Instances data, int[] attributes) {
+        this(data, attributes, false);
+    }
+
+    /**
+     * Constructor that stores the series of the given instances, in double or
+     * in single precision.
+     *
+     * @param data the instances to store
+     * @param attributes the indices of the attributes that make up a series,
+     * see seriesAttributes(Instances, Range)
+     * @param singlePrecision whether the series are stored as floats
+     */
+    public PreparedSeries(Instances data, int[] attributes, boolean singlePrecision) {
+        m_Attributes = attributes;
+        int size = Math.max(1, data.numInstances()) * m_Attributes.length;
+        if (singlePrecision) {
+            m_FloatValues = new float[size];
+        } else {
+            m_Values = new double[size];
+        }
+        m_Rows = new IdentityHashMap<Instance, Integer>(data.numInstances());
+        for (int i = 0; i < data.numInstances(); i++) {
+            add(data.instance(i));
+        }
+    }
+
+    /**
+     * Returns the indices of the attributes that make up the series of the
+     * given dataset, i.e. the attributes in the range except the class.
+     *
+     * @param data the dataset
+     * @param range the range of attributes to use
+     * @return the attribute indices in ascending order
+     */
+    public static int[] seriesAttributes(Instances data, Range range) {
+        int classIndex = data.classIndex();
+        range.setUpper(data.numAttributes() - 1);
+
+        int count = 0;
+        for (int i = 0; i < data.numAttributes(); i++) {
+            if (i != classIndex && range.isInRange(i)) {
+                count++;
+            }
+        }
+
+        int[] attributes = new int[count];
+        int j = 0;
+        for (int i = 0; i < data.numAttributes(); i++) {
+            if (i != classIndex && range.isInRange(i)) {
+                attributes[j] = i;
+                j++;
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Copies the series of an instance into an array.
+     *
+     * @param inst the instance
+     * @param attributes the indices of the attributes that make up the series
+     * @param dest the array to copy the series to
+     * @param offset the position of the first value in dest
+     */
+    public static void extract(Instance inst, int[] attributes, double[] dest, int offset) {
+        for (int i = 0; i < attributes.length; i++) {
+            dest[offset + i] = inst.value(attributes[i]);
+        }
+    }
+
+    /**
+     * Copies the series of an instance into an array, in single precision.
+     *
+     * @param inst the instance
+     * @param attributes the indices of the attributes that make up the series
+     * @param dest the array to copy the series to
+     * @param offset the position of the first value in dest
+     */
+    public static void extract(Instance inst, int[] attributes, float[] dest, int offset) {
+        for (int i = 0; i < attributes.length; i++) {
+            dest[offset + i] = (float) inst.value(attributes[i]);
+        }
+    }
+
+    /**
+     * Copies the series of an instance into an array.
+     *
+     * @param inst the instance
+     * @param dest the array to copy the series to
+     * @param offset the position of the first value in dest
+     */
+    public void extract(Instance inst, double[] dest, int offset) {
+        extract(inst, m_Attributes, dest, offset);
+    }
+
+    /**
+     * Stores the series of another instance in a new row.
+     *
+     * @param inst the instance to add
+     */
+    public void add(Instance inst) {
+        int length = m_Attributes.length;
+        if (m_FloatValues != null) {
+            if ((m_NumSeries + 1) * length > m_FloatValues.length) {
+                float[] values = new float[Math.max(2 * m_FloatValues.length, (m_NumSeries + 1) * length)];
+                System.arraycopy(m_FloatValues, 0, values, 0, m_NumSeries * length);
+                m_FloatValues = values;
+            }
+            extract(inst, m_Attributes, m_FloatValues, m_NumSeries * length);
+        } else {
+            if ((m_NumSeries + 1) * length > m_Values.length) {
+                double[] values = new double[Math.max(2 * m_Values.length, (m_NumSeries + 1) * length)];
+                System.arraycopy(m_Values, 0, values, 0, m_NumSeries * length);
+                m_Values = values;
+            }
+            extract(inst, m_Values, m_NumSeries * length);
+        }
+        m_Rows.put(inst, m_NumSeries);
+        m_NumSeries++;
+    }
+
+    /**
+     * Returns the row of a stored instance.
+     *
+     * @param inst the instance
+     * @return the row of the instance, or -1 if it is not stored
+     */
+    public int indexOf(Instance inst) {
+        Integer row = m_Rows.get(inst);
+        return row == null ? -1 : row;
+    }
+
+    /**
+     * Returns the values of all rows. Row i starts at offset(i).
+     *
+     * @return the values, or null if the series are stored in single
+     * precision
+     */
+    public double[] getValues() {
+        return m_Values;
+    }
+
+    /**
+     * Returns the values of all rows in single precision. Row i starts at
+     * offset(i).
+     *
+     * @return the values, or null if the series are stored in double precision
+     */
+    public float[] getFloatValues() {
+        return m_FloatValues;
+    }
+
+    /**
+     * Returns whether the series are stored in single precision.
+     *
+     * @return true if the rows are held as floats
+     */
+    public boolean isSinglePrecision() {
+        return m_FloatValues != null;
+    }
+
+    /**
+     * Returns the position of the first value of a row.
+     *
+     * @param row the row
+     * @return the offset of the row in getValues()
+     */
+    public int offset(int row) {
+        return row * m_Attributes.length;
+    }
+
+    /**
+     * Returns the length of the series.
+     *
+     * @return the number of values in a row
+     */
+    public int getLength() {
+        return m_Attributes.length;
+    }
+
+    /**
+     * Returns the number of stored series.
+     *
+     * @return the number of rows
+     */
+    public int numSeries() {
+        return m_NumSeries;
+    }
+
+    /**
+     * Returns the indices of the attributes that make up a series.
+     *
+     * @return the attribute indices
+     */
+    public int[] getAttributes() {
+        return m_Attributes;
+    }
+}
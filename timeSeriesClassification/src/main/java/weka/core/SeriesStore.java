@@ -0,0 +1,450 @@
+package weka.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Class giving access to a set of fixed-length time series stored in a compact
+ * binary file, so datasets that do not fit in the heap can be searched. The
+ * rows of the series and the class column are memory-mapped and never loaded
+ * as instances, only the instances that are asked for are built.<br/>
+ * <br/>
+ * The file holds, in big-endian order:
+ * <ul>
+ * <li>a header: the magic number, the version, the length of the series, the
+ * class index, the number of series, the position of the first row, the ARFF
+ * header of the dataset (UTF-8) and the indices of the attributes that make up
+ * a series</li>
+ * <li>the series, one row of doubles after the other, starting at a position
+ * aligned to 8 bytes</li>
+ * <li>the class column, one double per series</li>
+ * </ul>
+ * <br/>
+ * Valid options for the converter (main) are:
+ * <p/>
+ *
+ * <pre> -i &lt;file&gt;
+ *  The ARFF file to convert.</pre>
+ *
+ * <pre> -o &lt;file&gt;
+ *  The series store file to write.</pre>
+ *
+ * <pre> -c &lt;index&gt;
+ *  The index of the class attribute, 'first' and 'last' are accepted.
+ *  (default last)</pre>
+ *
+ * <pre> -R &lt;col1,col2-col4,...&gt;
+ *  Specifies list of columns that make up the series.
+ *  (default: first-last)</pre>
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SeriesStore implements Serializable {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 5603738405025561016L;
+
+    /**
+     * The magic number at the beginning of a series store ("TSS1").
+     */
+    public static final int MAGIC = 0x54535331;
+    /**
+     * The version of the format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The largest number of bytes mapped in one region.
+     */
+    private static final long MAP_SIZE = 1L << 30;
+    /**
+     * The file of the store.
+     */
+    private File m_File;
+    /**
+     * The structure of the dataset, without instances.
+     */
+    private transient Instances m_Structure;
+    /**
+     * The indices of the attributes that make up a series.
+     */
+    private transient int[] m_Attributes;
+    /**
+     * The number of stored series.
+     */
+    private transient int m_NumSeries;
+    /**
+     * The number of rows held by each mapped region.
+     */
+    private transient int m_RowsPerRegion;
+    /**
+     * The mapped regions of the rows.
+     */
+    private transient DoubleBuffer[] m_Regions;
+    /**
+     * The mapped class column.
+     */
+    private transient DoubleBuffer m_Classes;
+
+    /**
+     * Constructor that maps the given series store file.
+     *
+     * @param file the file written by write() or the converter
+     * @throws IOException if the file cannot be read or is not a series store
+     */
+    public SeriesStore(File file) throws IOException {
+        m_File = file;
+        open();
+    }
+
+    /**
+     * Reads the header and maps the rows and the class column.
+     *
+     * @throws IOException if the file cannot be read or is not a series store
+     */
+    private void open() throws IOException {
+        long dataOffset;
+        int length;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_File)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(m_File + " is not a series store.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported series store version: " + version);
+            }
+            length = in.readInt();
+            int classIndex = in.readInt();
+            long numSeries = in.readLong();
+            if (numSeries > Integer.MAX_VALUE) {
+                throw new IOException("Too many series: " + numSeries);
+            }
+            m_NumSeries = (int) numSeries;
+            dataOffset = in.readLong();
+
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            m_Structure = new Instances(new BufferedReader(new StringReader(new String(header, "UTF-8"))));
+            m_Structure.setClassIndex(classIndex);
+
+            m_Attributes = new int[length];
+            for (int i = 0; i < length; i++) {
+                m_Attributes[i] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+
+        // the mappings stay valid once the channel is closed
+        RandomAccessFile raf = new RandomAccessFile(m_File, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long rowSize = 8L * Math.max(1, length);
+            m_RowsPerRegion = (int) Math.max(1, MAP_SIZE / rowSize);
+            int numRegions = (m_NumSeries + m_RowsPerRegion - 1) / m_RowsPerRegion;
+            m_Regions = new DoubleBuffer[numRegions];
+            for (int i = 0; i < numRegions; i++) {
+                long first = (long) i * m_RowsPerRegion;
+                long rows = Math.min(m_RowsPerRegion, m_NumSeries - first);
+                m_Regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * 8L * length,
+                        rows * 8L * length).asDoubleBuffer();
+            }
+            m_Classes = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 8L * m_NumSeries * length,
+                    8L * m_NumSeries).asDoubleBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps the file again after deserialization.
+     *
+     * @param in the stream to read from
+     * @throws IOException if the file cannot be read
+     * @throws ClassNotFoundException if a class cannot be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        open();
+    }
+
+    /**
+     * Copies consecutive rows into an array.
+     *
+     * @param row the first row to copy
+     * @param count the number of rows to copy
+     * @param dest the array to copy the rows to
+     * @param offset the position of the first value in dest
+     */
+    public void read(int row, int count, double[] dest, int offset) {
+        int length = m_Attributes.length;
+        while (count > 0) {
+            int region = row / m_RowsPerRegion;
+            int first = row - region * m_RowsPerRegion;
+            int rows = Math.min(count, m_RowsPerRegion - first);
+
+            // a view per read keeps concurrent readers apart
+            DoubleBuffer view = m_Regions[region].duplicate();
+            view.position(first * length);
+            view.get(dest, offset, rows * length);
+
+            row += rows;
+            count -= rows;
+            offset += rows * length;
+        }
+    }
+
+    /**
+     * Returns the class value of a series.
+     *
+     * @param row the row of the series
+     * @return the class value, missing if the class was missing
+     */
+    public double classValue(int row) {
+        return m_Classes.get(row);
+    }
+
+    /**
+     * Builds the instance of a series, with the structure of the dataset. The
+     * attributes that are not part of the series are missing.
+     *
+     * @param row the row of the series
+     * @return the instance
+     */
+    public Instance instance(int row) {
+        double[] values = new double[m_Structure.numAttributes()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Utils.missingValue();
+        }
+
+        double[] series = new double[m_Attributes.length];
+        read(row, 1, series, 0);
+        for (int i = 0; i < m_Attributes.length; i++) {
+            values[m_Attributes[i]] = series[i];
+        }
+        if (m_Structure.classIndex() >= 0) {
+            values[m_Structure.classIndex()] = classValue(row);
+        }
+
+        Instance inst = new DenseInstance(1, values);
+        inst.setDataset(m_Structure);
+        return inst;
+    }
+
+    /**
+     * Returns the structure of the dataset, without instances.
+     *
+     * @return the structure
+     */
+    public Instances getStructure() {
+        return m_Structure;
+    }
+
+    /**
+     * Returns the indices of the attributes that make up a series.
+     *
+     * @return the attribute indices
+     */
+    public int[] getAttributes() {
+        return m_Attributes;
+    }
+
+    /**
+     * Returns the length of the series.
+     *
+     * @return the number of values in a row
+     */
+    public int getLength() {
+        return m_Attributes.length;
+    }
+
+    /**
+     * Returns the number of stored series.
+     *
+     * @return the number of rows
+     */
+    public int numSeries() {
+        return m_NumSeries;
+    }
+
+    /**
+     * Returns the file of the store.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return m_File;
+    }
+
+    /**
+     * Writes a dataset to a series store file.
+     *
+     * @param data the instances to store, with the class index set
+     * @param attributes the indices of the attributes that make up a series,
+     * see PreparedSeries.seriesAttributes(Instances, Range)
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Instances data, int[] attributes, File file) throws IOException {
+        StoreWriter writer = new StoreWriter(data, attributes, file);
+        for (int i = 0; i < data.numInstances(); i++) {
+            writer.add(data.instance(i));
+        }
+        writer.close();
+    }
+
+    /**
+     * Converts an ARFF file (or any file Weka can load) to a series store,
+     * reading it incrementally so it does not have to fit in the heap.
+     *
+     * @param args the commandline options
+     */
+    public static void main(String[] args) {
+        try {
+            String input = Utils.getOption('i', args);
+            String output = Utils.getOption('o', args);
+            if (input.length() == 0 || output.length() == 0) {
+                throw new Exception("Usage: SeriesStore -i <input file> -o <series store file> "
+                        + "[-c <class index>] [-R <range>]");
+            }
+
+            DataSource source = new DataSource(input);
+            Instances structure = source.getStructure();
+
+            String classIndex = Utils.getOption('c', args);
+            if (classIndex.length() == 0 || classIndex.equals("last")) {
+                structure.setClassIndex(structure.numAttributes() - 1);
+            } else if (classIndex.equals("first")) {
+                structure.setClassIndex(0);
+            } else {
+                structure.setClassIndex(Integer.parseInt(classIndex) - 1);
+            }
+
+            String range = Utils.getOption('R', args);
+            int[] attributes = PreparedSeries.seriesAttributes(structure,
+                    new Range(range.length() != 0 ? range : "first-last"));
+
+            StoreWriter writer = new StoreWriter(structure, attributes, new File(output));
+            while (source.hasMoreElements(structure)) {
+                writer.add(source.nextElement(structure));
+            }
+            writer.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Internal class writing a series store one instance at a time. The rows
+     * are written as they come, the class column is kept in a temporary file
+     * and appended when the writer is closed.
+     */
+    static class StoreWriter {
+
+        private final File m_File;
+        private final File m_ClassFile;
+        private final int[] m_Attributes;
+        private final DataOutputStream m_Rows;
+        private final DataOutputStream m_Classes;
+        private final double[] m_Series;
+        private long m_NumSeries = 0;
+
+        /**
+         * Constructor that writes the header.
+         *
+         * @param structure the structure of the dataset
+         * @param attributes the indices of the attributes that make up a series
+         * @param file the file to write
+         * @throws IOException if the file cannot be written
+         */
+        StoreWriter(Instances structure, int[] attributes, File file) throws IOException {
+            m_File = file;
+            m_Attributes = attributes;
+            m_Series = new double[attributes.length];
+
+            byte[] header = new Instances(structure, 0).toString().getBytes("UTF-8");
+            long headerSize = 4 * 4 + 8 + 8 + 4 + header.length + 4L * attributes.length;
+            long dataOffset = (headerSize + 7) / 8 * 8;
+
+            m_Rows = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            m_Rows.writeInt(MAGIC);
+            m_Rows.writeInt(VERSION);
+            m_Rows.writeInt(attributes.length);
+            m_Rows.writeInt(structure.classIndex());
+            m_Rows.writeLong(0); // the number of series, written on close
+            m_Rows.writeLong(dataOffset);
+            m_Rows.writeInt(header.length);
+            m_Rows.write(header);
+            for (int i = 0; i < attributes.length; i++) {
+                m_Rows.writeInt(attributes[i]);
+            }
+            for (long i = headerSize; i < dataOffset; i++) {
+                m_Rows.writeByte(0);
+            }
+
+            m_ClassFile = File.createTempFile("classes", ".tmp", file.getAbsoluteFile().getParentFile());
+            m_Classes = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_ClassFile)));
+        }
+
+        /**
+         * Writes the series and the class of an instance.
+         *
+         * @param inst the instance
+         * @throws IOException if the file cannot be written
+         */
+        void add(Instance inst) throws IOException {
+            PreparedSeries.extract(inst, m_Attributes, m_Series, 0);
+            for (int i = 0; i < m_Series.length; i++) {
+                m_Rows.writeDouble(m_Series[i]);
+            }
+            m_Classes.writeDouble(inst.classIndex() >= 0 ? inst.classValue() : Utils.missingValue());
+            m_NumSeries++;
+        }
+
+        /**
+         * Appends the class column and writes the number of series.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        void close() throws IOException {
+            m_Classes.close();
+            InputStream classes = new BufferedInputStream(new FileInputStream(m_ClassFile));
+            try {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while ((read = classes.read(buffer)) > 0) {
+                    m_Rows.write(buffer, 0, read);
+                }
+            } finally {
+                classes.close();
+                m_Rows.close();
+                m_ClassFile.delete();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(m_File, "rw");
+            try {
+                raf.seek(16);
+                raf.writeLong(m_NumSeries);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
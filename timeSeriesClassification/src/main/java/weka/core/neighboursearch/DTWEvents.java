@@ -0,0 +1,413 @@
+package weka.core.neighboursearch;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Class holding the Java Flight Recorder events of the DTW nearest neighbour
+ * searches:
+ * <ul>
+ * <li>weka.DTWQuery: one query, with its pruning counts</li>
+ * <li>weka.DTWBatch: one batch search, with the counts summed over its
+ * queries</li>
+ * <li>weka.DTWEnvelope: the envelopes computed for a query, a tile of queries
+ * or the training series</li>
+ * <li>weka.DTWLowerBoundPhase and weka.DTWPhase: the time a scan spent in the
+ * cascade of lower bounds and in DTW</li>
+ * </ul>
+ * The phase events are disabled by default: the lower bounds and DTW
+ * alternate for every candidate of a scan in the order of the dataset, so the
+ * time of each phase is measured per candidate, which costs two clock reads
+ * per candidate while they are enabled.
+ *
+ * <p/>
+ * Events are only created when Flight Recorder is available and the event is
+ * enabled, otherwise the begin methods return null and the searches skip the
+ * events. The classes of the events are not loaded on a Java runtime without
+ * Flight Recorder.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+final class DTWEvents {
+
+    /**
+     * Whether the Java runtime has Flight Recorder.
+     */
+    static final boolean AVAILABLE = isAvailable();
+
+    private DTWEvents() {
+    }
+
+    /**
+     * Checks whether the Flight Recorder API is available.
+     *
+     * @return true if jdk.jfr.Event can be loaded
+     */
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, DTWEvents.class.getClassLoader());
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Begins the event of a query.
+     *
+     * @return the event, or null if it is not recorded
+     */
+    static QueryEvent beginQuery() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        QueryEvent event = new QueryEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event of a query.
+     *
+     * @param event the event
+     * @param length the length of the series
+     * @param window the width of the warping window
+     * @param k the number of neighbours
+     * @param counts the counts of the query
+     */
+    static void commitQuery(QueryEvent event, int length, int window, int k, DTWPerformanceStats counts) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.window = window;
+            event.k = k;
+            event.candidates = counts.m_CandidateCount;
+            event.kimPruned = counts.m_KimCount;
+            event.keoghPruned = counts.m_KeoghCount;
+            event.reversedKeoghPruned = counts.m_ReversedKeoghCount;
+            event.orderPruned = counts.m_OrderCount;
+            event.indexPruned = counts.m_IndexCount;
+            event.dtwCalculated = counts.m_DTWCount;
+            event.dtwAbandoned = counts.m_AbandonedCount;
+            event.cells = counts.m_CellCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the event of a batch search.
+     *
+     * @return the event, or null if it is not recorded
+     */
+    static BatchEvent beginBatch() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        BatchEvent event = new BatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event of a batch search.
+     *
+     * @param event the event
+     * @param length the length of the series
+     * @param window the width of the warping window
+     * @param k the number of neighbours
+     * @param counts the counts of every query of the batch
+     */
+    static void commitBatch(BatchEvent event, int length, int window, int k, DTWPerformanceStats[] counts) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.window = window;
+            event.k = k;
+            event.queries = counts.length;
+            for (DTWPerformanceStats c : counts) {
+                event.candidates += c.m_CandidateCount;
+                event.kimPruned += c.m_KimCount;
+                event.keoghPruned += c.m_KeoghCount;
+                event.reversedKeoghPruned += c.m_ReversedKeoghCount;
+                event.orderPruned += c.m_OrderCount;
+                event.indexPruned += c.m_IndexCount;
+                event.dtwCalculated += c.m_DTWCount;
+                event.dtwAbandoned += c.m_AbandonedCount;
+                event.cells += c.m_CellCount;
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the event of an envelope computation.
+     *
+     * @return the event, or null if it is not recorded
+     */
+    static EnvelopeEvent beginEnvelope() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        EnvelopeEvent event = new EnvelopeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event of an envelope computation.
+     *
+     * @param event the event
+     * @param length the length of the series
+     * @param window the width of the envelopes
+     * @param series the number of envelopes computed
+     * @param training whether the envelopes are the ones of training series
+     */
+    static void commitEnvelope(EnvelopeEvent event, int length, int window, int series, boolean training) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.window = window;
+            event.series = series;
+            event.training = training;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the event of the lower bound phase of a scan.
+     *
+     * @return the event, or null if it is not recorded
+     */
+    static LowerBoundPhaseEvent beginLowerBoundPhase() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        LowerBoundPhaseEvent event = new LowerBoundPhaseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event of the lower bound phase of a scan.
+     *
+     * @param event the event
+     * @param length the length of the series
+     * @param window the width of the warping window
+     * @param time the nanoseconds spent in the lower bounds
+     * @param counts the counts of the scan
+     */
+    static void commitLowerBoundPhase(LowerBoundPhaseEvent event, int length, int window, long time,
+            DTWPerformanceStats counts) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.window = window;
+            event.time = time;
+            event.candidates = counts.m_CandidateCount;
+            event.pruned = counts.m_KimCount + counts.m_KeoghCount + counts.m_ReversedKeoghCount
+                    + counts.m_OrderCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the event of the DTW phase of a scan.
+     *
+     * @return the event, or null if it is not recorded
+     */
+    static DTWPhaseEvent beginDTWPhase() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        DTWPhaseEvent event = new DTWPhaseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event of the DTW phase of a scan.
+     *
+     * @param event the event
+     * @param length the length of the series
+     * @param window the width of the warping window
+     * @param time the nanoseconds spent in DTW
+     * @param counts the counts of the scan
+     */
+    static void commitDTWPhase(DTWPhaseEvent event, int length, int window, long time, DTWPerformanceStats counts) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.window = window;
+            event.time = time;
+            event.dtwCalculated = counts.m_DTWCount;
+            event.dtwAbandoned = counts.m_AbandonedCount;
+            event.cells = counts.m_CellCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Event of one query.
+     */
+    @Name("weka.DTWQuery")
+    @Label("DTW Query")
+    @Category({"Weka", "DTW Search"})
+    @Description("The k nearest neighbours of one query")
+    @StackTrace(false)
+    static class QueryEvent extends Event {
+
+        @Label("Length")
+        int length;
+        @Label("Window")
+        int window;
+        @Label("Neighbours")
+        int k;
+        @Label("Candidates")
+        long candidates;
+        @Label("Pruned by LB_Kim")
+        long kimPruned;
+        @Label("Pruned by LB_Keogh")
+        long keoghPruned;
+        @Label("Pruned by Reversed LB_Keogh")
+        long reversedKeoghPruned;
+        @Label("Pruned by Order")
+        long orderPruned;
+        @Label("Pruned by the Index")
+        long indexPruned;
+        @Label("DTW Calculated")
+        long dtwCalculated;
+        @Label("DTW Abandoned")
+        long dtwAbandoned;
+        @Label("DTW Cells")
+        long cells;
+    }
+
+    /**
+     * Event of one batch search.
+     */
+    @Name("weka.DTWBatch")
+    @Label("DTW Batch")
+    @Category({"Weka", "DTW Search"})
+    @Description("The k nearest neighbours of a set of queries")
+    @StackTrace(false)
+    static class BatchEvent extends Event {
+
+        @Label("Length")
+        int length;
+        @Label("Window")
+        int window;
+        @Label("Neighbours")
+        int k;
+        @Label("Queries")
+        int queries;
+        @Label("Candidates")
+        long candidates;
+        @Label("Pruned by LB_Kim")
+        long kimPruned;
+        @Label("Pruned by LB_Keogh")
+        long keoghPruned;
+        @Label("Pruned by Reversed LB_Keogh")
+        long reversedKeoghPruned;
+        @Label("Pruned by Order")
+        long orderPruned;
+        @Label("Pruned by the Index")
+        long indexPruned;
+        @Label("DTW Calculated")
+        long dtwCalculated;
+        @Label("DTW Abandoned")
+        long dtwAbandoned;
+        @Label("DTW Cells")
+        long cells;
+    }
+
+    /**
+     * Event of an envelope computation.
+     */
+    @Name("weka.DTWEnvelope")
+    @Label("DTW Envelope")
+    @Category({"Weka", "DTW Search"})
+    @Description("The envelopes of a query, a tile of queries or the training series")
+    @StackTrace(false)
+    static class EnvelopeEvent extends Event {
+
+        @Label("Length")
+        int length;
+        @Label("Window")
+        int window;
+        @Label("Series")
+        int series;
+        @Label("Training Series")
+        boolean training;
+    }
+
+    /**
+     * Event of the lower bound phase of a scan.
+     */
+    @Name("weka.DTWLowerBoundPhase")
+    @Label("DTW Lower Bound Phase")
+    @Category({"Weka", "DTW Search"})
+    @Description("The cascade of lower bounds of a scan of candidates")
+    @StackTrace(false)
+    @Enabled(false)
+    static class LowerBoundPhaseEvent extends Event {
+
+        @Label("Length")
+        int length;
+        @Label("Window")
+        int window;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+        @Label("Candidates")
+        long candidates;
+        @Label("Pruned")
+        long pruned;
+    }
+
+    /**
+     * Event of the DTW phase of a scan.
+     */
+    @Name("weka.DTWPhase")
+    @Label("DTW Phase")
+    @Category({"Weka", "DTW Search"})
+    @Description("The DTW calculations of a scan of candidates")
+    @StackTrace(false)
+    @Enabled(false)
+    static class DTWPhaseEvent extends Event {
+
+        @Label("Length")
+        int length;
+        @Label("Window")
+        int window;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+        @Label("DTW Calculated")
+        long dtwCalculated;
+        @Label("DTW Abandoned")
+        long dtwAbandoned;
+        @Label("DTW Cells")
+        long cells;
+    }
+}
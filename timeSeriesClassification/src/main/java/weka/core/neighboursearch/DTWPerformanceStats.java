@@ -0,0 +1,284 @@
+package weka.core.neighboursearch;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * Class collecting the performance statistics of a DTW nearest neighbour
+ * search. On top of the points (candidates) and coordinates (cells of the DTW
+ * matrices) counted by PerformanceStats, and the nodes of an index counted by
+ * TreePerformanceStats, it counts per query and in total how many candidates
+ * each lower bound pruned and how many DTW calculations were made and
+ * abandoned early. The counts are available as additional measures (e.g. in
+ * the output of IBk) and as DTWSearchMetrics snapshots.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class DTWPerformanceStats extends TreePerformanceStats {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 2565237661885371681L;
+
+    /**
+     * The counts of the current (or last) query.
+     */
+    protected long m_CandidateCount, m_KimCount, m_KeoghCount, m_ReversedKeoghCount, m_OrderCount,
+            m_IndexCount, m_DTWCount, m_AbandonedCount, m_CellCount;
+    /**
+     * The counts of all queries.
+     */
+    protected long m_TotalQueries, m_TotalCandidates, m_TotalKim, m_TotalKeogh, m_TotalReversedKeogh,
+            m_TotalOrder, m_TotalIndex, m_TotalDTW, m_TotalAbandoned, m_TotalCells;
+
+    /**
+     * Resets all the counts.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        m_TotalQueries = 0;
+        m_TotalCandidates = 0;
+        m_TotalKim = 0;
+        m_TotalKeogh = 0;
+        m_TotalReversedKeogh = 0;
+        m_TotalOrder = 0;
+        m_TotalIndex = 0;
+        m_TotalDTW = 0;
+        m_TotalAbandoned = 0;
+        m_TotalCells = 0;
+        clearQuery();
+    }
+
+    /**
+     * Resets the counts of the current query.
+     */
+    private void clearQuery() {
+        m_CandidateCount = 0;
+        m_KimCount = 0;
+        m_KeoghCount = 0;
+        m_ReversedKeoghCount = 0;
+        m_OrderCount = 0;
+        m_IndexCount = 0;
+        m_DTWCount = 0;
+        m_AbandonedCount = 0;
+        m_CellCount = 0;
+    }
+
+    /**
+     * Signals the start of a query.
+     */
+    @Override
+    public void searchStart() {
+        super.searchStart();
+        clearQuery();
+    }
+
+    /**
+     * Signals the end of a query and adds its counts to the totals.
+     */
+    @Override
+    public void searchFinish() {
+        super.searchFinish();
+        m_TotalQueries++;
+        m_TotalCandidates += m_CandidateCount;
+        m_TotalKim += m_KimCount;
+        m_TotalKeogh += m_KeoghCount;
+        m_TotalReversedKeogh += m_ReversedKeoghCount;
+        m_TotalOrder += m_OrderCount;
+        m_TotalIndex += m_IndexCount;
+        m_TotalDTW += m_DTWCount;
+        m_TotalAbandoned += m_AbandonedCount;
+        m_TotalCells += m_CellCount;
+    }
+
+    /**
+     * Counts a candidate scanned by the current query.
+     */
+    @Override
+    public void incrPointCount() {
+        super.incrPointCount();
+        m_CandidateCount++;
+    }
+
+    /**
+     * Counts a candidate pruned by LB_Kim.
+     */
+    public void incrKimCount() {
+        m_KimCount++;
+    }
+
+    /**
+     * Counts a candidate pruned by LB_Keogh with the envelope of the query.
+     */
+    public void incrKeoghCount() {
+        m_KeoghCount++;
+    }
+
+    /**
+     * Counts a candidate pruned by LB_Keogh with the envelope of the
+     * candidate.
+     */
+    public void incrReversedKeoghCount() {
+        m_ReversedKeoghCount++;
+    }
+
+    /**
+     * Counts the candidates a scan in the order of the lower bounds skipped.
+     *
+     * @param n the number of candidates skipped
+     */
+    public void updateOrderCount(int n) {
+        m_OrderCount += n;
+    }
+
+    /**
+     * Counts the candidates pruned by the lower bounds of an index, e.g. all
+     * the candidates below a node of the index at once. They are counted as
+     * candidates of the query, but not as points visited.
+     *
+     * @param n the number of candidates pruned
+     */
+    public void updateIndexCount(int n) {
+        m_IndexCount += n;
+        m_CandidateCount += n;
+    }
+
+    /**
+     * Counts a DTW calculation.
+     *
+     * @param abandoned whether the calculation was abandoned early
+     */
+    public void incrDTWCount(boolean abandoned) {
+        m_DTWCount++;
+        if (abandoned) {
+            m_AbandonedCount++;
+        }
+    }
+
+    /**
+     * Counts the cells of a DTW calculation, which are the coordinates
+     * visited by a DTW search.
+     *
+     * @param cells the number of cells calculated
+     */
+    public void incrCellCount(int cells) {
+        m_CellCount += cells;
+        m_CoordCount += cells;
+    }
+
+    /**
+     * Adds the counts of the current query of other statistics to the ones of
+     * the current query, e.g. the counts of the workers a query was split
+     * across.
+     *
+     * @param other the statistics to add
+     */
+    public void add(DTWPerformanceStats other) {
+        m_PointCount += other.m_CandidateCount - other.m_IndexCount;
+        m_CoordCount += other.m_CellCount;
+        m_LeafCount += other.m_LeafCount;
+        m_IntNodeCount += other.m_IntNodeCount;
+        m_CandidateCount += other.m_CandidateCount;
+        m_KimCount += other.m_KimCount;
+        m_KeoghCount += other.m_KeoghCount;
+        m_ReversedKeoghCount += other.m_ReversedKeoghCount;
+        m_OrderCount += other.m_OrderCount;
+        m_IndexCount += other.m_IndexCount;
+        m_DTWCount += other.m_DTWCount;
+        m_AbandonedCount += other.m_AbandonedCount;
+        m_CellCount += other.m_CellCount;
+    }
+
+    /**
+     * Returns the counts of the current (or last) query.
+     *
+     * @return a snapshot of the counts
+     */
+    public DTWSearchMetrics getQueryMetrics() {
+        return new DTWSearchMetrics(1, m_CandidateCount, m_KimCount, m_KeoghCount, m_ReversedKeoghCount,
+                m_OrderCount, m_IndexCount, m_DTWCount, m_AbandonedCount, m_CellCount);
+    }
+
+    /**
+     * Returns the counts of all finished queries.
+     *
+     * @return a snapshot of the counts
+     */
+    public DTWSearchMetrics getTotalMetrics() {
+        return new DTWSearchMetrics(m_TotalQueries, m_TotalCandidates, m_TotalKim, m_TotalKeogh,
+                m_TotalReversedKeogh, m_TotalOrder, m_TotalIndex, m_TotalDTW, m_TotalAbandoned, m_TotalCells);
+    }
+
+    /**
+     * Returns a string representing the statistics.
+     *
+     * @return the statistics
+     */
+    @Override
+    public String getStats() {
+        StringBuilder buf = new StringBuilder(super.getStats());
+        buf.append("Candidates pruned by LB_Kim:           ").append(m_TotalKim).append("\n");
+        buf.append("Candidates pruned by LB_Keogh:         ").append(m_TotalKeogh).append("\n");
+        buf.append("Candidates pruned by reversed LB_Keogh: ").append(m_TotalReversedKeogh).append("\n");
+        buf.append("Candidates pruned by order:            ").append(m_TotalOrder).append("\n");
+        buf.append("Candidates pruned by the index:        ").append(m_TotalIndex).append("\n");
+        buf.append("DTW calculated:                        ").append(m_TotalDTW).append("\n");
+        buf.append("DTW abandoned:                         ").append(m_TotalAbandoned).append("\n");
+        return buf.toString();
+    }
+
+    /**
+     * Returns an enumeration of the additional measure names.
+     *
+     * @return an enumeration of the measure names
+     */
+    @Override
+    public Enumeration<String> enumerateMeasures() {
+        Vector<String> newVector = new Vector<String>();
+        Enumeration<?> en = super.enumerateMeasures();
+        while (en.hasMoreElements()) {
+            newVector.addElement((String) en.nextElement());
+        }
+        newVector.addElement("measureTotal_kim_pruned");
+        newVector.addElement("measureTotal_keogh_pruned");
+        newVector.addElement("measureTotal_reversed_keogh_pruned");
+        newVector.addElement("measureTotal_order_pruned");
+        newVector.addElement("measureTotal_index_pruned");
+        newVector.addElement("measureTotal_dtw_calculated");
+        newVector.addElement("measureTotal_dtw_abandoned");
+        newVector.addElement("measurePruning_rate");
+        return newVector.elements();
+    }
+
+    /**
+     * Returns the value of the named measure.
+     *
+     * @param additionalMeasureName the name of the measure to query for its
+     * value
+     * @return the value of the named measure
+     * @throws IllegalArgumentException if the named measure is not supported
+     */
+    @Override
+    public double getMeasure(String additionalMeasureName) {
+        if (additionalMeasureName.compareToIgnoreCase("measureTotal_kim_pruned") == 0) {
+            return m_TotalKim;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_keogh_pruned") == 0) {
+            return m_TotalKeogh;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_reversed_keogh_pruned") == 0) {
+            return m_TotalReversedKeogh;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_order_pruned") == 0) {
+            return m_TotalOrder;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_index_pruned") == 0) {
+            return m_TotalIndex;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_dtw_calculated") == 0) {
+            return m_TotalDTW;
+        } else if (additionalMeasureName.compareToIgnoreCase("measureTotal_dtw_abandoned") == 0) {
+            return m_TotalAbandoned;
+        } else if (additionalMeasureName.compareToIgnoreCase("measurePruning_rate") == 0) {
+            return getTotalMetrics().getPruningRate();
+        }
+        return super.getMeasure(additionalMeasureName);
+    }
+}
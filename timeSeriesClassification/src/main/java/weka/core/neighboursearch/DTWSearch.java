@@ -2,6 +2,10 @@ package weka.core.neighboursearch;
 
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import weka.core.*;
 
 /**
@@ -16,16 +20,132 @@ import weka.core.*;
  */
 public class DTWSearch extends NearestNeighbourSearch {
 
+    /**
+     * No lower bounds, every candidate is compared with (early abandoning)
+     * DTW.
+     */
+    public static final int LB_NONE = 0;
+    /**
+     * LB_Keogh with the envelope of the query.
+     */
+    public static final int LB_KEOGH = 1;
+    /**
+     * LB_Kim (first and last points), then LB_Keogh with the envelope of the
+     * query.
+     */
+    public static final int LB_KIM_KEOGH = 2;
+    /**
+     * LB_Kim, LB_Keogh with the envelope of the query and LB_Keogh with the
+     * envelope of the candidate.
+     */
+    public static final int LB_CASCADE = 3;
+    /**
+     * The lower bound cascades.
+     */
+    public static final Tag[] TAGS_LOWER_BOUND = {
+        new Tag(LB_NONE, "No lower bounds"),
+        new Tag(LB_KEOGH, "LB_Keogh"),
+        new Tag(LB_KIM_KEOGH, "LB_Kim, LB_Keogh"),
+        new Tag(LB_CASCADE, "LB_Kim, LB_Keogh, reversed LB_Keogh")};
+    /**
+     * The lower bounds tried before DTW is calculated.
+     */
+    protected int m_LowerBound = LB_CASCADE;
+    /**
+     * Whether the candidates are visited in ascending order of their lower
+     * bounds instead of in the order of the dataset.
+     */
+    protected boolean m_OrderCandidates = false;
+    /**
+     * The number of threads a query is split across (0 for one per available
+     * processor).
+     */
+    protected int m_NumExecutionSlots = 1;
+    /**
+     * The smallest number of candidates scanned by one worker.
+     */
+    static final int MIN_CHUNK = 64;
+    /**
+     * The number of points LB_Keogh sums between two checks of the cut off.
+     */
+    private static final int LB_BLOCK = 16;
+    /**
+     * The pool the scans are split across.
+     */
+    private transient ForkJoinPool m_Pool = null;
+    /**
+     * The number of queries compared with a tile of training series at a time
+     * by the batch search.
+     */
+    private static final int QUERY_TILE = 16;
+    /**
+     * The number of training values (of the series and their envelopes each)
+     * in a tile of the batch search, small enough to stay in cache while a
+     * tile of queries is compared with it.
+     */
+    private static final int TRAINING_TILE = 8192;
     /**
      * Whether to skip instances from the neighbor that are identical to the
      * query instance.
      */
     protected boolean m_SkipIdentical = false;
     /**
-     * Array holding the distances of the nearest neighbor. It is filled up by
-     * both nearestNeighbour() and kNearestNeighbours().
+     * Array holding the distances of the nearest neighbours, in the order of
+     * the neighbours returned. It is filled up by both nearestNeighbour() and
+     * kNearestNeighbours().
      */
     protected double[] m_Distances;
+    /**
+     * The distances of the nearest neighbours of every query of the last batch
+     * search.
+     */
+    protected double[][] m_BatchDistances;
+    /**
+     * The lower bounds of the envelopes of the training series, laid out in
+     * rows like the prepared series.
+     */
+    protected double[] m_LowerEnvelopes = new double[0];
+    /**
+     * The upper bounds of the envelopes of the training series, laid out in
+     * rows like the prepared series.
+     */
+    protected double[] m_UpperEnvelopes = new double[0];
+    /**
+     * The lower bounds of the envelopes of the training series when they are
+     * prepared in single precision.
+     */
+    protected float[] m_LowerEnvelopesFloat = new float[0];
+    /**
+     * The upper bounds of the envelopes of the training series when they are
+     * prepared in single precision.
+     */
+    protected float[] m_UpperEnvelopesFloat = new float[0];
+    /**
+     * The prepared series the training envelopes belong to.
+     */
+    private PreparedSeries m_EnvelopeSeries = null;
+    /**
+     * The envelope width the training envelopes were computed with.
+     */
+    private int m_EnvelopeWidth = -1;
+    /**
+     * The number of training series with a computed envelope.
+     */
+    private int m_NumEnvelopes = 0;
+    /**
+     * The pruning counts of all queries, always collected. They are also the
+     * performance statistics when measuring performance is switched on.
+     */
+    protected DTWPerformanceStats m_Metrics = new DTWPerformanceStats();
+    /**
+     * Per-thread buffers of the query, the envelope computation and the scan.
+     */
+    static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
 
     /**
      * Constructor: Needs that setInstances(Instances) to be called before the
@@ -43,7 +163,25 @@ public class DTWSearch extends NearestNeighbourSearch {
      */
     public DTWSearch(Instances insts) {
         super(insts);
+        m_DistanceFunction = new DTWDistance();
+        m_DistanceFunction.setInstances(insts);
+    }
+
+    /**
+     * Sets the instances to search in, prepares their series in the distance
+     * function and computes their envelopes.
+     *
+     * @param insts the instances to use
+     * @throws Exception if the instances cannot be processed
+     */
+    @Override
+    public void setInstances(Instances insts) throws Exception {
+        super.setInstances(insts);
         m_DistanceFunction.setInstances(insts);
+        if (insts != null) {
+            updateEnvelopes(getPreparedSeries());
+        }
+        resetMetrics();
     }
 
     /**
@@ -61,7 +199,8 @@ public class DTWSearch extends NearestNeighbourSearch {
 
     /**
      * Returns the k nearest instances in the current neighbourhood to the
-     * supplied instance.
+     * supplied instance, sorted by ascending distance. Ties at the k-th
+     * distance are resolved in favour of the instance found first.
      *
      * @param target The instance to find the k nearest neighbours for.
      * @param k	The number of nearest neighbours to find.
@@ -70,42 +209,568 @@ public class DTWSearch extends NearestNeighbourSearch {
      */
     @Override
     public Instances kNearestNeighbours(Instance target, int k) {
+        DTWEvents.QueryEvent queryEvent = DTWEvents.beginQuery();
         Instances neighbours = new Instances(m_Instances, k);
 
-        int sizeW = (int) (((DTWDistance) m_DistanceFunction).getM_WindowSize() * (m_Instances.numAttributes() - 1) / 100); // the envelope width
-        sizeW = Math.min(sizeW, m_Instances.numAttributes() - 2);
+        DTWDistance dtw = (DTWDistance) m_DistanceFunction;
+        PreparedSeries series = getPreparedSeries();
+        int length = series.getLength();
+
+        int sizeW = dtw.getWindow(length); // the envelope width
+        updateEnvelopes(series);
+
+        Workspace ws = WORKSPACE.get();
+        ws.ensureCapacity(length);
+        double[] query = ws.m_Query;
+        series.extract(target, query, 0);
+
+        double[] lowerB = ws.m_LowerB; //the lower bounding
+        double[] upperB = ws.m_UpperB; //the upper bounding
+        DTWEvents.EnvelopeEvent envelopeEvent = DTWEvents.beginEnvelope();
+        computeEnvelope(query, 0, length, sizeW, lowerB, upperB, 0, ws);
+        if (envelopeEvent != null) {
+            DTWEvents.commitEnvelope(envelopeEvent, length, sizeW, 1, false);
+        }
+
+        // the k best candidates so far, the farthest of them on top. All
+        // distances and lower bounds of the search are squared, the roots are
+        // only taken for the distances of the neighbours found
+        NeighbourHeap heap = ws.m_Heap;
+        heap.reset(k);
+
+        Kernel kernel = newKernel(dtw, series, query, 0, lowerB, upperB);
+        DTWPerformanceStats counts = new DTWPerformanceStats();
+        int numSeries = series.numSeries();
+        int slots = getExecutionSlots();
+        if (slots > 1 && numSeries > MIN_CHUNK) {
+            int chunk = Math.max(MIN_CHUNK, (numSeries + 4 * slots - 1) / (4 * slots));
+            NeighbourHeap found = getPool(slots).invoke(new ScanTask(kernel, series, 0, numSeries, chunk, k,
+                    new SharedBound(), counts));
+            for (int i = 0; i < found.size(); i++) {
+                heap.offer(found.index(i), found.distance(i));
+            }
+        } else {
+            search(kernel, series, 0, numSeries, heap, null, counts);
+        }
+        recordQuery(counts);
+        if (queryEvent != null) {
+            DTWEvents.commitQuery(queryEvent, length, sizeW, k, counts);
+        }
+
+        heap.sort();
+        m_Distances = new double[heap.size()];
+        for (int i = 0; i < heap.size(); i++) {
+            neighbours.add(m_Instances.get(heap.index(i)));
+            m_Distances[i] = heap.distance(i);
+        }
+        m_DistanceFunction.postProcessDistances(m_Distances);
+
+        return neighbours;
+    }
+
+    /**
+     * Returns the k nearest neighbours of every instance of a set of queries,
+     * each sorted by ascending distance like kNearestNeighbours(Instance, int).
+     * The queries are processed in tiles: a tile of queries is compared with a
+     * tile of training series at a time, so the training series are read from
+     * memory once per tile of queries instead of once per query. The tiles of
+     * queries are run in parallel on the execution slots. Candidates are
+     * always visited in the order of the dataset. The distances are available
+     * through getBatchDistances().
+     *
+     * @param targets the instances to find the k nearest neighbours for
+     * @param k the number of nearest neighbours to find
+     * @return the k nearest neighbours of every query, in the order of the
+     * queries
+     * @throws Exception if the neighbours could not be found
+     */
+    public Instances[] kNearestNeighbours(Instances targets, int k) throws Exception {
+        if (m_Instances == null) {
+            throw new Exception("No instances supplied yet. Cannot search without "
+                    + "supplying a set of instances first.");
+        }
+
+        DTWEvents.BatchEvent batchEvent = DTWEvents.beginBatch();
+        DTWDistance dtw = (DTWDistance) m_DistanceFunction;
+        PreparedSeries series = getPreparedSeries();
+        updateEnvelopes(series);
+
+        int numQueries = targets.numInstances();
+        int numTiles = (numQueries + QUERY_TILE - 1) / QUERY_TILE;
+        NeighbourHeap[] heaps = new NeighbourHeap[numQueries];
+        DTWPerformanceStats[] counts = new DTWPerformanceStats[numQueries];
+
+        int slots = getExecutionSlots();
+        if (slots > 1 && numTiles > 1) {
+            getPool(slots).invoke(new BatchTask(dtw, series, targets, 0, numTiles, k, heaps, counts));
+        } else {
+            for (int tile = 0; tile < numTiles; tile++) {
+                searchTile(dtw, series, targets, tile * QUERY_TILE,
+                        Math.min(numQueries, (tile + 1) * QUERY_TILE), k, heaps, counts);
+            }
+        }
+        for (int q = 0; q < numQueries; q++) {
+            recordQuery(counts[q]);
+        }
+        if (batchEvent != null) {
+            int length = series.getLength();
+            DTWEvents.commitBatch(batchEvent, length, dtw.getWindow(length), k, counts);
+        }
+
+        Instances[] neighbours = new Instances[numQueries];
+        m_BatchDistances = new double[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            NeighbourHeap heap = heaps[q];
+            heap.sort();
+            neighbours[q] = new Instances(m_Instances, heap.size());
+            m_BatchDistances[q] = new double[heap.size()];
+            for (int i = 0; i < heap.size(); i++) {
+                neighbours[q].add(m_Instances.get(heap.index(i)));
+                m_BatchDistances[q][i] = heap.distance(i);
+            }
+            m_DistanceFunction.postProcessDistances(m_BatchDistances[q]);
+        }
+
+        return neighbours;
+    }
 
-        double bestDistance = Double.MAX_VALUE;
+    /**
+     * Searches the neighbours of a tile of queries. The queries and their
+     * envelopes are prepared once, then every tile of training series is
+     * compared with all queries of the tile before moving to the next one.
+     *
+     * @param dtw the distance function
+     * @param series the prepared series of the candidates
+     * @param targets the queries
+     * @param from the first query of the tile
+     * @param to the query after the last one of the tile
+     * @param k the number of nearest neighbours to find
+     * @param heaps the array to store the heap of each query in
+     * @param counts the array to store the pruning counts of each query in
+     */
+    private void searchTile(DTWDistance dtw, PreparedSeries series, Instances targets, int from, int to,
+            int k, NeighbourHeap[] heaps, DTWPerformanceStats[] counts) {
 
-        double[] lowerB;
-        double[] upperB;
+        int length = series.getLength();
+        int numSeries = series.numSeries();
+        int sizeW = dtw.getWindow(length);
 
-        lowerB = computeL(target, sizeW); //the lower bounding
-        upperB = computeU(target, sizeW); //the upper bounding
+        double[] queries = new double[(to - from) * length];
+        double[] lowerB = new double[queries.length];
+        double[] upperB = new double[queries.length];
+        Kernel[] kernels = new Kernel[to - from];
+        Workspace ws = WORKSPACE.get();
+        DTWEvents.EnvelopeEvent envelopeEvent = DTWEvents.beginEnvelope();
+        for (int q = from; q < to; q++) {
+            int queryOffset = (q - from) * length;
+            series.extract(targets.instance(q), queries, queryOffset);
+            computeEnvelope(queries, queryOffset, length, sizeW, lowerB, upperB, queryOffset, ws);
+            kernels[q - from] = newKernel(dtw, series, queries, queryOffset, lowerB, upperB);
+            heaps[q] = new NeighbourHeap();
+            heaps[q].reset(k);
+            counts[q] = new DTWPerformanceStats();
+        }
+        if (envelopeEvent != null) {
+            DTWEvents.commitEnvelope(envelopeEvent, length, sizeW, to - from, false);
+        }
 
-        for (int i = 0; i < m_Instances.numInstances(); i++) {
+        int rows = Math.max(1, TRAINING_TILE / Math.max(1, length));
+        for (int start = 0; start < numSeries; start += rows) {
+            int end = Math.min(numSeries, start + rows);
 
-            double distanceLB = computeLB_Keogh(lowerB, upperB, m_Instances.get(i)); // compute LB_Keogh
+            for (int q = from; q < to; q++) {
+                Kernel kernel = kernels[q - from];
+                NeighbourHeap heap = heaps[q];
+                DTWPerformanceStats stats = counts[q];
 
-            if (distanceLB < bestDistance) {
-                double distanceDTW = m_DistanceFunction.distance(m_Instances.get(i), target); //calculate DTW
+                for (int i = start; i < end; i++) {
+                    double kthDistance = heap.threshold();
+                    int offset = series.offset(i);
+                    stats.incrPointCount();
+                    if (prune(kernel, offset, kthDistance, stats)) {
+                        continue;
+                    }
 
-                if (distanceDTW < bestDistance) {
-                    bestDistance = distanceDTW;
-                    neighbours.delete(); // removes all instances form the set
-                    neighbours.add(m_Instances.get(i));
-                } else if (distanceDTW == bestDistance) {
-                    neighbours.add(m_Instances.get(i));
+                    double distanceDTW = kernel.distance(offset, kthDistance, stats);
+                    stats.incrDTWCount(distanceDTW == Double.POSITIVE_INFINITY);
+                    if (m_SkipIdentical && distanceDTW == 0) {
+                        continue;
+                    }
+                    heap.offer(i, distanceDTW);
                 }
             }
+        }
+    }
 
+    /**
+     * Scans a range of candidates, in the order of the dataset or in the
+     * order of their lower bounds.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param series the prepared series of the candidates
+     * @param from the first candidate to scan
+     * @param to the candidate after the last one to scan
+     * @param heap the heap collecting the neighbours
+     * @param bound the k-th distance shared with the other workers, or null if
+     * the scan is not split
+     * @param stats the statistics counting the candidates of the scan
+     */
+    private void search(Kernel kernel, PreparedSeries series, int from, int to, NeighbourHeap heap,
+            SharedBound bound, DTWPerformanceStats stats) {
+        DTWEvents.LowerBoundPhaseEvent lowerBoundEvent = DTWEvents.beginLowerBoundPhase();
+        DTWEvents.DTWPhaseEvent dtwEvent = DTWEvents.beginDTWPhase();
+        long[] times = lowerBoundEvent == null && dtwEvent == null ? null : new long[2];
+
+        if (m_OrderCandidates) {
+            searchOrdered(kernel, series, null, from, to, heap, bound, stats, times, WORKSPACE.get());
+        } else {
+            searchLinear(kernel, series, from, to, heap, bound, stats, times);
         }
-        m_Distances = new double[neighbours.numInstances()];
-        for (int i = 0; i < neighbours.numInstances(); i++) {
-            m_Distances[i] = bestDistance;
+
+        if (times != null) {
+            int length = series.getLength();
+            int sizeW = ((DTWDistance) m_DistanceFunction).getWindow(length);
+            if (lowerBoundEvent != null) {
+                DTWEvents.commitLowerBoundPhase(lowerBoundEvent, length, sizeW, times[0], stats);
+            }
+            if (dtwEvent != null) {
+                DTWEvents.commitDTWPhase(dtwEvent, length, sizeW, times[1], stats);
+            }
         }
+    }
 
-        return neighbours;
+    /**
+     * Returns the distance a candidate has to beat, i.e. the k-th distance of
+     * the heap or the smaller k-th distance found by another worker. Since
+     * the k-th distance of any part of the candidates is an upper bound of the
+     * overall k-th distance, pruning with it loses no neighbour.
+     *
+     * @param heap the heap of the current scan
+     * @param bound the k-th distance shared with the other workers, or null
+     * @return the current threshold
+     */
+    static double threshold(NeighbourHeap heap, SharedBound bound) {
+        return bound == null ? heap.threshold() : Math.min(heap.threshold(), bound.get());
+    }
+
+    /**
+     * Offers a candidate to the heap and publishes the new k-th distance to
+     * the other workers.
+     *
+     * @param heap the heap of the current scan
+     * @param bound the k-th distance shared with the other workers, or null
+     * @param index the index of the candidate
+     * @param distance the distance of the candidate
+     */
+    static void offer(NeighbourHeap heap, SharedBound bound, int index, double distance) {
+        if (heap.offer(index, distance) && bound != null) {
+            bound.update(heap.threshold());
+        }
+    }
+
+    /**
+     * Scans the candidates in the order of the dataset, each one going through
+     * the cascade of lower bounds before DTW is calculated.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param series the prepared series of the candidates
+     * @param from the first candidate to scan
+     * @param to the candidate after the last one to scan
+     * @param heap the heap collecting the neighbours
+     * @param bound the k-th distance shared with the other workers, or null
+     * @param stats the statistics counting the candidates of the scan
+     * @param times the array adding up the nanoseconds spent in the lower
+     * bounds and in DTW, or null if they are not measured
+     */
+    private void searchLinear(Kernel kernel, PreparedSeries series, int from, int to, NeighbourHeap heap,
+            SharedBound bound, DTWPerformanceStats stats, long[] times) {
+
+        for (int i = from; i < to; i++) {
+
+            double kthDistance = threshold(heap, bound);
+            stats.incrPointCount();
+            long start = times == null ? 0 : System.nanoTime();
+            boolean pruned = prune(kernel, series.offset(i), kthDistance, stats);
+            if (times != null) {
+                long now = System.nanoTime();
+                times[0] += now - start;
+                start = now;
+            }
+            if (!pruned) {
+                // calculate DTW, abandoned as soon as it exceeds the k-th distance so far
+                double distanceDTW = kernel.distance(series.offset(i), kthDistance, stats);
+                stats.incrDTWCount(distanceDTW == Double.POSITIVE_INFINITY);
+                if (times != null) {
+                    times[1] += System.nanoTime() - start;
+                }
+
+                if (m_SkipIdentical && distanceDTW == 0) {
+                    continue;
+                }
+                offer(heap, bound, i, distanceDTW);
+            }
+
+        }
+    }
+
+    /**
+     * Computes the cheap lower bounds (LB_Kim and LB_Keogh with the envelope
+     * of the query) of all candidates first, and then calculates DTW in
+     * ascending order of the lower bounds, so the k-th distance shrinks as
+     * fast as possible. The scan stops at the first candidate whose lower
+     * bound reaches the k-th distance, since all the remaining ones have a
+     * larger lower bound.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param series the prepared series of the candidates
+     * @param rows the rows of the candidates, or null if the candidates are
+     * the rows from to to
+     * @param from the first candidate to scan
+     * @param to the candidate after the last one to scan
+     * @param heap the heap collecting the neighbours
+     * @param bound the k-th distance shared with the other workers, or null
+     * @param stats the statistics counting the candidates of the scan
+     * @param times the array adding up the nanoseconds spent in the lower
+     * bounds and in DTW, or null if they are not measured
+     * @param ws the workspace holding the lower bounds and their order
+     */
+    void searchOrdered(Kernel kernel, PreparedSeries series, int[] rows, int from, int to, NeighbourHeap heap,
+            SharedBound bound, DTWPerformanceStats stats, long[] times, Workspace ws) {
+
+        int numCandidates = to - from;
+        if (numCandidates <= 0) {
+            return;
+        }
+
+        long start = times == null ? 0 : System.nanoTime();
+
+        ws.ensureCandidateCapacity(numCandidates);
+        double[] bounds = ws.m_Bounds;
+        int[] order = ws.m_Order;
+        for (int j = 0; j < numCandidates; j++) {
+            int i = rows == null ? from + j : rows[from + j];
+            int offset = series.offset(i);
+            double lowerBound = 0;
+            if (m_LowerBound >= LB_KIM_KEOGH) {
+                lowerBound = kernel.lowerBoundKim(offset);
+            }
+            if (m_LowerBound >= LB_KEOGH) {
+                lowerBound = Math.max(lowerBound, kernel.lowerBoundKeogh(offset, Double.POSITIVE_INFINITY));
+            }
+            bounds[j] = lowerBound;
+            order[j] = i;
+            stats.incrPointCount();
+        }
+        sortByKey(bounds, order, 0, numCandidates - 1);
+        if (times != null) {
+            times[0] += System.nanoTime() - start;
+        }
+
+        for (int j = 0; j < numCandidates; j++) {
+
+            double kthDistance = threshold(heap, bound);
+            if (bounds[j] >= kthDistance) {
+                stats.updateOrderCount(numCandidates - j);
+                break;
+            }
+
+            int i = order[j];
+            int offset = series.offset(i);
+            start = times == null ? 0 : System.nanoTime();
+            boolean pruned = m_LowerBound >= LB_CASCADE
+                    && kernel.lowerBoundKeoghReversed(offset, kthDistance) >= kthDistance;
+            if (times != null) {
+                long now = System.nanoTime();
+                times[0] += now - start;
+                start = now;
+            }
+            if (pruned) {
+                stats.incrReversedKeoghCount();
+                continue;
+            }
+
+            double distanceDTW = kernel.distance(offset, kthDistance, stats);
+            stats.incrDTWCount(distanceDTW == Double.POSITIVE_INFINITY);
+            if (times != null) {
+                times[1] += System.nanoTime() - start;
+            }
+            if (m_SkipIdentical && distanceDTW == 0) {
+                continue;
+            }
+            offer(heap, bound, i, distanceDTW);
+        }
+    }
+
+    /**
+     * Returns the number of threads a query is split across.
+     *
+     * @return the number of execution slots, resolving 0 to the number of
+     * available processors
+     */
+    int getExecutionSlots() {
+        return m_NumExecutionSlots > 0 ? m_NumExecutionSlots : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the fork-join pool the scans are split across, created on first
+     * use and again whenever the number of execution slots changed.
+     *
+     * @param slots the number of execution slots
+     * @return the pool
+     */
+    synchronized ForkJoinPool getPool(int slots) {
+        if (m_Pool == null || m_Pool.getParallelism() != slots) {
+            if (m_Pool != null) {
+                m_Pool.shutdown();
+            }
+            m_Pool = new ForkJoinPool(slots);
+        }
+        return m_Pool;
+    }
+
+    /**
+     * Returns the series of the instances prepared by the distance function.
+     * They are prepared again if the distance function has been set to other
+     * instances in the meantime, or if instances were added without update().
+     *
+     * @return the prepared series of m_Instances
+     */
+    PreparedSeries getPreparedSeries() {
+        PreparedSeries series = ((DTWDistance) m_DistanceFunction).getPreparedSeries();
+        if (m_DistanceFunction.getInstances() != m_Instances || series == null
+                || series.numSeries() != m_Instances.numInstances()) {
+            m_DistanceFunction.setInstances(m_Instances);
+            series = ((DTWDistance) m_DistanceFunction).getPreparedSeries();
+        }
+        return series;
+    }
+
+    /**
+     * Brings the envelopes of the training series up to date. They are
+     * computed again from scratch if the series were prepared again or the
+     * window of the distance function changed, otherwise only the envelopes
+     * of newly added series are computed.
+     *
+     * @param series the prepared series of m_Instances
+     */
+    void updateEnvelopes(PreparedSeries series) {
+        int length = series.getLength();
+        int sizeW = ((DTWDistance) m_DistanceFunction).getWindow(length);
+
+        if (series != m_EnvelopeSeries || sizeW != m_EnvelopeWidth) {
+            m_EnvelopeSeries = series;
+            m_EnvelopeWidth = sizeW;
+            m_NumEnvelopes = 0;
+        }
+
+        if (m_NumEnvelopes == series.numSeries()) {
+            return;
+        }
+        DTWEvents.EnvelopeEvent event = DTWEvents.beginEnvelope();
+
+        int needed = series.numSeries() * length;
+        Workspace ws = WORKSPACE.get();
+        if (series.isSinglePrecision()) {
+            if (m_LowerEnvelopesFloat.length < needed) {
+                float[] lower = new float[Math.max(needed, 2 * m_LowerEnvelopesFloat.length)];
+                float[] upper = new float[lower.length];
+                System.arraycopy(m_LowerEnvelopesFloat, 0, lower, 0, m_NumEnvelopes * length);
+                System.arraycopy(m_UpperEnvelopesFloat, 0, upper, 0, m_NumEnvelopes * length);
+                m_LowerEnvelopesFloat = lower;
+                m_UpperEnvelopesFloat = upper;
+            }
+
+            // the envelope only selects values of the series, so it is
+            // computed in double precision and stored as floats exactly
+            float[] values = series.getFloatValues();
+            ws.ensureCapacity(length);
+            for (int i = m_NumEnvelopes; i < series.numSeries(); i++) {
+                int offset = series.offset(i);
+                for (int j = 0; j < length; j++) {
+                    ws.m_Row[j] = values[offset + j];
+                }
+                computeEnvelope(ws.m_Row, 0, length, sizeW, ws.m_RowLowerB, ws.m_RowUpperB, 0, ws);
+                for (int j = 0; j < length; j++) {
+                    m_LowerEnvelopesFloat[offset + j] = (float) ws.m_RowLowerB[j];
+                    m_UpperEnvelopesFloat[offset + j] = (float) ws.m_RowUpperB[j];
+                }
+            }
+        } else {
+            if (m_LowerEnvelopes.length < needed) {
+                double[] lower = new double[Math.max(needed, 2 * m_LowerEnvelopes.length)];
+                double[] upper = new double[lower.length];
+                System.arraycopy(m_LowerEnvelopes, 0, lower, 0, m_NumEnvelopes * length);
+                System.arraycopy(m_UpperEnvelopes, 0, upper, 0, m_NumEnvelopes * length);
+                m_LowerEnvelopes = lower;
+                m_UpperEnvelopes = upper;
+            }
+
+            double[] values = series.getValues();
+            for (int i = m_NumEnvelopes; i < series.numSeries(); i++) {
+                int offset = series.offset(i);
+                computeEnvelope(values, offset, length, sizeW, m_LowerEnvelopes, m_UpperEnvelopes, offset, ws);
+            }
+        }
+        if (event != null) {
+            DTWEvents.commitEnvelope(event, length, sizeW, series.numSeries() - m_NumEnvelopes, true);
+        }
+        m_NumEnvelopes = series.numSeries();
+    }
+
+    /**
+     * Runs the cascade of lower bounds between the query and a candidate, from
+     * the cheapest to the tightest one. Each lower bound is only computed if
+     * the previous ones could not prune the candidate.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param offset the position of the candidate in the prepared series (and
+     * of its envelope in the training envelopes)
+     * @param bestDistance the distance of the k-th best neighbour so far
+     * @param stats the statistics counting the candidate pruned by each bound
+     * @return true if the candidate cannot be closer than bestDistance
+     */
+    boolean prune(Kernel kernel, int offset, double bestDistance, DTWPerformanceStats stats) {
+
+        if (m_LowerBound >= LB_KIM_KEOGH && kernel.lowerBoundKim(offset) >= bestDistance) {
+            stats.incrKimCount();
+            return true;
+        }
+
+        if (m_LowerBound >= LB_KEOGH && kernel.lowerBoundKeogh(offset, bestDistance) >= bestDistance) {
+            stats.incrKeoghCount();
+            return true;
+        }
+
+        if (m_LowerBound >= LB_CASCADE
+                && kernel.lowerBoundKeoghReversed(offset, bestDistance) >= bestDistance) {
+            stats.incrReversedKeoghCount();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates the kernel comparing a query with the prepared series, in the
+     * precision the series are prepared in.
+     *
+     * @param dtw the distance function
+     * @param series the prepared series of the candidates
+     * @param query the array holding the series of the query
+     * @param queryOffset the position of the query in query (and of its
+     * envelope in lowerB and upperB)
+     * @param lowerB the lower bound of the envelope of the query
+     * @param upperB the upper bound of the envelope of the query
+     * @return the kernel
+     */
+    Kernel newKernel(DTWDistance dtw, PreparedSeries series, double[] query, int queryOffset,
+            double[] lowerB, double[] upperB) {
+        if (series.isSinglePrecision()) {
+            return new FloatKernel(dtw, series, m_LowerEnvelopesFloat, m_UpperEnvelopesFloat, query,
+                    queryOffset, lowerB, upperB);
+        }
+        return new DoubleKernel(dtw, series, m_LowerEnvelopes, m_UpperEnvelopes, query, queryOffset,
+                lowerB, upperB);
     }
 
     /**
@@ -118,7 +783,11 @@ public class DTWSearch extends NearestNeighbourSearch {
     public String globalInfo() {
         return "Class implementing LB_Keogh as lower bounding "
                 + "measure to improve DTWDistance function for nearest neighbor search "
-                + "classification in time series data.";
+                + "classification in time series data. The candidates go through a "
+                + "cascade of lower bounds (LB_Kim, LB_Keogh with the envelope of the "
+                + "query and LB_Keogh with the envelope of the candidate) before DTW "
+                + "is calculated. A query can be split across several threads that "
+                + "share the k-th distance found so far.";
     }
 
     /**
@@ -127,13 +796,29 @@ public class DTWSearch extends NearestNeighbourSearch {
      * @return an enumeration of all the available options.
      */
     @Override
-    public Enumeration listOptions() {
+    public Enumeration<Option> listOptions() {
         Vector<Option> result = new Vector<Option>();
 
         result.add(new Option(
                 "\tSkip identical instances (distances equal to zero).\n",
                 "S", 1, "-S"));
 
+        result.add(new Option(
+                "\tThe lower bounds tried before DTW is calculated:\n"
+                + "\t0 = none, 1 = LB_Keogh, 2 = LB_Kim and LB_Keogh,\n"
+                + "\t3 = LB_Kim, LB_Keogh and reversed LB_Keogh\n"
+                + "\t(default 3)",
+                "L", 1, "-L <num>"));
+
+        result.add(new Option(
+                "\tVisit the candidates in ascending order of their lower bounds.",
+                "O", 0, "-O"));
+
+        result.add(new Option(
+                "\tNumber of execution slots a query is split across.\n"
+                + "\t(default 1 - i.e. no parallelism, 0 - one per processor)",
+                "num-slots", 1, "-num-slots <num>"));
+
         return result.elements();
     }
 
@@ -148,6 +833,19 @@ public class DTWSearch extends NearestNeighbourSearch {
      *  Skip identical instances (distances equal to zero).
      * </pre>
      *
+     * <pre> -L &lt;num&gt;
+     *  The lower bounds tried before DTW is calculated:
+     *  0 = none, 1 = LB_Keogh, 2 = LB_Kim and LB_Keogh,
+     *  3 = LB_Kim, LB_Keogh and reversed LB_Keogh
+     *  (default 3)</pre>
+     *
+     * <pre> -O
+     *  Visit the candidates in ascending order of their lower bounds.</pre>
+     *
+     * <pre> -num-slots &lt;num&gt;
+     *  Number of execution slots a query is split across.
+     *  (default 1 - i.e. no parallelism, 0 - one per processor)</pre>
+     *
      * <!-- options-end -->
      *
      * @param options the list of options as an array of strings
@@ -158,6 +856,22 @@ public class DTWSearch extends NearestNeighbourSearch {
         super.setOptions(options);
 
         setSkipIdentical(Utils.getFlag('S', options));
+
+        String tmpStr = Utils.getOption('L', options);
+        if (tmpStr.length() != 0) {
+            setLowerBound(new SelectedTag(Integer.parseInt(tmpStr), TAGS_LOWER_BOUND));
+        } else {
+            setLowerBound(new SelectedTag(LB_CASCADE, TAGS_LOWER_BOUND));
+        }
+
+        setOrderCandidates(Utils.getFlag('O', options));
+
+        tmpStr = Utils.getOption("num-slots", options);
+        if (tmpStr.length() != 0) {
+            setNumExecutionSlots(Integer.parseInt(tmpStr));
+        } else {
+            setNumExecutionSlots(1);
+        }
     }
 
     /**
@@ -210,6 +924,16 @@ public class DTWSearch extends NearestNeighbourSearch {
             result.add("-S");
         }
 
+        result.add("-L");
+        result.add("" + m_LowerBound);
+
+        if (getOrderCandidates()) {
+            result.add("-O");
+        }
+
+        result.add("-num-slots");
+        result.add("" + getNumExecutionSlots());
+
         return result.toArray(new String[result.size()]);
     }
 
@@ -242,6 +966,150 @@ public class DTWSearch extends NearestNeighbourSearch {
         return m_SkipIdentical;
     }
 
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String lowerBoundTipText() {
+        return "The cascade of lower bounds tried (cheapest first) before DTW is "
+                + "calculated for a candidate.";
+    }
+
+    /**
+     * Sets the cascade of lower bounds tried before DTW is calculated.
+     *
+     * @param value the lower bounds, one of TAGS_LOWER_BOUND
+     */
+    public void setLowerBound(SelectedTag value) {
+        if (value.getTags() == TAGS_LOWER_BOUND) {
+            m_LowerBound = value.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Gets the cascade of lower bounds tried before DTW is calculated.
+     *
+     * @return the lower bounds, one of TAGS_LOWER_BOUND
+     */
+    public SelectedTag getLowerBound() {
+        return new SelectedTag(m_LowerBound, TAGS_LOWER_BOUND);
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String orderCandidatesTipText() {
+        return "Whether to compute the lower bounds of all candidates first and "
+                + "calculate DTW in ascending order of them, stopping as soon as a "
+                + "lower bound reaches the k-th distance.";
+    }
+
+    /**
+     * Sets whether the candidates are visited in ascending order of their
+     * lower bounds.
+     *
+     * @param value if true the candidates are ordered by lower bound
+     */
+    public void setOrderCandidates(boolean value) {
+        m_OrderCandidates = value;
+    }
+
+    /**
+     * Gets whether the candidates are visited in ascending order of their
+     * lower bounds.
+     *
+     * @return true if the candidates are ordered by lower bound
+     */
+    public boolean getOrderCandidates() {
+        return m_OrderCandidates;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String numExecutionSlotsTipText() {
+        return "The number of threads a query is split across (1 - no parallelism, "
+                + "0 - one per available processor). The workers share the k-th "
+                + "distance found so far, so pruning still works across threads.";
+    }
+
+    /**
+     * Sets the number of execution slots (threads) a query is split across.
+     *
+     * @param numSlots the number of slots, 0 for one per available processor
+     */
+    public void setNumExecutionSlots(int numSlots) {
+        m_NumExecutionSlots = numSlots;
+    }
+
+    /**
+     * Gets the number of execution slots (threads) a query is split across.
+     *
+     * @return the number of slots
+     */
+    public int getNumExecutionSlots() {
+        return m_NumExecutionSlots;
+    }
+
+    /**
+     * Adds the counts of a finished query to the metrics.
+     *
+     * @param counts the counts of the query
+     */
+    synchronized void recordQuery(DTWPerformanceStats counts) {
+        m_Metrics.searchStart();
+        m_Metrics.add(counts);
+        m_Metrics.searchFinish();
+    }
+
+    /**
+     * Turns the performance statistics on or off. The statistics are the
+     * DTWPerformanceStats also returned by getMetrics(), so the pruning counts
+     * are available as additional measures.
+     *
+     * @param measurePerformance true if the performance is to be measured
+     */
+    @Override
+    public void setMeasurePerformance(boolean measurePerformance) {
+        m_MeasurePerformance = measurePerformance;
+        m_Stats = measurePerformance ? m_Metrics : null;
+    }
+
+    /**
+     * Returns the pruning counts of all queries since the instances were set
+     * or the metrics were reset.
+     *
+     * @return a snapshot of the counts
+     */
+    public synchronized DTWSearchMetrics getMetrics() {
+        return m_Metrics.getTotalMetrics();
+    }
+
+    /**
+     * Returns the pruning counts of the last query. For a batch search these
+     * are the counts of its last query.
+     *
+     * @return a snapshot of the counts
+     */
+    public synchronized DTWSearchMetrics getLastQueryMetrics() {
+        return m_Metrics.getQueryMetrics();
+    }
+
+    /**
+     * Resets the pruning counts.
+     */
+    public synchronized void resetMetrics() {
+        m_Metrics.reset();
+    }
+
     /**
      * Returns the distances of the k nearest neighbours. The kNearestNeighbours
      * or nearestNeighbour needs to be called first for this to work.
@@ -259,6 +1127,23 @@ public class DTWSearch extends NearestNeighbourSearch {
         return m_Distances;
     }
 
+    /**
+     * Returns the distances of the k nearest neighbours of every query of the
+     * last batch search. The kNearestNeighbours(Instances, int) needs to be
+     * called first for this to work.
+     *
+     * @return the distances, in the order of the queries
+     * @throws Exception if called before calling kNearestNeighbours(Instances,
+     * int)
+     */
+    public double[][] getBatchDistances() throws Exception {
+        if (m_BatchDistances == null) {
+            throw new Exception("No distances available. Please call "
+                    + "kNearestNeighbours(Instances, int) first.");
+        }
+        return m_BatchDistances;
+    }
+
     /**
      * Updates the LinearNNSearch to cater for the new added instance. This
      * implementation only updates the ranges of the DistanceFunction class,
@@ -276,6 +1161,7 @@ public class DTWSearch extends NearestNeighbourSearch {
                     + "supplying a set of instances first.");
         }
         m_DistanceFunction.update(ins);
+        updateEnvelopes(getPreparedSeries());
     }
 
     /**
@@ -285,112 +1171,642 @@ public class DTWSearch extends NearestNeighbourSearch {
      */
     @Override
     public String getRevision() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return RevisionUtils.extract("$Revision$");
     }
 
     /**
-     * Compute the lower bound of the envelope
+     * Sorts a range of keys in ascending order together with the indices
+     * linked to them (quicksort with a median of three pivot, insertion sort
+     * for short ranges). Equal keys are ordered by ascending index, so the
+     * result does not depend on the initial order of the range.
      *
-     * @param query the instance to compute the envelope
-     * @param sizeW percent of series length used to control the envelope width
-     * @return an array of values with the lower bound of the query
+     * @param keys the keys to sort
+     * @param indices the indices linked to the keys, moved along with them
+     * @param left the first position of the range
+     * @param right the last position of the range
      */
-    private double[] computeL(Instance query, int sizeW) {
+    static void sortByKey(double[] keys, int[] indices, int left, int right) {
+        while (right - left > 16) {
+            int middle = (left + right) >>> 1;
+            if (precedes(keys, indices, middle, left)) {
+                swap(keys, indices, middle, left);
+            }
+            if (precedes(keys, indices, right, left)) {
+                swap(keys, indices, right, left);
+            }
+            if (precedes(keys, indices, right, middle)) {
+                swap(keys, indices, right, middle);
+            }
+            double pivotKey = keys[middle];
+            int pivotIndex = indices[middle];
 
-        double[] lowerB = new double[query.numAttributes() - 1]; //para excluir la clase
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (keys[i] < pivotKey || (keys[i] == pivotKey && indices[i] < pivotIndex)) {
+                    i++;
+                }
+                while (pivotKey < keys[j] || (keys[j] == pivotKey && pivotIndex < indices[j])) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, indices, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // recurse into the shorter part, loop over the longer one
+            if (j - left < right - i) {
+                sortByKey(keys, indices, left, j);
+                left = i;
+            } else {
+                sortByKey(keys, indices, i, right);
+                right = j;
+            }
+        }
 
-        int index = 0;
-        double[] aux = new double[query.numAttributes() - 1];
-        for (int i = 0; i < query.numAttributes(); i++) {
-            if (i != query.classIndex()) {
-                aux[index] = query.value(i);
-                index++;
+        for (int i = left + 1; i <= right; i++) {
+            double key = keys[i];
+            int index = indices[i];
+            int j = i - 1;
+            while (j >= left && (keys[j] > key || (keys[j] == key && indices[j] > index))) {
+                keys[j + 1] = keys[j];
+                indices[j + 1] = indices[j];
+                j--;
             }
+            keys[j + 1] = key;
+            indices[j + 1] = index;
         }
+    }
 
-        for (int i = 0; i < lowerB.length; i++) {
+    /**
+     * Returns whether the key at position a comes before the key at position
+     * b, equal keys being ordered by index.
+     *
+     * @param keys the keys
+     * @param indices the indices linked to the keys
+     * @param a the first position
+     * @param b the second position
+     * @return true if the key at a comes first
+     */
+    private static boolean precedes(double[] keys, int[] indices, int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && indices[a] < indices[b]);
+    }
 
-            double min = Double.MAX_VALUE;
-            for (int j = Math.max(0, i - sizeW); j <= Math.min(i + sizeW, query.numAttributes() - 2); j++) {
-                if (aux[j] < min) {
-                    min = aux[j];
+    /**
+     * Swaps two keys and their indices.
+     *
+     * @param keys the keys
+     * @param indices the indices linked to the keys
+     * @param a the first position
+     * @param b the second position
+     */
+    private static void swap(double[] keys, int[] indices, int a, int b) {
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+    }
+
+    /**
+     * Compute the lower and the upper bound of the envelope in one pass, using
+     * Lemire's streaming minimum and maximum: two deques hold the indices of
+     * the candidates for the minimum and the maximum of the window, so every
+     * point is pushed and popped at most once and the envelope costs O(n)
+     * whatever the envelope width.
+     *
+     * @param query the array holding the series to compute the envelope
+     * @param offset the position of the series in query
+     * @param length the length of the series
+     * @param sizeW the envelope width
+     * @param lowerB the array to write the lower bound of the envelope to
+     * @param upperB the array to write the upper bound of the envelope to
+     * @param envelopeOffset the position of the envelope in lowerB and upperB
+     * @param ws the workspace holding the deques
+     */
+    static void computeEnvelope(double[] query, int offset, int length, int sizeW,
+            double[] lowerB, double[] upperB, int envelopeOffset, Workspace ws) {
+
+        ws.ensureCapacity(length);
+        int[] minDeque = ws.m_MinDeque;
+        int[] maxDeque = ws.m_MaxDeque;
+        int minHead = 0;
+        int minTail = 0;
+        int maxHead = 0;
+        int maxTail = 0;
+
+        for (int i = 0; i < length + sizeW; i++) {
+            if (i < length) {
+                double p = query[offset + i];
+                while (minTail > minHead && query[offset + minDeque[minTail - 1]] >= p) {
+                    minTail--;
+                }
+                minDeque[minTail++] = i;
+                while (maxTail > maxHead && query[offset + maxDeque[maxTail - 1]] <= p) {
+                    maxTail--;
                 }
+                maxDeque[maxTail++] = i;
+            }
+
+            // the window of point j = i - sizeW is complete
+            int j = i - sizeW;
+            if (j >= 0) {
+                while (minDeque[minHead] < j - sizeW) {
+                    minHead++;
+                }
+                while (maxDeque[maxHead] < j - sizeW) {
+                    maxHead++;
+                }
+                lowerB[envelopeOffset + j] = query[offset + minDeque[minHead]];
+                upperB[envelopeOffset + j] = query[offset + maxDeque[maxHead]];
             }
-            lowerB[i] = min;
         }
+    }
 
-        return lowerB;
+    /**
+     * Compute the LB_Kim value between a query and a prepared series, i.e. the
+     * distance of the first and the last points, which every warping path
+     * matches.
+     *
+     * @param query the series of the query
+     * @param queryOffset the position of the query in query
+     * @param values the values of the prepared series
+     * @param offset the position of the series in values
+     * @param length the length of the series
+     * @return the LB_Kim lower bound of the squared DTW distance
+     */
+    static double computeLB_Kim(double[] query, int queryOffset, double[] values, int offset, int length) {
+
+        int last = length - 1;
+        double d = query[queryOffset] - values[offset];
+        double first = d * d;
+        if (last == 0) {
+            return first;
+        }
+        d = query[queryOffset + last] - values[offset + last];
+        return first + d * d;
     }
 
     /**
-     * Compute the upper bound of the envelope
+     * Compute the squared LB_Keogh value between an envelope and a prepared
+     * series. The points are summed in blocks of LB_BLOCK without branches,
+     * so the JIT may vectorize the distances to the envelope, and the partial
+     * sum is compared with the (squared) cut off value after every block, so
+     * the sum is abandoned soon after it exceeds it.
      *
-     * @param query the instance to compute the envelope
-     * @param sizeW percent of series length used to control the width of the
-     * envelope
-     * @return an array of values with the upper bound of the query
+     * @param lowerB the lower bound of the envelope
+     * @param upperB the upper bound of the envelope
+     * @param envelopeOffset the position of the envelope in lowerB and upperB
+     * @param values the values of the prepared series
+     * @param offset the position of the series in values
+     * @param length the length of the series
+     * @param cutOffValue the squared distance above which the calculation is
+     * abandoned
+     * @return the squared Euclidean distance between the series and the
+     * envelope, or Double.POSITIVE_INFINITY if it becomes larger than
+     * cutOffValue
      */
-    private double[] computeU(Instance query, int sizeW) {
+    static double computeLB_Keogh(double[] lowerB, double[] upperB, int envelopeOffset, double[] values,
+            int offset, int length, double cutOffValue) {
+
+        double sum = 0;
 
-        double[] upperB = new double[query.numAttributes() - 1]; //para excluir la clase
-        int index = 0;
-        double[] aux = new double[query.numAttributes() - 1];
-        for (int i = 0; i < query.numAttributes(); i++) {
-            if (i != query.classIndex()) {
-                aux[index] = query.value(i);
-                index++;
+        for (int start = 0; start < length; start += LB_BLOCK) {
+            int end = Math.min(length, start + LB_BLOCK);
+            // the distance to the envelope without branches (lowerB <= upperB,
+            // so at most one term is not zero), which leaves the JIT free to
+            // vectorize the block
+            for (int i = start; i < end; i++) {
+                double p = values[offset + i];
+                double above = Math.max(p - upperB[envelopeOffset + i], 0.0);
+                double below = Math.min(p - lowerB[envelopeOffset + i], 0.0);
+                double d = above + below;
+                sum += d * d;
             }
-        }
-        for (int i = 0; i < upperB.length; i++) {
-            double max = Double.MIN_VALUE;
-            for (int j = Math.max(0, i - sizeW); j <= Math.min(i + sizeW, query.numAttributes() - 2); j++) {
-                if (aux[j] > max) {
-                    max = aux[j];
-                }
+
+            if (sum > cutOffValue) {
+                return Double.POSITIVE_INFINITY;
             }
-            upperB[i] = max;
         }
-        return upperB;
+
+        return sum;
+    }
+
+    /**
+     * Compute the LB_Kim value between a query and a prepared series in single
+     * precision.
+     *
+     * @param query the series of the query
+     * @param queryOffset the position of the query in query
+     * @param values the values of the prepared series
+     * @param offset the position of the series in values
+     * @param length the length of the series
+     * @return the LB_Kim lower bound of the squared DTW distance
+     */
+    static double computeLB_Kim(float[] query, int queryOffset, float[] values, int offset, int length) {
+
+        int last = length - 1;
+        float d = query[queryOffset] - values[offset];
+        float first = d * d;
+        if (last == 0) {
+            return first;
+        }
+        d = query[queryOffset + last] - values[offset + last];
+        return first + d * d;
     }
 
     /**
-     * Compute the LB_Keogh value between an envelope and a query sequence
+     * Compute the squared LB_Keogh value between an envelope and a prepared
+     * series in single precision, in blocks like the double version.
      *
-     * @param query
-     * @param data
-     * @param sizeW percent of series length used to control the width of the
-     * envelope
-     * @return the Euclidean distance between the target and the envelope
+     * @param lowerB the lower bound of the envelope
+     * @param upperB the upper bound of the envelope
+     * @param envelopeOffset the position of the envelope in lowerB and upperB
+     * @param values the values of the prepared series
+     * @param offset the position of the series in values
+     * @param length the length of the series
+     * @param cutOffValue the squared distance above which the calculation is
+     * abandoned
+     * @return the squared Euclidean distance between the series and the
+     * envelope, or Double.POSITIVE_INFINITY if it becomes larger than
+     * cutOffValue
      */
-    private double computeLB_Keogh(double[] lowerB, double[] upperB, Instance query) {
+    static double computeLB_Keogh(float[] lowerB, float[] upperB, int envelopeOffset, float[] values,
+            int offset, int length, double cutOffValue) {
 
-        double sumL = 0;
-        double sumU = 0;
-        //double[] theArrayTarget = query.toDoubleArray();
+        float sum = 0;
 
-        int index = 0;
-        double[] theArrayTarget = new double[query.numAttributes() - 1];
+        for (int start = 0; start < length; start += LB_BLOCK) {
+            int end = Math.min(length, start + LB_BLOCK);
+            // the distance to the envelope without branches (lowerB <= upperB,
+            // so at most one term is not zero), which leaves the JIT free to
+            // vectorize the block
+            for (int i = start; i < end; i++) {
+                float p = values[offset + i];
+                float above = Math.max(p - upperB[envelopeOffset + i], 0f);
+                float below = Math.min(p - lowerB[envelopeOffset + i], 0f);
+                float d = above + below;
+                sum += d * d;
+            }
 
-        for (int i = 0; i < query.numAttributes(); i++) {
-            if (i != query.classIndex()) {
-                theArrayTarget[index] = query.value(i);
-                index++;
+            if (sum > cutOffValue) {
+                return Double.POSITIVE_INFINITY;
             }
         }
 
-        for (int i = 0; i < theArrayTarget.length - 1; i++) { //excluding the class
-            double p = theArrayTarget[i];
+        return sum;
+    }
+
+    /**
+     * Internal class comparing a query with the candidates of the prepared
+     * series: the lower bounds of the cascade and DTW. A candidate is given by
+     * the position of its row in the prepared series, which is also the
+     * position of its envelope in the training envelopes. All distances and
+     * lower bounds are squared.
+     */
+    abstract static class Kernel {
+
+        /**
+         * Returns LB_Kim between the query and a candidate.
+         *
+         * @param offset the position of the candidate
+         * @return the lower bound
+         */
+        abstract double lowerBoundKim(int offset);
+
+        /**
+         * Returns LB_Keogh between the envelope of the query and a candidate.
+         *
+         * @param offset the position of the candidate
+         * @param cutOff the squared distance above which it is abandoned
+         * @return the lower bound, or Double.POSITIVE_INFINITY if abandoned
+         */
+        abstract double lowerBoundKeogh(int offset, double cutOff);
+
+        /**
+         * Returns LB_Keogh between the envelope of a candidate and the query.
+         *
+         * @param offset the position of the candidate
+         * @param cutOff the squared distance above which it is abandoned
+         * @return the lower bound, or Double.POSITIVE_INFINITY if abandoned
+         */
+        abstract double lowerBoundKeoghReversed(int offset, double cutOff);
+
+        /**
+         * Returns the early abandoning DTW distance between the query and a
+         * candidate.
+         *
+         * @param offset the position of the candidate
+         * @param cutOff the squared distance above which it is abandoned
+         * @param stats the statistics counting the cells calculated
+         * @return the distance, or Double.POSITIVE_INFINITY if abandoned
+         */
+        abstract double distance(int offset, double cutOff, DTWPerformanceStats stats);
+    }
+
+    /**
+     * Internal class implementing the kernel on series prepared in double
+     * precision.
+     */
+    static final class DoubleKernel extends Kernel {
+
+        private final DTWDistance m_DTW;
+        private final double[] m_Values;
+        private final double[] m_LowerEnvelopes;
+        private final double[] m_UpperEnvelopes;
+        private final double[] m_Query;
+        private final int m_QueryOffset;
+        private final double[] m_LowerB;
+        private final double[] m_UpperB;
+        private final int m_Length;
+
+        DoubleKernel(DTWDistance dtw, PreparedSeries series, double[] lowerEnvelopes, double[] upperEnvelopes,
+                double[] query, int queryOffset, double[] lowerB, double[] upperB) {
+            m_DTW = dtw;
+            m_Values = series.getValues();
+            m_LowerEnvelopes = lowerEnvelopes;
+            m_UpperEnvelopes = upperEnvelopes;
+            m_Query = query;
+            m_QueryOffset = queryOffset;
+            m_LowerB = lowerB;
+            m_UpperB = upperB;
+            m_Length = series.getLength();
+        }
+
+        @Override
+        double lowerBoundKim(int offset) {
+            return computeLB_Kim(m_Query, m_QueryOffset, m_Values, offset, m_Length);
+        }
+
+        @Override
+        double lowerBoundKeogh(int offset, double cutOff) {
+            return computeLB_Keogh(m_LowerB, m_UpperB, m_QueryOffset, m_Values, offset, m_Length, cutOff);
+        }
+
+        @Override
+        double lowerBoundKeoghReversed(int offset, double cutOff) {
+            return computeLB_Keogh(m_LowerEnvelopes, m_UpperEnvelopes, offset, m_Query, m_QueryOffset, m_Length,
+                    cutOff);
+        }
+
+        @Override
+        double distance(int offset, double cutOff, DTWPerformanceStats stats) {
+            return m_DTW.distance(m_Values, offset, m_Query, m_QueryOffset, m_Length, cutOff, stats);
+        }
+    }
 
-            if (p > upperB[i]) {
-                sumL += Math.pow(p - upperB[i], 2);
+    /**
+     * Internal class implementing the kernel on series prepared in single
+     * precision. The query and its envelope are rounded to floats once.
+     */
+    static final class FloatKernel extends Kernel {
+
+        private final DTWDistance m_DTW;
+        private final float[] m_Values;
+        private final float[] m_LowerEnvelopes;
+        private final float[] m_UpperEnvelopes;
+        private final float[] m_Query;
+        private final float[] m_LowerB;
+        private final float[] m_UpperB;
+        private final int m_Length;
+
+        FloatKernel(DTWDistance dtw, PreparedSeries series, float[] lowerEnvelopes, float[] upperEnvelopes,
+                double[] query, int queryOffset, double[] lowerB, double[] upperB) {
+            m_DTW = dtw;
+            m_Values = series.getFloatValues();
+            m_LowerEnvelopes = lowerEnvelopes;
+            m_UpperEnvelopes = upperEnvelopes;
+            m_Length = series.getLength();
+            m_Query = new float[m_Length];
+            m_LowerB = new float[m_Length];
+            m_UpperB = new float[m_Length];
+            for (int i = 0; i < m_Length; i++) {
+                m_Query[i] = (float) query[queryOffset + i];
+                m_LowerB[i] = (float) lowerB[queryOffset + i];
+                m_UpperB[i] = (float) upperB[queryOffset + i];
+            }
+        }
+
+        @Override
+        double lowerBoundKim(int offset) {
+            return computeLB_Kim(m_Query, 0, m_Values, offset, m_Length);
+        }
+
+        @Override
+        double lowerBoundKeogh(int offset, double cutOff) {
+            return computeLB_Keogh(m_LowerB, m_UpperB, 0, m_Values, offset, m_Length, cutOff);
+        }
+
+        @Override
+        double lowerBoundKeoghReversed(int offset, double cutOff) {
+            return computeLB_Keogh(m_LowerEnvelopes, m_UpperEnvelopes, offset, m_Query, 0, m_Length, cutOff);
+        }
+
+        @Override
+        double distance(int offset, double cutOff, DTWPerformanceStats stats) {
+            return m_DTW.distance(m_Values, offset, m_Query, 0, m_Length, cutOff, stats);
+        }
+    }
+
+    /**
+     * Internal class holding the query, its envelope, the deques of the
+     * envelope computation and the heap of neighbours, so a search does not
+     * allocate once they have grown to the series length.
+     */
+    static class Workspace {
+
+        private double[] m_Query = new double[0];
+        private double[] m_LowerB = new double[0];
+        private double[] m_UpperB = new double[0];
+        private int[] m_MinDeque = new int[0];
+        private int[] m_MaxDeque = new int[0];
+        private NeighbourHeap m_Heap = new NeighbourHeap();
+        private double[] m_Bounds = new double[0];
+        private int[] m_Order = new int[0];
+        private double[] m_Row = new double[0];
+        private double[] m_RowLowerB = new double[0];
+        private double[] m_RowUpperB = new double[0];
+
+        /**
+         * Makes sure all buffers hold at least the given number of values.
+         *
+         * @param length the length of the series
+         */
+        void ensureCapacity(int length) {
+            if (m_Query.length < length) {
+                m_Query = new double[length];
+                m_LowerB = new double[length];
+                m_UpperB = new double[length];
+                m_MinDeque = new int[length];
+                m_MaxDeque = new int[length];
+                m_Row = new double[length];
+                m_RowLowerB = new double[length];
+                m_RowUpperB = new double[length];
             }
+        }
 
-            if (p < lowerB[i]) {
-                sumU += Math.pow(p - lowerB[i], 2);
+        /**
+         * Makes sure the lower bounds and their order can be held for the
+         * given number of candidates.
+         *
+         * @param numCandidates the number of candidates
+         */
+        void ensureCandidateCapacity(int numCandidates) {
+            if (m_Bounds.length < numCandidates) {
+                m_Bounds = new double[numCandidates];
+                m_Order = new int[numCandidates];
             }
         }
+    }
+
+    /**
+     * Internal class holding the k-th distance shared by the workers of a
+     * split scan. The bits of non negative doubles order like the doubles
+     * themselves, so the smallest distance can be kept in an AtomicLong.
+     */
+    static class SharedBound {
 
-        return Math.sqrt(sumU + sumL);
+        private final AtomicLong m_Bits = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
 
+        /**
+         * Returns the smallest k-th distance published so far.
+         *
+         * @return the shared k-th distance
+         */
+        double get() {
+            return Double.longBitsToDouble(m_Bits.get());
+        }
+
+        /**
+         * Publishes a k-th distance, kept if it is smaller than the current.
+         *
+         * @param distance the k-th distance of a worker
+         */
+        void update(double distance) {
+            long bits = Double.doubleToLongBits(distance);
+            long current = m_Bits.get();
+            while (bits < current && !m_Bits.compareAndSet(current, bits)) {
+                current = m_Bits.get();
+            }
+        }
+    }
+
+    /**
+     * Internal class scanning a range of candidates in a fork-join pool. Ranges
+     * larger than the chunk size are split in halves, every chunk is scanned
+     * with its own heap and the heaps are merged on the way back. Every chunk
+     * counts its candidates on its own and adds them to the counts of the
+     * query when done.
+     */
+    class ScanTask extends RecursiveTask<NeighbourHeap> {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = -2210365074740780670L;
+
+        private final Kernel m_Kernel;
+        private final PreparedSeries m_Series;
+        private final int m_From;
+        private final int m_To;
+        private final int m_Chunk;
+        private final int m_K;
+        private final SharedBound m_Bound;
+        private final DTWPerformanceStats m_Counts;
+
+        ScanTask(Kernel kernel, PreparedSeries series, int from, int to, int chunk, int k, SharedBound bound,
+                DTWPerformanceStats counts) {
+            m_Kernel = kernel;
+            m_Series = series;
+            m_From = from;
+            m_To = to;
+            m_Chunk = chunk;
+            m_K = k;
+            m_Bound = bound;
+            m_Counts = counts;
+        }
+
+        /**
+         * Scans the range, or splits it and merges the neighbours of both
+         * halves.
+         *
+         * @return the k nearest neighbours in the range
+         */
+        @Override
+        protected NeighbourHeap compute() {
+            if (m_To - m_From <= m_Chunk) {
+                NeighbourHeap heap = new NeighbourHeap();
+                heap.reset(m_K);
+                DTWPerformanceStats stats = new DTWPerformanceStats();
+                search(m_Kernel, m_Series, m_From, m_To, heap, m_Bound, stats);
+                synchronized (m_Counts) {
+                    m_Counts.add(stats);
+                }
+                return heap;
+            }
+
+            int middle = (m_From + m_To) >>> 1;
+            ScanTask left = new ScanTask(m_Kernel, m_Series, m_From, middle, m_Chunk, m_K, m_Bound, m_Counts);
+            ScanTask right = new ScanTask(m_Kernel, m_Series, middle, m_To, m_Chunk, m_K, m_Bound, m_Counts);
+            left.fork();
+            NeighbourHeap heap = right.compute();
+            NeighbourHeap other = left.join();
+            for (int i = 0; i < other.size(); i++) {
+                heap.offer(other.index(i), other.distance(i));
+            }
+            return heap;
+        }
+    }
+
+    /**
+     * Internal class running the tiles of queries of a batch search in a
+     * fork-join pool. Ranges of more than one tile are split in halves.
+     */
+    class BatchTask extends RecursiveAction {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = -4604670443305540072L;
+
+        private final DTWDistance m_DTW;
+        private final PreparedSeries m_Series;
+        private final Instances m_Targets;
+        private final int m_FromTile;
+        private final int m_ToTile;
+        private final int m_K;
+        private final NeighbourHeap[] m_Heaps;
+        private final DTWPerformanceStats[] m_Counts;
+
+        BatchTask(DTWDistance dtw, PreparedSeries series, Instances targets, int fromTile, int toTile, int k,
+                NeighbourHeap[] heaps, DTWPerformanceStats[] counts) {
+            m_DTW = dtw;
+            m_Series = series;
+            m_Targets = targets;
+            m_FromTile = fromTile;
+            m_ToTile = toTile;
+            m_K = k;
+            m_Heaps = heaps;
+            m_Counts = counts;
+        }
+
+        /**
+         * Searches the tile, or splits the range of tiles in halves.
+         */
+        @Override
+        protected void compute() {
+            if (m_ToTile - m_FromTile <= 1) {
+                searchTile(m_DTW, m_Series, m_Targets, m_FromTile * QUERY_TILE,
+                        Math.min(m_Targets.numInstances(), m_ToTile * QUERY_TILE), m_K, m_Heaps, m_Counts);
+                return;
+            }
+
+            int middle = (m_FromTile + m_ToTile) >>> 1;
+            invokeAll(new BatchTask(m_DTW, m_Series, m_Targets, m_FromTile, middle, m_K, m_Heaps, m_Counts),
+                    new BatchTask(m_DTW, m_Series, m_Targets, middle, m_ToTile, m_K, m_Heaps, m_Counts));
+        }
     }
 }
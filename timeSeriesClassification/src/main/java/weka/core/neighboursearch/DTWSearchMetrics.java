@@ -0,0 +1,192 @@
+package weka.core.neighboursearch;
+
+import java.io.Serializable;
+
+/**
+ * Class holding a snapshot of the counts of a DTW nearest neighbour search,
+ * either of one query or summed over several: how many candidates were
+ * scanned, how many of them each lower bound pruned, how many times DTW was
+ * calculated and abandoned, and how many cells of the DTW matrices were
+ * calculated. A candidate is counted by the first stage that prunes it, so
+ * the candidates scanned are the sum of the pruned ones and the DTW
+ * calculations.
+ *
+ * <p/>
+ * Snapshots are immutable, see DTWSearch.getMetrics() and
+ * DTWPerformanceStats.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class DTWSearchMetrics implements Serializable {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 4201896997368614041L;
+
+    private final long m_Queries;
+    private final long m_Candidates;
+    private final long m_KimPruned;
+    private final long m_KeoghPruned;
+    private final long m_ReversedKeoghPruned;
+    private final long m_OrderPruned;
+    private final long m_IndexPruned;
+    private final long m_DTWCalculated;
+    private final long m_DTWAbandoned;
+    private final long m_Cells;
+
+    /**
+     * Constructor.
+     *
+     * @param queries the number of queries
+     * @param candidates the number of candidates scanned
+     * @param kimPruned the candidates pruned by LB_Kim
+     * @param keoghPruned the candidates pruned by LB_Keogh with the envelope
+     * of the query
+     * @param reversedKeoghPruned the candidates pruned by LB_Keogh with the
+     * envelope of the candidate
+     * @param orderPruned the candidates skipped by a scan in the order of the
+     * lower bounds
+     * @param indexPruned the candidates pruned by the lower bounds of an index
+     * @param dtwCalculated the number of DTW calculations
+     * @param dtwAbandoned the DTW calculations abandoned early
+     * @param cells the number of cells of the DTW matrices calculated
+     */
+    DTWSearchMetrics(long queries, long candidates, long kimPruned, long keoghPruned, long reversedKeoghPruned,
+            long orderPruned, long indexPruned, long dtwCalculated, long dtwAbandoned, long cells) {
+        m_Queries = queries;
+        m_Candidates = candidates;
+        m_KimPruned = kimPruned;
+        m_KeoghPruned = keoghPruned;
+        m_ReversedKeoghPruned = reversedKeoghPruned;
+        m_OrderPruned = orderPruned;
+        m_IndexPruned = indexPruned;
+        m_DTWCalculated = dtwCalculated;
+        m_DTWAbandoned = dtwAbandoned;
+        m_Cells = cells;
+    }
+
+    /**
+     * Returns the number of queries counted.
+     *
+     * @return the number of queries
+     */
+    public long getQueries() {
+        return m_Queries;
+    }
+
+    /**
+     * Returns the number of candidates scanned.
+     *
+     * @return the number of candidates
+     */
+    public long getCandidates() {
+        return m_Candidates;
+    }
+
+    /**
+     * Returns the number of candidates pruned by LB_Kim.
+     *
+     * @return the number of candidates
+     */
+    public long getKimPruned() {
+        return m_KimPruned;
+    }
+
+    /**
+     * Returns the number of candidates pruned by LB_Keogh with the envelope of
+     * the query.
+     *
+     * @return the number of candidates
+     */
+    public long getKeoghPruned() {
+        return m_KeoghPruned;
+    }
+
+    /**
+     * Returns the number of candidates pruned by LB_Keogh with the envelope of
+     * the candidate.
+     *
+     * @return the number of candidates
+     */
+    public long getReversedKeoghPruned() {
+        return m_ReversedKeoghPruned;
+    }
+
+    /**
+     * Returns the number of candidates a scan in the order of the lower bounds
+     * skipped, since their LB_Kim or LB_Keogh reached the k-th distance.
+     *
+     * @return the number of candidates
+     */
+    public long getOrderPruned() {
+        return m_OrderPruned;
+    }
+
+    /**
+     * Returns the number of candidates pruned by the lower bounds of an
+     * index, without being visited.
+     *
+     * @return the number of candidates
+     */
+    public long getIndexPruned() {
+        return m_IndexPruned;
+    }
+
+    /**
+     * Returns the number of DTW calculations, abandoned or not.
+     *
+     * @return the number of calculations
+     */
+    public long getDTWCalculated() {
+        return m_DTWCalculated;
+    }
+
+    /**
+     * Returns the number of DTW calculations abandoned because they exceeded
+     * the k-th distance.
+     *
+     * @return the number of calculations
+     */
+    public long getDTWAbandoned() {
+        return m_DTWAbandoned;
+    }
+
+    /**
+     * Returns the number of cells of the DTW matrices calculated.
+     *
+     * @return the number of cells
+     */
+    public long getCells() {
+        return m_Cells;
+    }
+
+    /**
+     * Returns the fraction of the candidates that were pruned without
+     * calculating DTW.
+     *
+     * @return the pruning rate, 0 if no candidate was scanned
+     */
+    public double getPruningRate() {
+        return m_Candidates == 0 ? 0 : 1 - (double) m_DTWCalculated / m_Candidates;
+    }
+
+    /**
+     * Returns a description of the counts.
+     *
+     * @return the counts, one per line
+     */
+    @Override
+    public String toString() {
+        return "Queries: " + m_Queries + "\n"
+                + "Candidates: " + m_Candidates + "\n"
+                + "Pruned by LB_Kim: " + m_KimPruned + "\n"
+                + "Pruned by LB_Keogh: " + m_KeoghPruned + "\n"
+                + "Pruned by reversed LB_Keogh: " + m_ReversedKeoghPruned + "\n"
+                + "Pruned by order: " + m_OrderPruned + "\n"
+                + "Pruned by the index: " + m_IndexPruned + "\n"
+                + "DTW calculated: " + m_DTWCalculated + "\n"
+                + "DTW abandoned: " + m_DTWAbandoned + "\n"
+                + "DTW cells: " + m_Cells + "\n";
+    }
+}
@@ -0,0 +1,1039 @@
+package weka.core.neighboursearch;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
+import weka.core.*;
+
+/**
+ * <!-- globalinfo-start --> Class implementing an exact DTW nearest neighbour
+ * search over an index of the training series. Every series is reduced to
+ * its Piecewise Aggregate Approximation (PAA), the means of a few segments,
+ * and the series are organized in a tree of minimum bounding rectangles (MBR)
+ * of their PAA. A query visits the nodes best-first, in ascending order of
+ * LB_PAA between the envelope of the query and the MBR of the node, and stops
+ * as soon as the next node cannot hold a series closer than the k-th
+ * neighbour found so far. The series of the leaves visited go through the
+ * same cascade of lower bounds as DTWSearch before DTW is calculated.
+ *
+ * <p/>
+ * <!-- globalinfo-end -->
+ *
+ * LB_PAA lower bounds LB_Keogh, and therefore DTW, for the envelope width of
+ * the distance function (Keogh, Exact indexing of dynamic time warping,
+ * VLDB 2002), so no neighbour is lost. The index only depends on the series,
+ * not on the window: it is built once when the instances are set, extended by
+ * update() and serialized with the search. A single query runs on one
+ * thread, since the best-first visit of the nodes cannot be split into
+ * independent ranges; a batch of queries runs its queries in parallel on the
+ * execution slots. The candidates of a leaf are visited in the order of the
+ * dataset, or in ascending order of their lower bounds if the candidates are
+ * ordered.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class IndexedDTWSearch extends DTWSearch {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = -8308145210959543660L;
+
+    /**
+     * The number of PAA segments of the series.
+     */
+    protected int m_NumSegments = 8;
+    /**
+     * The largest number of series of a leaf of the index.
+     */
+    protected int m_LeafSize = 32;
+    /**
+     * The root of the index, or null if it has to be built.
+     */
+    protected Node m_Root = null;
+    /**
+     * The PAA of the training series, one row of segment means per series.
+     */
+    protected double[] m_PAA = new double[0];
+    /**
+     * The positions of the segments in a series, the last one being the
+     * length of the series.
+     */
+    protected int[] m_Segments = new int[0];
+    /**
+     * The prepared series the index belongs to.
+     */
+    private PreparedSeries m_IndexSeries = null;
+    /**
+     * The number of series in the index.
+     */
+    private int m_NumIndexed = 0;
+    /**
+     * Per-thread scratch arrays of the queries.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Constructor: Needs that setInstances(Instances) to be called before the
+     * class is usable.
+     */
+    public IndexedDTWSearch() {
+        super();
+    }
+
+    /**
+     * Constructor that uses the supplied set of instances.
+     *
+     * @param insts the instances to use
+     * @throws Exception if the index cannot be built
+     */
+    public IndexedDTWSearch(Instances insts) throws Exception {
+        super();
+        setInstances(insts);
+    }
+
+    /**
+     * Sets the instances to search in and builds the index.
+     *
+     * @param insts the instances to use
+     * @throws Exception if the instances cannot be processed
+     */
+    @Override
+    public void setInstances(Instances insts) throws Exception {
+        super.setInstances(insts);
+        m_Root = null;
+        if (insts != null) {
+            updateIndex(getPreparedSeries());
+        }
+    }
+
+    /**
+     * Returns a string describing this nearest neighbour search algorithm.
+     *
+     * @return a description of the algorithm for displaying in the
+     * explorer/experimenter gui
+     */
+    @Override
+    public String globalInfo() {
+        return "Class implementing an exact DTW nearest neighbour search over a "
+                + "tree of the Piecewise Aggregate Approximations (PAA) of the "
+                + "training series. The nodes are visited best-first in ascending "
+                + "order of LB_PAA between the envelope of the query and their "
+                + "bounding rectangles, and the series of the leaves visited go "
+                + "through the cascade of lower bounds of DTWSearch before DTW is "
+                + "calculated, in ascending order of the lower bounds if the "
+                + "candidates are ordered. A batch of queries runs its queries in "
+                + "parallel on the execution slots; a single query is not split.";
+    }
+
+    /**
+     * Returns the k nearest instances in the current neighbourhood to the
+     * supplied instance, sorted by ascending distance. Ties at the k-th
+     * distance are resolved in favour of the instance found first, in the
+     * order the leaves are visited. The query runs on the calling thread.
+     *
+     * @param target The instance to find the k nearest neighbours for.
+     * @param k	The number of nearest neighbours to find.
+     * @return The k nearest neighbors.
+     */
+    @Override
+    public Instances kNearestNeighbours(Instance target, int k) {
+        DTWEvents.QueryEvent queryEvent = DTWEvents.beginQuery();
+
+        DTWDistance dtw = (DTWDistance) m_DistanceFunction;
+        PreparedSeries series = getPreparedSeries();
+        int length = series.getLength();
+        updateEnvelopes(series);
+        updateIndex(series);
+
+        Scratch scratch = SCRATCH.get();
+        NeighbourHeap heap = scratch.m_Heap;
+        heap.reset(k);
+        DTWPerformanceStats counts = new DTWPerformanceStats();
+        searchQuery(dtw, series, target, heap, counts, scratch);
+        recordQuery(counts);
+        if (queryEvent != null) {
+            DTWEvents.commitQuery(queryEvent, length, dtw.getWindow(length), k, counts);
+        }
+
+        heap.sort();
+        Instances neighbours = new Instances(m_Instances, heap.size());
+        m_Distances = new double[heap.size()];
+        for (int i = 0; i < heap.size(); i++) {
+            neighbours.add(m_Instances.get(heap.index(i)));
+            m_Distances[i] = heap.distance(i);
+        }
+        m_DistanceFunction.postProcessDistances(m_Distances);
+
+        return neighbours;
+    }
+
+    /**
+     * Returns the k nearest neighbours of every instance of a set of queries,
+     * each found through the index like kNearestNeighbours(Instance, int). The
+     * queries are run in parallel on the execution slots, each one on a single
+     * thread. The distances are available through getBatchDistances().
+     *
+     * @param targets the instances to find the k nearest neighbours for
+     * @param k the number of nearest neighbours to find
+     * @return the k nearest neighbours of every query, in the order of the
+     * queries
+     * @throws Exception if the neighbours could not be found
+     */
+    @Override
+    public Instances[] kNearestNeighbours(Instances targets, int k) throws Exception {
+        if (m_Instances == null) {
+            throw new Exception("No instances supplied yet. Cannot search without "
+                    + "supplying a set of instances first.");
+        }
+
+        DTWEvents.BatchEvent batchEvent = DTWEvents.beginBatch();
+        DTWDistance dtw = (DTWDistance) m_DistanceFunction;
+        PreparedSeries series = getPreparedSeries();
+        updateEnvelopes(series);
+        updateIndex(series);
+
+        int numQueries = targets.numInstances();
+        NeighbourHeap[] heaps = new NeighbourHeap[numQueries];
+        DTWPerformanceStats[] counts = new DTWPerformanceStats[numQueries];
+
+        int slots = getExecutionSlots();
+        if (slots > 1 && numQueries > 1) {
+            getPool(slots).invoke(new QueryTask(dtw, series, targets, 0, numQueries, k, heaps, counts));
+        } else {
+            searchQueries(dtw, series, targets, 0, numQueries, k, heaps, counts);
+        }
+        for (int q = 0; q < numQueries; q++) {
+            recordQuery(counts[q]);
+        }
+        if (batchEvent != null) {
+            int length = series.getLength();
+            DTWEvents.commitBatch(batchEvent, length, dtw.getWindow(length), k, counts);
+        }
+
+        Instances[] neighbours = new Instances[numQueries];
+        m_BatchDistances = new double[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            NeighbourHeap heap = heaps[q];
+            heap.sort();
+            neighbours[q] = new Instances(m_Instances, heap.size());
+            m_BatchDistances[q] = new double[heap.size()];
+            for (int i = 0; i < heap.size(); i++) {
+                neighbours[q].add(m_Instances.get(heap.index(i)));
+                m_BatchDistances[q][i] = heap.distance(i);
+            }
+            m_DistanceFunction.postProcessDistances(m_BatchDistances[q]);
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Searches the neighbours of a range of queries one after the other, with
+     * the scratch arrays of the current thread.
+     *
+     * @param dtw the distance function
+     * @param series the prepared series of the candidates
+     * @param targets the queries
+     * @param from the first query of the range
+     * @param to the query after the last one of the range
+     * @param k the number of nearest neighbours to find
+     * @param heaps the array to store the heap of each query in
+     * @param counts the array to store the pruning counts of each query in
+     */
+    private void searchQueries(DTWDistance dtw, PreparedSeries series, Instances targets, int from, int to,
+            int k, NeighbourHeap[] heaps, DTWPerformanceStats[] counts) {
+        Scratch scratch = SCRATCH.get();
+        for (int q = from; q < to; q++) {
+            heaps[q] = new NeighbourHeap();
+            heaps[q].reset(k);
+            counts[q] = new DTWPerformanceStats();
+            searchQuery(dtw, series, targets.instance(q), heaps[q], counts[q], scratch);
+        }
+    }
+
+    /**
+     * Searches the neighbours of a query through the index. The query, its
+     * envelope and the envelope reduced to the segments are kept in the
+     * scratch arrays of the current thread.
+     *
+     * @param dtw the distance function
+     * @param series the prepared series of the candidates
+     * @param target the query
+     * @param heap the heap collecting the neighbours
+     * @param counts the statistics counting the nodes and the candidates
+     * @param scratch the scratch arrays of the current thread
+     */
+    private void searchQuery(DTWDistance dtw, PreparedSeries series, Instance target, NeighbourHeap heap,
+            DTWPerformanceStats counts, Scratch scratch) {
+        int length = series.getLength();
+        int sizeW = dtw.getWindow(length);
+        scratch.ensureCapacity(length);
+        double[] query = scratch.m_Query;
+        double[] lowerB = scratch.m_LowerB;
+        double[] upperB = scratch.m_UpperB;
+        series.extract(target, query, 0);
+        computeEnvelope(query, 0, length, sizeW, lowerB, upperB, 0, WORKSPACE.get());
+
+        // the envelope of the query reduced to the segments: the largest upper
+        // bound and the smallest lower bound of every segment
+        int numSegments = m_Segments.length - 1;
+        double[] lowerP = scratch.m_LowerP;
+        double[] upperP = scratch.m_UpperP;
+        for (int s = 0; s < numSegments; s++) {
+            double lower = Double.POSITIVE_INFINITY;
+            double upper = Double.NEGATIVE_INFINITY;
+            for (int j = m_Segments[s]; j < m_Segments[s + 1]; j++) {
+                // in single precision the candidates are compared with the
+                // query rounded to floats
+                double l = series.isSinglePrecision() ? (float) lowerB[j] : lowerB[j];
+                double u = series.isSinglePrecision() ? (float) upperB[j] : upperB[j];
+                lower = Math.min(lower, l);
+                upper = Math.max(upper, u);
+            }
+            lowerP[s] = lower;
+            upperP[s] = upper;
+        }
+
+        Kernel kernel = newKernel(dtw, series, query, 0, lowerB, upperB);
+        if (m_Root != null) {
+            searchIndex(kernel, series, lowerP, upperP, heap, counts, scratch);
+        }
+    }
+
+    /**
+     * Visits the nodes of the index best-first. A node is only expanded if
+     * LB_PAA between the query and its bounding rectangle is smaller than the
+     * k-th distance so far, and the search stops at the first node of the
+     * queue that is not, since all the other ones have a larger lower bound.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param series the prepared series of the candidates
+     * @param lowerP the smallest lower bound of the envelope of the query in
+     * every segment
+     * @param upperP the largest upper bound of the envelope of the query in
+     * every segment
+     * @param heap the heap collecting the neighbours
+     * @param stats the statistics counting the nodes and the candidates
+     * @param scratch the scratch arrays of the current thread
+     */
+    private void searchIndex(Kernel kernel, PreparedSeries series, double[] lowerP, double[] upperP,
+            NeighbourHeap heap, DTWPerformanceStats stats, Scratch scratch) {
+
+        NodeQueue queue = scratch.m_Queue;
+        queue.add(m_Root, lowerBoundPAA(m_Root.m_Min, m_Root.m_Max, 0, lowerP, upperP, Double.POSITIVE_INFINITY));
+
+        while (!queue.isEmpty()) {
+            double kthDistance = heap.threshold();
+            if (queue.peekBound() >= kthDistance) {
+                break;
+            }
+
+            Node node = queue.poll();
+            if (node.isLeaf()) {
+                stats.incrLeafCount();
+                searchLeaf(kernel, series, node, lowerP, upperP, heap, stats, scratch);
+            } else {
+                stats.incrIntNodeCount();
+                kthDistance = heap.threshold();
+                for (int c = 0; c < 2; c++) {
+                    Node child = c == 0 ? node.m_Left : node.m_Right;
+                    double bound = lowerBoundPAA(child.m_Min, child.m_Max, 0, lowerP, upperP, kthDistance);
+                    if (bound >= kthDistance) {
+                        stats.updateIndexCount(child.m_Size);
+                    } else {
+                        queue.add(child, bound);
+                    }
+                }
+            }
+        }
+
+        // the nodes left in the queue were pruned by their lower bound
+        while (!queue.isEmpty()) {
+            stats.updateIndexCount(queue.poll().m_Size);
+        }
+    }
+
+    /**
+     * Scans the series of a leaf. A series is pruned by LB_PAA of its own
+     * PAA first; the other ones go through the cascade of lower bounds before
+     * DTW is calculated, in the order of the dataset or, if the candidates
+     * are ordered, in ascending order of their lower bounds.
+     *
+     * @param kernel the kernel comparing the query with the candidates
+     * @param series the prepared series of the candidates
+     * @param node the leaf
+     * @param lowerP the smallest lower bound of the envelope of the query in
+     * every segment
+     * @param upperP the largest upper bound of the envelope of the query in
+     * every segment
+     * @param heap the heap collecting the neighbours
+     * @param stats the statistics counting the candidates
+     * @param scratch the scratch arrays of the current thread
+     */
+    private void searchLeaf(Kernel kernel, PreparedSeries series, Node node, double[] lowerP, double[] upperP,
+            NeighbourHeap heap, DTWPerformanceStats stats, Scratch scratch) {
+        int numSegments = m_Segments.length - 1;
+
+        if (m_OrderCandidates) {
+            int[] rows = scratch.ensureRows(node.m_Size);
+            double kthDistance = heap.threshold();
+            int numCandidates = 0;
+            for (int m = 0; m < node.m_Size; m++) {
+                int i = node.m_Members[m];
+                if (lowerBoundPAA(m_PAA, m_PAA, i * numSegments, lowerP, upperP, kthDistance) >= kthDistance) {
+                    stats.updateIndexCount(1);
+                } else {
+                    rows[numCandidates++] = i;
+                }
+            }
+            searchOrdered(kernel, series, rows, 0, numCandidates, heap, null, stats, null, WORKSPACE.get());
+            return;
+        }
+
+        for (int m = 0; m < node.m_Size; m++) {
+            int i = node.m_Members[m];
+            double kthDistance = heap.threshold();
+            if (lowerBoundPAA(m_PAA, m_PAA, i * numSegments, lowerP, upperP, kthDistance) >= kthDistance) {
+                stats.updateIndexCount(1);
+                continue;
+            }
+
+            int offset = series.offset(i);
+            stats.incrPointCount();
+            if (prune(kernel, offset, kthDistance, stats)) {
+                continue;
+            }
+
+            double distanceDTW = kernel.distance(offset, kthDistance, stats);
+            stats.incrDTWCount(distanceDTW == Double.POSITIVE_INFINITY);
+            if (m_SkipIdentical && distanceDTW == 0) {
+                continue;
+            }
+            heap.offer(i, distanceDTW);
+        }
+    }
+
+    /**
+     * Computes LB_PAA between the envelope of the query and a bounding
+     * rectangle of PAA values: the squared gap between the range of every
+     * segment and the envelope of the query in that segment, weighted by the
+     * length of the segment. The PAA of a single series is the rectangle
+     * whose lower and upper corners are the same.
+     *
+     * @param min the array holding the lower corner of the rectangle
+     * @param max the array holding the upper corner of the rectangle
+     * @param offset the position of the rectangle in min and max
+     * @param lowerP the smallest lower bound of the envelope of the query in
+     * every segment
+     * @param upperP the largest upper bound of the envelope of the query in
+     * every segment
+     * @param cutOff the squared distance above which the sum is abandoned
+     * @return the lower bound, or Double.POSITIVE_INFINITY if abandoned
+     */
+    private double lowerBoundPAA(double[] min, double[] max, int offset, double[] lowerP, double[] upperP,
+            double cutOff) {
+        int numSegments = m_Segments.length - 1;
+        double sum = 0;
+        for (int s = 0; s < numSegments; s++) {
+            double gap;
+            if (min[offset + s] > upperP[s]) {
+                gap = min[offset + s] - upperP[s];
+            } else if (max[offset + s] < lowerP[s]) {
+                gap = lowerP[s] - max[offset + s];
+            } else {
+                continue;
+            }
+            sum += (m_Segments[s + 1] - m_Segments[s]) * gap * gap;
+            if (sum >= cutOff) {
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Brings the index up to date. It is built again from scratch if the
+     * series were prepared again, fewer series are prepared than indexed or
+     * the settings of the index changed, otherwise the newly added series are
+     * inserted.
+     *
+     * @param series the prepared series of m_Instances
+     */
+    void updateIndex(PreparedSeries series) {
+        int length = series.getLength();
+        int numSegments = Math.max(1, Math.min(m_NumSegments, length));
+
+        if (m_Root == null || series != m_IndexSeries || series.numSeries() < m_NumIndexed
+                || m_Segments.length != numSegments + 1 || m_Segments[numSegments] != length) {
+            m_Segments = new int[numSegments + 1];
+            for (int s = 0; s <= numSegments; s++) {
+                m_Segments[s] = (int) ((long) s * length / numSegments);
+            }
+            m_IndexSeries = series;
+            m_NumIndexed = 0;
+            m_Root = null;
+            m_PAA = new double[0];
+        }
+
+        int numSeries = series.numSeries();
+        if (m_NumIndexed == numSeries) {
+            return;
+        }
+
+        if (m_PAA.length < numSeries * numSegments) {
+            m_PAA = Arrays.copyOf(m_PAA, Math.max(numSeries * numSegments, 2 * m_PAA.length));
+        }
+        for (int i = m_NumIndexed; i < numSeries; i++) {
+            computePAA(series, i, m_PAA, i * numSegments);
+        }
+
+        if (m_Root == null) {
+            int[] members = new int[numSeries];
+            for (int i = 0; i < numSeries; i++) {
+                members[i] = i;
+            }
+            m_Root = numSeries > 0 ? build(members, 0, numSeries) : null;
+        } else {
+            for (int i = m_NumIndexed; i < numSeries; i++) {
+                insert(i);
+            }
+        }
+        m_NumIndexed = numSeries;
+    }
+
+    /**
+     * Computes the PAA of a prepared series: the mean of every segment.
+     *
+     * @param series the prepared series
+     * @param row the row of the series
+     * @param dest the array to store the means in
+     * @param offset the position of the first mean in dest
+     */
+    private void computePAA(PreparedSeries series, int row, double[] dest, int offset) {
+        int start = series.offset(row);
+        for (int s = 0; s < m_Segments.length - 1; s++) {
+            double sum = 0;
+            if (series.isSinglePrecision()) {
+                float[] values = series.getFloatValues();
+                for (int j = m_Segments[s]; j < m_Segments[s + 1]; j++) {
+                    sum += values[start + j];
+                }
+            } else {
+                double[] values = series.getValues();
+                for (int j = m_Segments[s]; j < m_Segments[s + 1]; j++) {
+                    sum += values[start + j];
+                }
+            }
+            dest[offset + s] = sum / (m_Segments[s + 1] - m_Segments[s]);
+        }
+    }
+
+    /**
+     * Builds the subtree of a range of series. Ranges of more than a leaf are
+     * split at the median of the segment whose means spread the most.
+     *
+     * @param members the array holding the rows of the series, reordered
+     * @param from the first series of the range
+     * @param to the series after the last one of the range
+     * @return the root of the subtree
+     */
+    private Node build(int[] members, int from, int to) {
+        int numSegments = m_Segments.length - 1;
+        Node node = new Node(numSegments);
+        for (int m = from; m < to; m++) {
+            node.include(m_PAA, members[m] * numSegments);
+        }
+
+        if (to - from <= m_LeafSize) {
+            node.m_Members = Arrays.copyOfRange(members, from, to);
+            node.m_Size = to - from;
+            return node;
+        }
+
+        int split = 0;
+        for (int s = 1; s < numSegments; s++) {
+            if (node.m_Max[s] - node.m_Min[s] > node.m_Max[split] - node.m_Min[split]) {
+                split = s;
+            }
+        }
+        double[] keys = new double[to - from];
+        int[] order = new int[to - from];
+        for (int m = from; m < to; m++) {
+            keys[m - from] = m_PAA[members[m] * numSegments + split];
+            order[m - from] = members[m];
+        }
+        sortByKey(keys, order, 0, keys.length - 1);
+        System.arraycopy(order, 0, members, from, order.length);
+
+        int middle = (from + to) >>> 1;
+        node.m_Left = build(members, from, middle);
+        node.m_Right = build(members, middle, to);
+        node.m_Size = to - from;
+        return node;
+    }
+
+    /**
+     * Inserts a series in the index. It goes down to the child whose bounding
+     * rectangle grows the least, and a leaf that grows beyond twice the leaf
+     * size is split into a subtree.
+     *
+     * @param row the row of the series
+     */
+    private void insert(int row) {
+        int numSegments = m_Segments.length - 1;
+        int offset = row * numSegments;
+        Node node = m_Root;
+        while (!node.isLeaf()) {
+            node.include(m_PAA, offset);
+            node.m_Size++;
+            double left = node.m_Left.enlargement(m_PAA, offset);
+            double right = node.m_Right.enlargement(m_PAA, offset);
+            if (left < right || (left == right && node.m_Left.m_Size <= node.m_Right.m_Size)) {
+                node = node.m_Left;
+            } else {
+                node = node.m_Right;
+            }
+        }
+
+        node.include(m_PAA, offset);
+        if (node.m_Size == node.m_Members.length) {
+            node.m_Members = Arrays.copyOf(node.m_Members, Math.max(1, 2 * node.m_Size));
+        }
+        node.m_Members[node.m_Size++] = row;
+
+        if (node.m_Size > 2 * m_LeafSize) {
+            Node subtree = build(node.m_Members, 0, node.m_Size);
+            node.m_Left = subtree.m_Left;
+            node.m_Right = subtree.m_Right;
+            node.m_Members = null;
+        }
+    }
+
+    /**
+     * Returns an enumeration describing the available options.
+     *
+     * @return an enumeration of all the available options.
+     */
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> result = new Vector<Option>();
+
+        Enumeration<?> en = super.listOptions();
+        while (en.hasMoreElements()) {
+            result.add((Option) en.nextElement());
+        }
+
+        result.add(new Option(
+                "\tThe number of PAA segments of the series.\n"
+                + "\t(default 8)",
+                "num-segments", 1, "-num-segments <num>"));
+
+        result.add(new Option(
+                "\tThe largest number of series of a leaf of the index.\n"
+                + "\t(default 32)",
+                "leaf-size", 1, "-leaf-size <num>"));
+
+        return result.elements();
+    }
+
+    /**
+     * Parses a given list of options.
+     * <p/>
+     *
+     * <!-- options-start --> Valid options are:
+     * <p/>
+     *
+     * <pre> -S
+     *  Skip identical instances (distances equal to zero).
+     * </pre>
+     *
+     * <pre> -L &lt;num&gt;
+     *  The lower bounds tried before DTW is calculated:
+     *  0 = none, 1 = LB_Keogh, 2 = LB_Kim and LB_Keogh,
+     *  3 = LB_Kim, LB_Keogh and reversed LB_Keogh
+     *  (default 3)</pre>
+     *
+     * <pre> -num-segments &lt;num&gt;
+     *  The number of PAA segments of the series.
+     *  (default 8)</pre>
+     *
+     * <pre> -leaf-size &lt;num&gt;
+     *  The largest number of series of a leaf of the index.
+     *  (default 32)</pre>
+     *
+     * <!-- options-end -->
+     *
+     * @param options the list of options as an array of strings
+     * @throws Exception if an option is not supported
+     */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        String tmpStr = Utils.getOption("num-segments", options);
+        if (tmpStr.length() != 0) {
+            setNumSegments(Integer.parseInt(tmpStr));
+        } else {
+            setNumSegments(8);
+        }
+
+        tmpStr = Utils.getOption("leaf-size", options);
+        if (tmpStr.length() != 0) {
+            setLeafSize(Integer.parseInt(tmpStr));
+        } else {
+            setLeafSize(32);
+        }
+
+        super.setOptions(options);
+    }
+
+    /**
+     * Gets the current settings.
+     *
+     * @return an array of strings suitable for passing to setOptions()
+     */
+    @Override
+    public String[] getOptions() {
+        Vector<String> result = new Vector<String>();
+
+        String[] options = super.getOptions();
+        for (int i = 0; i < options.length; i++) {
+            result.add(options[i]);
+        }
+
+        result.add("-num-segments");
+        result.add("" + getNumSegments());
+
+        result.add("-leaf-size");
+        result.add("" + getLeafSize());
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String numSegmentsTipText() {
+        return "The number of PAA segments the series are reduced to in the index "
+                + "(at most the length of the series). More segments give tighter "
+                + "lower bounds but larger nodes.";
+    }
+
+    /**
+     * Sets the number of PAA segments. The index is built again on the next
+     * query.
+     *
+     * @param numSegments the number of segments
+     */
+    public void setNumSegments(int numSegments) {
+        if (numSegments < 1) {
+            throw new IllegalArgumentException("The number of segments must be at least 1.");
+        }
+        if (numSegments != m_NumSegments) {
+            m_NumSegments = numSegments;
+            m_Root = null;
+        }
+    }
+
+    /**
+     * Gets the number of PAA segments.
+     *
+     * @return the number of segments
+     */
+    public int getNumSegments() {
+        return m_NumSegments;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String leafSizeTipText() {
+        return "The largest number of series of a leaf of the index.";
+    }
+
+    /**
+     * Sets the largest number of series of a leaf. The index is built again on
+     * the next query.
+     *
+     * @param leafSize the leaf size
+     */
+    public void setLeafSize(int leafSize) {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("The leaf size must be at least 1.");
+        }
+        if (leafSize != m_LeafSize) {
+            m_LeafSize = leafSize;
+            m_Root = null;
+        }
+    }
+
+    /**
+     * Gets the largest number of series of a leaf.
+     *
+     * @return the leaf size
+     */
+    public int getLeafSize() {
+        return m_LeafSize;
+    }
+
+    /**
+     * Updates the search to cater for a new instance, which is added to the
+     * index.
+     *
+     * @param ins the instance to add
+     * @throws Exception if the given instances are null
+     */
+    @Override
+    public void update(Instance ins) throws Exception {
+        super.update(ins);
+        updateIndex(getPreparedSeries());
+    }
+
+    /**
+     * Internal class of a node of the index: the bounding rectangle of the PAA
+     * of its series and either its two children or, for a leaf, the rows of
+     * its series.
+     */
+    static class Node implements Serializable {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = -7880000102164505260L;
+
+        /**
+         * The smallest mean of every segment.
+         */
+        double[] m_Min;
+        /**
+         * The largest mean of every segment.
+         */
+        double[] m_Max;
+        /**
+         * The children of an inner node.
+         */
+        Node m_Left, m_Right;
+        /**
+         * The rows of the series of a leaf, null for an inner node.
+         */
+        int[] m_Members;
+        /**
+         * The number of series below the node.
+         */
+        int m_Size;
+
+        Node(int numSegments) {
+            m_Min = new double[numSegments];
+            m_Max = new double[numSegments];
+            Arrays.fill(m_Min, Double.POSITIVE_INFINITY);
+            Arrays.fill(m_Max, Double.NEGATIVE_INFINITY);
+        }
+
+        boolean isLeaf() {
+            return m_Members != null;
+        }
+
+        /**
+         * Grows the rectangle to include a PAA.
+         *
+         * @param paa the array holding the PAA
+         * @param offset the position of the PAA in paa
+         */
+        void include(double[] paa, int offset) {
+            for (int s = 0; s < m_Min.length; s++) {
+                m_Min[s] = Math.min(m_Min[s], paa[offset + s]);
+                m_Max[s] = Math.max(m_Max[s], paa[offset + s]);
+            }
+        }
+
+        /**
+         * Returns how much the extents of the rectangle would grow to include
+         * a PAA, summed over the segments.
+         *
+         * @param paa the array holding the PAA
+         * @param offset the position of the PAA in paa
+         * @return the enlargement
+         */
+        double enlargement(double[] paa, int offset) {
+            double sum = 0;
+            for (int s = 0; s < m_Min.length; s++) {
+                sum += Math.max(0, m_Min[s] - paa[offset + s]) + Math.max(0, paa[offset + s] - m_Max[s]);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Internal class implementing the queue of the best-first search, a binary
+     * min-heap of nodes keyed by their lower bound.
+     */
+    static class NodeQueue {
+
+        private Node[] m_Nodes = new Node[16];
+        private double[] m_Bounds = new double[16];
+        private int m_Size = 0;
+
+        boolean isEmpty() {
+            return m_Size == 0;
+        }
+
+        double peekBound() {
+            return m_Bounds[0];
+        }
+
+        void add(Node node, double bound) {
+            if (m_Size == m_Nodes.length) {
+                m_Nodes = Arrays.copyOf(m_Nodes, 2 * m_Size);
+                m_Bounds = Arrays.copyOf(m_Bounds, 2 * m_Size);
+            }
+            int i = m_Size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (m_Bounds[parent] <= bound) {
+                    break;
+                }
+                m_Nodes[i] = m_Nodes[parent];
+                m_Bounds[i] = m_Bounds[parent];
+                i = parent;
+            }
+            m_Nodes[i] = node;
+            m_Bounds[i] = bound;
+        }
+
+        Node poll() {
+            Node top = m_Nodes[0];
+            m_Size--;
+            Node last = m_Nodes[m_Size];
+            double bound = m_Bounds[m_Size];
+            m_Nodes[m_Size] = null;
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= m_Size) {
+                    break;
+                }
+                if (child + 1 < m_Size && m_Bounds[child + 1] < m_Bounds[child]) {
+                    child++;
+                }
+                if (m_Bounds[child] >= bound) {
+                    break;
+                }
+                m_Nodes[i] = m_Nodes[child];
+                m_Bounds[i] = m_Bounds[child];
+                i = child;
+            }
+            if (m_Size > 0) {
+                m_Nodes[i] = last;
+                m_Bounds[i] = bound;
+            }
+            return top;
+        }
+    }
+
+    /**
+     * Internal class holding the scratch arrays of the queries of a thread:
+     * the query and its envelope, the envelope reduced to the segments, the
+     * rows of a leaf left after LB_PAA, the heap of a single query and the
+     * queue of the best-first search, which is always left empty.
+     */
+    static class Scratch {
+
+        private double[] m_Query = new double[0];
+        private double[] m_LowerB = new double[0];
+        private double[] m_UpperB = new double[0];
+        private double[] m_LowerP = new double[0];
+        private double[] m_UpperP = new double[0];
+        private int[] m_Rows = new int[0];
+        private NeighbourHeap m_Heap = new NeighbourHeap();
+        private NodeQueue m_Queue = new NodeQueue();
+
+        /**
+         * Makes sure the arrays can hold a series of the given length. The
+         * number of segments is at most the length of the series.
+         *
+         * @param length the length of the series
+         */
+        void ensureCapacity(int length) {
+            if (m_Query.length < length) {
+                m_Query = new double[length];
+                m_LowerB = new double[length];
+                m_UpperB = new double[length];
+                m_LowerP = new double[length];
+                m_UpperP = new double[length];
+            }
+        }
+
+        /**
+         * Returns an array that can hold the rows of a leaf.
+         *
+         * @param size the number of series of the leaf
+         * @return the array
+         */
+        int[] ensureRows(int size) {
+            if (m_Rows.length < size) {
+                m_Rows = new int[size];
+            }
+            return m_Rows;
+        }
+    }
+
+    /**
+     * Internal class running the queries of a batch search in a fork-join
+     * pool. Ranges of more than one query are split in halves.
+     */
+    class QueryTask extends RecursiveAction {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = 3046728791519562517L;
+
+        private final DTWDistance m_DTW;
+        private final PreparedSeries m_Series;
+        private final Instances m_Targets;
+        private final int m_From;
+        private final int m_To;
+        private final int m_K;
+        private final NeighbourHeap[] m_Heaps;
+        private final DTWPerformanceStats[] m_Counts;
+
+        QueryTask(DTWDistance dtw, PreparedSeries series, Instances targets, int from, int to, int k,
+                NeighbourHeap[] heaps, DTWPerformanceStats[] counts) {
+            m_DTW = dtw;
+            m_Series = series;
+            m_Targets = targets;
+            m_From = from;
+            m_To = to;
+            m_K = k;
+            m_Heaps = heaps;
+            m_Counts = counts;
+        }
+
+        /**
+         * Searches the query, or splits the range of queries in halves.
+         */
+        @Override
+        protected void compute() {
+            if (m_To - m_From <= 1) {
+                searchQueries(m_DTW, m_Series, m_Targets, m_From, m_To, m_K, m_Heaps, m_Counts);
+                return;
+            }
+
+            int middle = (m_From + m_To) >>> 1;
+            invokeAll(new QueryTask(m_DTW, m_Series, m_Targets, m_From, middle, m_K, m_Heaps, m_Counts),
+                    new QueryTask(m_DTW, m_Series, m_Targets, middle, m_To, m_K, m_Heaps, m_Counts));
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package weka.core.neighboursearch;
+
+import java.util.concurrent.RecursiveTask;
+import weka.core.*;
+
+/**
+ * Class implementing the nearest neighbour search of DTWSearch over a
+ * SeriesStore, so training sets that do not fit in the heap can be searched.
+ * The rows are read from the mapped file in blocks, go through the same
+ * cascade of lower bounds (the envelope of a candidate is computed only when
+ * the first bounds could not prune it) and are compared with early abandoning
+ * DTW. Only the neighbours found are built as instances.
+ *
+ * <p/>
+ * The candidates are always visited in the order of the store, whatever
+ * orderCandidates is set to, and the store is read and compared in double
+ * precision even if the distance function is set to single precision.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class MappedDTWSearch extends DTWSearch {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = -1508485433316444787L;
+
+    /**
+     * The number of values of a block of rows read from the store at a time.
+     */
+    private static final int BLOCK = 8192;
+    /**
+     * The store to search in.
+     */
+    protected SeriesStore m_Store = null;
+
+    /**
+     * Constructor: Needs that setSeriesStore(SeriesStore) to be called before
+     * the class is usable.
+     */
+    public MappedDTWSearch() {
+        super();
+    }
+
+    /**
+     * Constructor that uses the supplied series store.
+     *
+     * @param store the store to search in
+     * @throws Exception if the structure of the store cannot be processed
+     */
+    public MappedDTWSearch(SeriesStore store) throws Exception {
+        super();
+        setSeriesStore(store);
+    }
+
+    /**
+     * Sets the store to search in. The structure of the store becomes the set
+     * of instances of the search.
+     *
+     * @param store the store to search in
+     * @throws Exception if the structure of the store cannot be processed
+     */
+    public void setSeriesStore(SeriesStore store) throws Exception {
+        m_Store = store;
+        setInstances(store.getStructure());
+    }
+
+    /**
+     * Gets the store to search in.
+     *
+     * @return the store
+     */
+    public SeriesStore getSeriesStore() {
+        return m_Store;
+    }
+
+    /**
+     * Returns a string describing this nearest neighbour search algorithm.
+     *
+     * @return a description of the algorithm for displaying in the
+     * explorer/experimenter gui
+     */
+    @Override
+    public String globalInfo() {
+        return "Class implementing the DTW nearest neighbour search with a cascade "
+                + "of lower bounds over a memory-mapped series store, for training "
+                + "sets that do not fit in the heap.";
+    }
+
+    /**
+     * Returns the k nearest series of the store to the supplied instance,
+     * sorted by ascending distance. Ties at the k-th distance are resolved in
+     * favour of the series found first.
+     *
+     * @param target The instance to find the k nearest neighbours for.
+     * @param k	The number of nearest neighbours to find.
+     * @return The k nearest neighbors.
+     */
+    @Override
+    public Instances kNearestNeighbours(Instance target, int k) {
+        if (m_Store == null) {
+            return super.kNearestNeighbours(target, k);
+        }
+
+        DTWEvents.QueryEvent queryEvent = DTWEvents.beginQuery();
+        DTWDistance dtw = (DTWDistance) m_DistanceFunction;
+        int length = m_Store.getLength();
+        int sizeW = dtw.getWindow(length);
+
+        double[] query = new double[length];
+        double[] lowerB = new double[length];
+        double[] upperB = new double[length];
+        PreparedSeries.extract(target, m_Store.getAttributes(), query, 0);
+        computeEnvelope(query, 0, length, sizeW, lowerB, upperB, 0, new Workspace());
+
+        NeighbourHeap heap;
+        DTWPerformanceStats counts = new DTWPerformanceStats();
+        int numSeries = m_Store.numSeries();
+        int slots = getExecutionSlots();
+        if (slots > 1 && numSeries > MIN_CHUNK) {
+            int chunk = Math.max(MIN_CHUNK, (numSeries + 4 * slots - 1) / (4 * slots));
+            heap = getPool(slots).invoke(new StoreScanTask(dtw, 0, numSeries, chunk, query, lowerB, upperB, k,
+                    new SharedBound(), counts));
+        } else {
+            heap = new NeighbourHeap();
+            heap.reset(k);
+            scan(dtw, 0, numSeries, query, lowerB, upperB, heap, null, counts);
+        }
+        recordQuery(counts);
+        if (queryEvent != null) {
+            DTWEvents.commitQuery(queryEvent, length, sizeW, k, counts);
+        }
+
+        heap.sort();
+        Instances neighbours = new Instances(m_Store.getStructure(), heap.size());
+        m_Distances = new double[heap.size()];
+        for (int i = 0; i < heap.size(); i++) {
+            neighbours.add(m_Store.instance(heap.index(i)));
+            m_Distances[i] = heap.distance(i);
+        }
+        m_DistanceFunction.postProcessDistances(m_Distances);
+
+        return neighbours;
+    }
+
+    /**
+     * Returns the k nearest series of the store to every instance of a set of
+     * queries, each found by a scan of the store like
+     * kNearestNeighbours(Instance, int). The distances are available through
+     * getBatchDistances().
+     *
+     * @param targets the instances to find the k nearest neighbours for
+     * @param k the number of nearest neighbours to find
+     * @return the k nearest neighbours of every query, in the order of the
+     * queries
+     * @throws Exception if the neighbours could not be found
+     */
+    @Override
+    public Instances[] kNearestNeighbours(Instances targets, int k) throws Exception {
+        if (m_Store == null) {
+            return super.kNearestNeighbours(targets, k);
+        }
+
+        Instances[] neighbours = new Instances[targets.numInstances()];
+        m_BatchDistances = new double[targets.numInstances()][];
+        for (int q = 0; q < targets.numInstances(); q++) {
+            neighbours[q] = kNearestNeighbours(targets.instance(q), k);
+            m_BatchDistances[q] = m_Distances;
+        }
+        return neighbours;
+    }
+
+    /**
+     * Scans a range of rows of the store, reading them in blocks.
+     *
+     * @param dtw the distance function
+     * @param from the first row to scan
+     * @param to the row after the last one to scan
+     * @param query the series of the query
+     * @param lowerB the lower bound of the envelope of the query
+     * @param upperB the upper bound of the envelope of the query
+     * @param heap the heap collecting the neighbours
+     * @param bound the k-th distance shared with the other workers, or null
+     * @param stats the statistics counting the candidates of the scan
+     */
+    private void scan(DTWDistance dtw, int from, int to, double[] query, double[] lowerB, double[] upperB,
+            NeighbourHeap heap, SharedBound bound, DTWPerformanceStats stats) {
+
+        int length = m_Store.getLength();
+        int sizeW = dtw.getWindow(length);
+        int rows = Math.max(1, BLOCK / Math.max(1, length));
+        double[] block = new double[rows * length];
+        double[] lowerC = new double[length];
+        double[] upperC = new double[length];
+        Workspace ws = new Workspace();
+
+        for (int start = from; start < to; start += rows) {
+            int count = Math.min(rows, to - start);
+            m_Store.read(start, count, block, 0);
+
+            for (int r = 0; r < count; r++) {
+                int offset = r * length;
+                double kthDistance = threshold(heap, bound);
+                stats.incrPointCount();
+
+                if (m_LowerBound >= LB_KIM_KEOGH
+                        && computeLB_Kim(query, 0, block, offset, length) >= kthDistance) {
+                    stats.incrKimCount();
+                    continue;
+                }
+                if (m_LowerBound >= LB_KEOGH
+                        && computeLB_Keogh(lowerB, upperB, 0, block, offset, length, kthDistance) >= kthDistance) {
+                    stats.incrKeoghCount();
+                    continue;
+                }
+                if (m_LowerBound >= LB_CASCADE) {
+                    computeEnvelope(block, offset, length, sizeW, lowerC, upperC, 0, ws);
+                    if (computeLB_Keogh(lowerC, upperC, 0, query, 0, length, kthDistance) >= kthDistance) {
+                        stats.incrReversedKeoghCount();
+                        continue;
+                    }
+                }
+
+                double distanceDTW = dtw.distance(block, offset, query, 0, length, kthDistance, stats);
+                stats.incrDTWCount(distanceDTW == Double.POSITIVE_INFINITY);
+                if (m_SkipIdentical && distanceDTW == 0) {
+                    continue;
+                }
+                offer(heap, bound, start + r, distanceDTW);
+            }
+        }
+    }
+
+    /**
+     * Updates the search to cater for a new instance. Not supported, the store
+     * is read-only.
+     *
+     * @param ins the instance to add
+     * @throws Exception always if a store is set
+     */
+    @Override
+    public void update(Instance ins) throws Exception {
+        if (m_Store != null) {
+            throw new Exception("A series store is read-only, cannot add instances.");
+        }
+        super.update(ins);
+    }
+
+    /**
+     * Internal class scanning a range of rows of the store in a fork-join
+     * pool, like the ScanTask of DTWSearch.
+     */
+    class StoreScanTask extends RecursiveTask<NeighbourHeap> {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = 7018248421554772525L;
+
+        private final DTWDistance m_DTW;
+        private final int m_From;
+        private final int m_To;
+        private final int m_Chunk;
+        private final double[] m_Query;
+        private final double[] m_LowerB;
+        private final double[] m_UpperB;
+        private final int m_K;
+        private final SharedBound m_Bound;
+        private final DTWPerformanceStats m_Counts;
+
+        StoreScanTask(DTWDistance dtw, int from, int to, int chunk, double[] query, double[] lowerB,
+                double[] upperB, int k, SharedBound bound, DTWPerformanceStats counts) {
+            m_DTW = dtw;
+            m_From = from;
+            m_To = to;
+            m_Chunk = chunk;
+            m_Query = query;
+            m_LowerB = lowerB;
+            m_UpperB = upperB;
+            m_K = k;
+            m_Bound = bound;
+            m_Counts = counts;
+        }
+
+        /**
+         * Scans the range, or splits it and merges the neighbours of both
+         * halves.
+         *
+         * @return the k nearest neighbours in the range
+         */
+        @Override
+        protected NeighbourHeap compute() {
+            if (m_To - m_From <= m_Chunk) {
+                NeighbourHeap heap = new NeighbourHeap();
+                heap.reset(m_K);
+                DTWPerformanceStats stats = new DTWPerformanceStats();
+                scan(m_DTW, m_From, m_To, m_Query, m_LowerB, m_UpperB, heap, m_Bound, stats);
+                synchronized (m_Counts) {
+                    m_Counts.add(stats);
+                }
+                return heap;
+            }
+
+            int middle = (m_From + m_To) >>> 1;
+            StoreScanTask left = new StoreScanTask(m_DTW, m_From, middle, m_Chunk, m_Query, m_LowerB, m_UpperB,
+                    m_K, m_Bound, m_Counts);
+            StoreScanTask right = new StoreScanTask(m_DTW, middle, m_To, m_Chunk, m_Query, m_LowerB, m_UpperB,
+                    m_K, m_Bound, m_Counts);
+            left.fork();
+            NeighbourHeap heap = right.compute();
+            NeighbourHeap other = left.join();
+            for (int i = 0; i < other.size(); i++) {
+                heap.offer(other.index(i), other.distance(i));
+            }
+            return heap;
+        }
+    }
+}
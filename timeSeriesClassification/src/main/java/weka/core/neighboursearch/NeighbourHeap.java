@@ -0,0 +1,157 @@
+package weka.core.neighboursearch;
+
+/**
+ * Class implementing a bounded max-heap of neighbours on primitive arrays. It
+ * keeps the k closest candidates offered so far (their indices and their
+ * distances), with the farthest of them on top, so the distance a candidate
+ * has to beat is available in constant time.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+class NeighbourHeap {
+
+    /**
+     * The indices of the neighbours, in heap order.
+     */
+    private int[] m_Indices = new int[0];
+    /**
+     * The distances of the neighbours, in heap order.
+     */
+    private double[] m_Distances = new double[0];
+    /**
+     * The number of neighbours to keep.
+     */
+    private int m_K = 0;
+    /**
+     * The number of neighbours in the heap.
+     */
+    private int m_Size = 0;
+
+    /**
+     * Empties the heap and sets the number of neighbours to keep.
+     *
+     * @param k the number of neighbours to keep
+     */
+    void reset(int k) {
+        if (m_Indices.length < k) {
+            m_Indices = new int[k];
+            m_Distances = new double[k];
+        }
+        m_K = k;
+        m_Size = 0;
+    }
+
+    /**
+     * Returns the distance a candidate has to beat to enter the heap, i.e. the
+     * distance of the k-th neighbour, or infinity while the heap is not full.
+     *
+     * @return the current k-th distance
+     */
+    double threshold() {
+        return m_Size < m_K ? Double.POSITIVE_INFINITY : m_Distances[0];
+    }
+
+    /**
+     * Offers a candidate to the heap. It is kept if the heap is not full yet or
+     * if it is closer than the current k-th neighbour, which is then dropped.
+     *
+     * @param index the index of the candidate
+     * @param distance the distance of the candidate
+     * @return true if the candidate was kept
+     */
+    boolean offer(int index, double distance) {
+        if (m_Size < m_K) {
+            // sift up from the new leaf
+            int i = m_Size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (m_Distances[parent] >= distance) {
+                    break;
+                }
+                m_Indices[i] = m_Indices[parent];
+                m_Distances[i] = m_Distances[parent];
+                i = parent;
+            }
+            m_Indices[i] = index;
+            m_Distances[i] = distance;
+            return true;
+        }
+        if (m_K == 0 || distance >= m_Distances[0]) {
+            return false;
+        }
+        siftDown(index, distance, m_Size);
+        return true;
+    }
+
+    /**
+     * Places a neighbour at the top and sifts it down into the first size
+     * positions of the heap.
+     *
+     * @param index the index of the neighbour
+     * @param distance the distance of the neighbour
+     * @param size the number of positions that form the heap
+     */
+    private void siftDown(int index, double distance, int size) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && m_Distances[child + 1] > m_Distances[child]) {
+                child++;
+            }
+            if (m_Distances[child] <= distance) {
+                break;
+            }
+            m_Indices[i] = m_Indices[child];
+            m_Distances[i] = m_Distances[child];
+            i = child;
+        }
+        m_Indices[i] = index;
+        m_Distances[i] = distance;
+    }
+
+    /**
+     * Sorts the neighbours by ascending distance (heap sort). The heap must be
+     * reset before it is used again.
+     */
+    void sort() {
+        for (int end = m_Size - 1; end > 0; end--) {
+            int index = m_Indices[end];
+            double distance = m_Distances[end];
+            m_Indices[end] = m_Indices[0];
+            m_Distances[end] = m_Distances[0];
+            siftDown(index, distance, end);
+        }
+    }
+
+    /**
+     * Returns the number of neighbours in the heap.
+     *
+     * @return the number of neighbours
+     */
+    int size() {
+        return m_Size;
+    }
+
+    /**
+     * Returns the index of a neighbour.
+     *
+     * @param i the position of the neighbour
+     * @return the index of the neighbour
+     */
+    int index(int i) {
+        return m_Indices[i];
+    }
+
+    /**
+     * Returns the distance of a neighbour.
+     *
+     * @param i the position of the neighbour
+     * @return the distance of the neighbour
+     */
+    double distance(int i) {
+        return m_Distances[i];
+    }
+}
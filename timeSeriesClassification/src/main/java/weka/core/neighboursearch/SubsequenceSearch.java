@@ -0,0 +1,534 @@
+package weka.core.neighboursearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class implementing the subsequence search of the UCR Suite: it finds the
+ * subsequence of a long time series (a stream of doubles in a binary file)
+ * with the smallest DTW distance to a query, after z-normalizing both the
+ * query and every subsequence. The stream is memory-mapped and scanned in one
+ * pass with the techniques of the UCR Suite:
+ * <ul>
+ * <li>the mean and the standard deviation of the subsequences are computed
+ * online with running sums over a circular buffer</li>
+ * <li>the candidates go through a cascade of lower bounds: the hierarchical
+ * LB_Kim, LB_Keogh with the envelope of the query and LB_Keogh with the
+ * envelope of the subsequence</li>
+ * <li>LB_Keogh is summed in descending order of the absolute values of the
+ * normalized query, so it is abandoned as early as possible</li>
+ * <li>DTW is abandoned as soon as the minimum of a row plus the lower bound of
+ * the rest of the query reaches the best distance so far</li>
+ * </ul>
+ * <br/>
+ * For more information, see:<br/>
+ * Thanawin Rakthanmanon, Bilson Campana, Abdullah Mueen, Gustavo Batista,
+ * Brandon Westover, Qiang Zhu, Jesin Zakaria and Eamonn Keogh: Searching and
+ * Mining Trillions of Time Series Subsequences under Dynamic Time Warping. In:
+ * Proceedings of the 18th ACM SIGKDD International Conference on Knowledge
+ * Discovery and Data Mining, 262-270, 2012.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SubsequenceSearch {
+
+    /**
+     * The number of points of the stream processed at a time.
+     */
+    private static final int EPOCH = 100000;
+    /**
+     * The number of bytes of the stream mapped at a time.
+     */
+    private static final long MAP_SIZE = 1L << 30;
+    /**
+     * The query.
+     */
+    private double[] m_Query;
+    /**
+     * The size of the Sakoe-Chiba Band as a percentage of the query length.
+     */
+    private int m_WindowSize = 10;
+    /**
+     * The position of the best match in the stream of the last search.
+     */
+    private long m_Location = -1;
+    /**
+     * The DTW distance of the best match of the last search.
+     */
+    private double m_Distance = Double.POSITIVE_INFINITY;
+
+    /**
+     * Constructor that uses the supplied query.
+     *
+     * @param query the time series to search for
+     */
+    public SubsequenceSearch(double[] query) {
+        m_Query = query.clone();
+    }
+
+    /**
+     * Sets the size of the Sakoe-Chiba Band, as a percentage of the query
+     * length like in DTWDistance.
+     *
+     * @param windowSize the window size percentage
+     */
+    public void setWarpingWindowSize(int windowSize) {
+        m_WindowSize = windowSize;
+    }
+
+    /**
+     * Gets the size of the Sakoe-Chiba Band.
+     *
+     * @return the window size percentage
+     */
+    public int getWarpingWindowSize() {
+        return m_WindowSize;
+    }
+
+    /**
+     * Returns the position of the best match of the last search.
+     *
+     * @return the index of the first point of the best subsequence, or -1 if
+     * the stream is shorter than the query
+     */
+    public long getLocation() {
+        return m_Location;
+    }
+
+    /**
+     * Returns the DTW distance between the z-normalized query and the
+     * z-normalized best subsequence of the last search.
+     *
+     * @return the distance of the best match
+     */
+    public double getDistance() {
+        return m_Distance;
+    }
+
+    /**
+     * Searches a binary file holding a stream of doubles (in big-endian order,
+     * as written by DataOutputStream) for the subsequence closest to the
+     * query.
+     *
+     * @param file the file holding the stream
+     * @return the index of the first point of the best subsequence, or -1 if
+     * the stream is shorter than the query
+     * @throws IOException if the file cannot be read
+     */
+    public long search(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return search(new MappedStream(raf.getChannel()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Scans a stream for the subsequence closest to the query.
+     *
+     * @param stream the stream
+     * @return the index of the first point of the best subsequence, or -1 if
+     * the stream is shorter than the query
+     * @throws IOException if the stream cannot be read
+     */
+    private long search(MappedStream stream) throws IOException {
+        int m = m_Query.length;
+        int r = Math.min(m_WindowSize * m / 100, m - 1);
+        DTWSearch.Workspace ws = new DTWSearch.Workspace();
+
+        // the normalized query, its envelope and the order of its points by
+        // descending absolute value, which abandons LB_Keogh earliest
+        double[] q = new double[m];
+        normalize(m_Query, q);
+        double[] lowerQ = new double[m];
+        double[] upperQ = new double[m];
+        DTWSearch.computeEnvelope(q, 0, m, r, lowerQ, upperQ, 0, ws);
+
+        double[] keys = new double[m];
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++) {
+            keys[i] = -Math.abs(q[i]);
+            order[i] = i;
+        }
+        DTWSearch.sortByKey(keys, order, 0, m - 1);
+        double[] qo = new double[m];
+        double[] uo = new double[m];
+        double[] lo = new double[m];
+        for (int i = 0; i < m; i++) {
+            qo[i] = q[order[i]];
+            uo[i] = upperQ[order[i]];
+            lo[i] = lowerQ[order[i]];
+        }
+
+        int epoch = Math.max(EPOCH, 4 * m);
+        double[] buffer = new double[epoch];
+        double[] lowerB = new double[epoch];
+        double[] upperB = new double[epoch];
+        double[] t = new double[2 * m];
+        double[] tz = new double[m];
+        double[] cb = new double[m];
+        double[] cb1 = new double[m];
+        double[] cb2 = new double[m];
+        double[] cost = new double[2 * r + 1];
+        double[] costPrev = new double[2 * r + 1];
+
+        double bsf = Double.POSITIVE_INFINITY;
+        long location = -1;
+        long start = 0; // the position of buffer[0] in the stream
+        int size = stream.read(buffer, 0, epoch);
+        boolean done = size < epoch;
+
+        while (size >= m) {
+            // the envelope of the data, on the raw values
+            DTWSearch.computeEnvelope(buffer, 0, size, r, lowerB, upperB, 0, ws);
+
+            double ex = 0;
+            double ex2 = 0;
+            for (int i = 0; i < size; i++) {
+                double d = buffer[i];
+                ex += d;
+                ex2 += d * d;
+                t[i % m] = d;
+                t[(i % m) + m] = d;
+
+                if (i >= m - 1) {
+                    double mean = ex / m;
+                    double variance = ex2 / m - mean * mean;
+                    double std = variance > 0 ? Math.sqrt(variance) : 1;
+
+                    // the subsequence starts at t[j] and at buffer[first]
+                    int j = (i + 1) % m;
+                    int first = i - (m - 1);
+
+                    double lbKim = lowerBoundKim(t, q, j, m, mean, std, bsf);
+                    if (lbKim < bsf) {
+                        double lbKeogh = lowerBoundKeogh(order, t, uo, lo, cb1, j, m, mean, std, bsf);
+                        if (lbKeogh < bsf) {
+                            for (int k = 0; k < m; k++) {
+                                tz[k] = (t[k + j] - mean) / std;
+                            }
+                            double lbKeoghData = lowerBoundKeoghData(order, qo, cb2, lowerB, upperB, first, m,
+                                    mean, std, bsf);
+                            if (lbKeoghData < bsf) {
+                                // the lower bound of the rest of the query, from the
+                                // tighter LB_Keogh
+                                double[] bounds = lbKeogh > lbKeoghData ? cb1 : cb2;
+                                cb[m - 1] = bounds[m - 1];
+                                for (int k = m - 2; k >= 0; k--) {
+                                    cb[k] = cb[k + 1] + bounds[k];
+                                }
+
+                                double dist = dtw(tz, q, cb, m, r, bsf, cost, costPrev);
+                                if (dist < bsf) {
+                                    bsf = dist;
+                                    location = start + first;
+                                }
+                            }
+                        }
+                    }
+
+                    // drop the oldest point from the running sums
+                    ex -= t[j];
+                    ex2 -= t[j] * t[j];
+                }
+            }
+
+            if (done) {
+                break;
+            }
+
+            // keep the last m - 1 points, they start the next subsequences
+            int overlap = m - 1;
+            System.arraycopy(buffer, size - overlap, buffer, 0, overlap);
+            start += size - overlap;
+            int read = stream.read(buffer, overlap, epoch - overlap);
+            done = read < epoch - overlap;
+            size = read > 0 ? overlap + read : 0;
+        }
+
+        m_Location = location;
+        m_Distance = Math.sqrt(bsf);
+        return location;
+    }
+
+    /**
+     * Z-normalizes a time series.
+     *
+     * @param series the time series
+     * @param dest the array to write the normalized series to
+     */
+    private static void normalize(double[] series, double[] dest) {
+        int m = series.length;
+        double ex = 0;
+        double ex2 = 0;
+        for (int i = 0; i < m; i++) {
+            ex += series[i];
+            ex2 += series[i] * series[i];
+        }
+        double mean = ex / m;
+        double variance = ex2 / m - mean * mean;
+        double std = variance > 0 ? Math.sqrt(variance) : 1;
+        for (int i = 0; i < m; i++) {
+            dest[i] = (series[i] - mean) / std;
+        }
+    }
+
+    /**
+     * Returns the squared distance between two points.
+     *
+     * @param x the first point
+     * @param y the second point
+     * @return the squared distance
+     */
+    private static double dist(double x, double y) {
+        return (x - y) * (x - y);
+    }
+
+    /**
+     * Computes the hierarchical LB_Kim: the first and the last points, then
+     * the first and the last three points of the normalized subsequence and
+     * the query, abandoned as soon as it reaches the best distance so far.
+     *
+     * @param t the circular buffer of the subsequence
+     * @param q the normalized query
+     * @param j the start of the subsequence in t
+     * @param m the length of the query
+     * @param mean the mean of the subsequence
+     * @param std the standard deviation of the subsequence
+     * @param bsf the squared best distance so far
+     * @return the lower bound of the squared DTW distance
+     */
+    private static double lowerBoundKim(double[] t, double[] q, int j, int m, double mean, double std,
+            double bsf) {
+
+        // the points overlap for short queries, which the bound does not allow
+        if (m < 6) {
+            return 0;
+        }
+
+        double x0 = (t[j] - mean) / std;
+        double y0 = (t[m - 1 + j] - mean) / std;
+        double lb = dist(x0, q[0]) + dist(y0, q[m - 1]);
+        if (lb >= bsf) {
+            return lb;
+        }
+
+        double x1 = (t[j + 1] - mean) / std;
+        double d = Math.min(dist(x1, q[0]), dist(x0, q[1]));
+        d = Math.min(d, dist(x1, q[1]));
+        lb += d;
+        if (lb >= bsf) {
+            return lb;
+        }
+
+        double y1 = (t[m - 2 + j] - mean) / std;
+        d = Math.min(dist(y1, q[m - 1]), dist(y0, q[m - 2]));
+        d = Math.min(d, dist(y1, q[m - 2]));
+        lb += d;
+        if (lb >= bsf) {
+            return lb;
+        }
+
+        double x2 = (t[j + 2] - mean) / std;
+        d = Math.min(dist(x0, q[2]), dist(x1, q[2]));
+        d = Math.min(d, dist(x2, q[2]));
+        d = Math.min(d, dist(x2, q[1]));
+        d = Math.min(d, dist(x2, q[0]));
+        lb += d;
+        if (lb >= bsf) {
+            return lb;
+        }
+
+        double y2 = (t[m - 3 + j] - mean) / std;
+        d = Math.min(dist(y0, q[m - 3]), dist(y1, q[m - 3]));
+        d = Math.min(d, dist(y2, q[m - 3]));
+        d = Math.min(d, dist(y2, q[m - 2]));
+        d = Math.min(d, dist(y2, q[m - 1]));
+        lb += d;
+
+        return lb;
+    }
+
+    /**
+     * Computes LB_Keogh between the envelope of the query and the normalized
+     * subsequence, in the order of the sorted query, and stores the
+     * contribution of every point.
+     *
+     * @param order the positions of the query in descending absolute value
+     * @param t the circular buffer of the subsequence
+     * @param uo the upper envelope of the query, sorted
+     * @param lo the lower envelope of the query, sorted
+     * @param cb the array to store the contribution of every point in
+     * @param j the start of the subsequence in t
+     * @param m the length of the query
+     * @param mean the mean of the subsequence
+     * @param std the standard deviation of the subsequence
+     * @param bsf the squared best distance so far
+     * @return the lower bound of the squared DTW distance
+     */
+    private static double lowerBoundKeogh(int[] order, double[] t, double[] uo, double[] lo, double[] cb,
+            int j, int m, double mean, double std, double bsf) {
+
+        double lb = 0;
+        for (int i = 0; i < m && lb < bsf; i++) {
+            double x = (t[order[i] + j] - mean) / std;
+            double d = 0;
+            if (x > uo[i]) {
+                d = dist(x, uo[i]);
+            } else if (x < lo[i]) {
+                d = dist(x, lo[i]);
+            }
+            lb += d;
+            cb[order[i]] = d;
+        }
+        return lb;
+    }
+
+    /**
+     * Computes LB_Keogh between the envelope of the subsequence (normalized on
+     * the fly) and the query, in the order of the sorted query, and stores the
+     * contribution of every point.
+     *
+     * @param order the positions of the query in descending absolute value
+     * @param qo the normalized query, sorted
+     * @param cb the array to store the contribution of every point in
+     * @param lowerB the lower envelope of the data
+     * @param upperB the upper envelope of the data
+     * @param first the start of the subsequence in the envelope of the data
+     * @param m the length of the query
+     * @param mean the mean of the subsequence
+     * @param std the standard deviation of the subsequence
+     * @param bsf the squared best distance so far
+     * @return the lower bound of the squared DTW distance
+     */
+    private static double lowerBoundKeoghData(int[] order, double[] qo, double[] cb, double[] lowerB,
+            double[] upperB, int first, int m, double mean, double std, double bsf) {
+
+        double lb = 0;
+        for (int i = 0; i < m && lb < bsf; i++) {
+            double uu = (upperB[first + order[i]] - mean) / std;
+            double ll = (lowerB[first + order[i]] - mean) / std;
+            double d = 0;
+            if (qo[i] > uu) {
+                d = dist(qo[i], uu);
+            } else if (qo[i] < ll) {
+                d = dist(qo[i], ll);
+            }
+            lb += d;
+            cb[order[i]] = d;
+        }
+        return lb;
+    }
+
+    /**
+     * Calculates the squared DTW distance within the Sakoe-Chiba Band between
+     * the normalized subsequence and the query. The calculation is abandoned
+     * as soon as the minimum of a row plus the lower bound of the remaining
+     * rows reaches the best distance so far.
+     *
+     * @param a the normalized subsequence
+     * @param b the normalized query
+     * @param cb the cumulative lower bound of the rest of the query, cb[i]
+     * bounds the points from i to the end
+     * @param m the length of the series
+     * @param r the width of the band
+     * @param bsf the squared best distance so far
+     * @param cost the buffer of the current row, 2r + 1 cells
+     * @param costPrev the buffer of the previous row, 2r + 1 cells
+     * @return the squared DTW distance, or a value not smaller than bsf if the
+     * calculation was abandoned
+     */
+    private static double dtw(double[] a, double[] b, double[] cb, int m, int r, double bsf, double[] cost,
+            double[] costPrev) {
+
+        for (int k = 0; k < 2 * r + 1; k++) {
+            cost[k] = Double.POSITIVE_INFINITY;
+            costPrev[k] = Double.POSITIVE_INFINITY;
+        }
+
+        // cell (i, j) of the matrix is held at position j - i + r of its row
+        int k = 0;
+        for (int i = 0; i < m; i++) {
+            k = Math.max(0, r - i);
+            double minCost = Double.POSITIVE_INFINITY;
+
+            for (int j = Math.max(0, i - r); j <= Math.min(m - 1, i + r); j++, k++) {
+                if (i == 0 && j == 0) {
+                    cost[k] = dist(a[0], b[0]);
+                    minCost = cost[k];
+                    continue;
+                }
+
+                double y = (j - 1 < 0 || k - 1 < 0) ? Double.POSITIVE_INFINITY : cost[k - 1];
+                double x = (i - 1 < 0 || k + 1 > 2 * r) ? Double.POSITIVE_INFINITY : costPrev[k + 1];
+                double z = (i - 1 < 0 || j - 1 < 0) ? Double.POSITIVE_INFINITY : costPrev[k];
+
+                cost[k] = Math.min(Math.min(x, y), z) + dist(a[i], b[j]);
+                if (cost[k] < minCost) {
+                    minCost = cost[k];
+                }
+            }
+
+            // the rest of the path still has to cover the points after i + r
+            if (i + r < m - 1 && minCost + cb[i + r + 1] >= bsf) {
+                return minCost + cb[i + r + 1];
+            }
+
+            double[] tmp = cost;
+            cost = costPrev;
+            costPrev = tmp;
+        }
+
+        return costPrev[k - 1];
+    }
+
+    /**
+     * Internal class reading a binary file of doubles through memory-mapped
+     * regions, so streams larger than what a single mapping can hold are
+     * supported.
+     */
+    static class MappedStream {
+
+        private final FileChannel m_Channel;
+        private final long m_Size;
+        private long m_Position = 0;
+        private DoubleBuffer m_Region = null;
+
+        MappedStream(FileChannel channel) throws IOException {
+            m_Channel = channel;
+            m_Size = channel.size() / 8 * 8;
+        }
+
+        /**
+         * Reads the next doubles of the stream.
+         *
+         * @param dest the array to read to
+         * @param offset the position of the first double in dest
+         * @param length the number of doubles to read
+         * @return the number of doubles read, less than length at the end of
+         * the stream
+         * @throws IOException if the file cannot be mapped
+         */
+        int read(double[] dest, int offset, int length) throws IOException {
+            int n = 0;
+            while (n < length) {
+                if (m_Region == null || !m_Region.hasRemaining()) {
+                    if (m_Position >= m_Size) {
+                        break;
+                    }
+                    long size = Math.min(MAP_SIZE, m_Size - m_Position);
+                    m_Region = m_Channel.map(FileChannel.MapMode.READ_ONLY, m_Position, size).asDoubleBuffer();
+                    m_Position += size;
+                }
+                int count = Math.min(length - n, m_Region.remaining());
+                m_Region.get(dest, offset + n, count);
+                n += count;
+            }
+            return n;
+        }
+    }
+}
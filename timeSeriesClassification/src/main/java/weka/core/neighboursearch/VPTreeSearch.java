@@ -0,0 +1,621 @@
+package weka.core.neighboursearch;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.Vector;
+import weka.core.*;
+
+/**
+ * <!-- globalinfo-start --> Class implementing an exact nearest neighbour
+ * search over a vantage-point tree, for distance functions that are metrics.
+ * Every inner node holds a vantage point, chosen at random among its
+ * instances, and splits the other ones at the median of their distances to
+ * it. A query visits the nodes depth-first, the side of the median it falls
+ * on first, and skips a child whenever the triangle inequality shows that
+ * none of its instances can be closer than the k-th neighbour found so far.
+ *
+ * <p/>
+ * <!-- globalinfo-end -->
+ *
+ * The distance function must declare itself a metric, see isMetric(): the
+ * Euclidean, Manhattan and Chebyshev distances of Weka, or a MetricDistance
+ * such as DTWDistance without warping. The distances are the ones of
+ * distance(Instance, Instance), which cannot be abandoned early, so the
+ * search pays off over a linear scan when the tree prunes most of the
+ * instances. The tree is built when the instances are set. update() inserts
+ * the new instance into a leaf, at the cost of one distance per level of the
+ * tree, as long as the distances between the other instances stay the same;
+ * if the instance widens the normalization ranges of the distance function,
+ * the tree is built again on the next query instead. Since inserted
+ * instances do not move the vantage points, the tree is also built again
+ * once it has doubled in size since it was last built, so an update costs
+ * O(log n) distances amortized.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class VPTreeSearch extends NearestNeighbourSearch {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 4557217992796015369L;
+
+    /**
+     * The seed of the choice of the vantage points, fixed so that the same
+     * instances always give the same tree.
+     */
+    private static final long SEED = 1;
+    /**
+     * The largest number of instances of a leaf of the tree.
+     */
+    protected int m_LeafSize = 16;
+    /**
+     * The root of the tree, or null if it has to be built.
+     */
+    protected Node m_Root = null;
+    /**
+     * The number of instances the tree was last built with.
+     */
+    protected int m_NumBuilt = 0;
+    /**
+     * The number of instances in the tree, the built ones and the inserted
+     * ones.
+     */
+    protected int m_NumIndexed = 0;
+    /**
+     * The distances of the neighbours returned. It is filled up by both
+     * nearestNeighbour() and kNearestNeighbours().
+     */
+    protected double[] m_Distances;
+
+    /**
+     * Constructor: Needs that setInstances(Instances) to be called before the
+     * class is usable.
+     */
+    public VPTreeSearch() {
+        super();
+    }
+
+    /**
+     * Constructor that uses the supplied set of instances.
+     *
+     * @param insts the instances to use
+     * @throws Exception if the tree cannot be built
+     */
+    public VPTreeSearch(Instances insts) throws Exception {
+        super();
+        setInstances(insts);
+    }
+
+    /**
+     * Returns whether a distance function is a metric, and can therefore be
+     * used by this search: either it declares itself one through
+     * MetricDistance, or it is the Euclidean, Manhattan or Chebyshev distance.
+     *
+     * @param df the distance function
+     * @return true if the distance function satisfies the triangle inequality
+     */
+    public static boolean isMetric(DistanceFunction df) {
+        if (df instanceof MetricDistance) {
+            return ((MetricDistance) df).isMetric();
+        }
+        return df instanceof EuclideanDistance || df instanceof ManhattanDistance
+                || df instanceof ChebyshevDistance;
+    }
+
+    /**
+     * Returns a string describing this nearest neighbour search algorithm.
+     *
+     * @return a description of the algorithm for displaying in the
+     * explorer/experimenter gui
+     */
+    @Override
+    public String globalInfo() {
+        return "Class implementing an exact nearest neighbour search over a "
+                + "vantage-point tree, which prunes the instances with the triangle "
+                + "inequality. The distance function must be a metric (e.g. the "
+                + "Euclidean, Manhattan or Chebyshev distance, or DTWDistance "
+                + "without warping).";
+    }
+
+    /**
+     * Sets the instances to search in and builds the tree.
+     *
+     * @param insts the instances to use
+     * @throws Exception if the instances cannot be processed
+     */
+    @Override
+    public void setInstances(Instances insts) throws Exception {
+        m_Instances = insts;
+        m_Root = null;
+        if (insts != null) {
+            m_DistanceFunction.setInstances(insts);
+            buildTree();
+        }
+    }
+
+    /**
+     * Returns the nearest instance in the current neighbourhood to the supplied
+     * instance.
+     *
+     * @param target The instance to find the nearest neighbour for.
+     * @return The nearest neighbor
+     * @throws Exception if the nearest neighbour could not be found.
+     */
+    @Override
+    public Instance nearestNeighbour(Instance target) throws Exception {
+        return (kNearestNeighbours(target, 1)).instance(0);
+    }
+
+    /**
+     * Returns the k nearest instances in the current neighbourhood to the
+     * supplied instance, sorted by ascending distance. Ties at the k-th
+     * distance are resolved in favour of the instance found first, in the
+     * order the nodes are visited.
+     *
+     * @param target The instance to find the k nearest neighbours for.
+     * @param k	The number of nearest neighbours to find.
+     * @return The k nearest neighbors.
+     * @throws Exception if the neighbours could not be found.
+     */
+    @Override
+    public Instances kNearestNeighbours(Instance target, int k) throws Exception {
+        if (m_Instances == null) {
+            throw new Exception("No instances supplied yet. Cannot search without "
+                    + "supplying a set of instances first.");
+        }
+        if (m_Root == null || m_NumIndexed != m_Instances.numInstances()) {
+            buildTree();
+        }
+
+        if (m_Stats != null) {
+            m_Stats.searchStart();
+        }
+        NeighbourHeap heap = new NeighbourHeap();
+        heap.reset(k);
+        if (m_Root != null) {
+            search(m_Root, target, heap);
+        }
+        if (m_Stats != null) {
+            m_Stats.searchFinish();
+        }
+
+        heap.sort();
+        Instances neighbours = new Instances(m_Instances, heap.size());
+        m_Distances = new double[heap.size()];
+        for (int i = 0; i < heap.size(); i++) {
+            neighbours.add(m_Instances.get(heap.index(i)));
+            m_Distances[i] = heap.distance(i);
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Visits the subtree of a node depth-first. At an inner node the vantage
+     * point is offered to the heap and the children are visited nearer first.
+     * By the triangle inequality, the distance between the query and an
+     * instance of a child is at least the gap between the distance of the
+     * query to the vantage point and the range of distances of the child to
+     * it, so the child is skipped when that gap reaches the k-th distance.
+     *
+     * @param node the node to visit
+     * @param target the query
+     * @param heap the heap collecting the neighbours
+     * @throws Exception if a distance cannot be calculated
+     */
+    private void search(Node node, Instance target, NeighbourHeap heap) throws Exception {
+        if (node.isLeaf()) {
+            if (m_Stats != null) {
+                ((TreePerformanceStats) m_Stats).incrLeafCount();
+            }
+            for (int m = 0; m < node.m_Members.length; m++) {
+                int i = node.m_Members[m];
+                heap.offer(i, distance(target, i));
+            }
+            return;
+        }
+
+        if (m_Stats != null) {
+            ((TreePerformanceStats) m_Stats).incrIntNodeCount();
+        }
+        double distanceVantage = distance(target, node.m_Vantage);
+        heap.offer(node.m_Vantage, distanceVantage);
+
+        boolean nearFirst = distanceVantage <= node.m_NearMax;
+        for (int c = 0; c < 2; c++) {
+            boolean near = (c == 0) == nearFirst;
+            Node child = near ? node.m_Near : node.m_Far;
+            if (child == null) {
+                continue;
+            }
+            double min = near ? node.m_NearMin : node.m_FarMin;
+            double max = near ? node.m_NearMax : node.m_FarMax;
+            double bound = Math.max(distanceVantage - max, min - distanceVantage);
+            if (bound < heap.threshold()) {
+                search(child, target, heap);
+            }
+        }
+    }
+
+    /**
+     * Calculates the distance between the query and an instance, counting it
+     * in the performance statistics.
+     *
+     * @param target the query
+     * @param i the index of the instance
+     * @return the distance
+     * @throws Exception if the distance cannot be calculated
+     */
+    private double distance(Instance target, int i) throws Exception {
+        if (m_Stats == null) {
+            return m_DistanceFunction.distance(target, m_Instances.instance(i));
+        }
+        m_Stats.incrPointCount();
+        return m_DistanceFunction.distance(target, m_Instances.instance(i), m_Stats);
+    }
+
+    /**
+     * Builds the tree of all the instances.
+     */
+    private void buildTree() {
+        int numInstances = m_Instances.numInstances();
+        int[] members = new int[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            members[i] = i;
+        }
+        m_Root = numInstances > 0 ? build(members, 0, numInstances, new Random(SEED)) : null;
+        m_NumBuilt = numInstances;
+        m_NumIndexed = numInstances;
+    }
+
+    /**
+     * Inserts an instance in the tree. At every inner node it goes to the
+     * child whose range of distances to the vantage point it falls in, the far
+     * one if it is beyond the near one, and widens the range of that child to
+     * its distance, so the bounds of the search stay valid. A leaf that grows
+     * beyond twice the leaf size is split into a subtree.
+     *
+     * @param i the index of the instance
+     */
+    private void insert(int i) {
+        Instance inst = m_Instances.instance(i);
+        Node node = m_Root;
+        Node parent = null;
+        boolean near = false;
+        while (!node.isLeaf()) {
+            double distance = m_DistanceFunction.distance(m_Instances.instance(node.m_Vantage), inst);
+            parent = node;
+            near = node.m_Near != null && distance <= node.m_NearMax;
+            if (near) {
+                node.m_NearMin = Math.min(node.m_NearMin, distance);
+                node = node.m_Near;
+            } else {
+                node.m_FarMin = Math.min(node.m_FarMin, distance);
+                node.m_FarMax = Math.max(node.m_FarMax, distance);
+                node = node.m_Far;
+            }
+        }
+
+        int[] members = Arrays.copyOf(node.m_Members, node.m_Members.length + 1);
+        members[members.length - 1] = i;
+        node.m_Members = members;
+        if (members.length > 2 * m_LeafSize) {
+            Node subtree = build(members, 0, members.length, new Random(SEED));
+            if (parent == null) {
+                m_Root = subtree;
+            } else if (near) {
+                parent.m_Near = subtree;
+            } else {
+                parent.m_Far = subtree;
+            }
+        }
+    }
+
+    /**
+     * Returns whether adding an instance to the distance function leaves the
+     * distances between the other instances as they are, i.e. the instance
+     * lies within the normalization ranges, if the distances are normalized.
+     *
+     * @param ins the instance to add
+     * @return true if the distances of the tree stay valid
+     * @throws Exception if the ranges cannot be determined
+     */
+    private boolean keepsDistances(Instance ins) throws Exception {
+        if (!(m_DistanceFunction instanceof NormalizableDistance)) {
+            return true;
+        }
+        NormalizableDistance df = (NormalizableDistance) m_DistanceFunction;
+        return df.getDontNormalize() || df.inRanges(ins, df.getRanges());
+    }
+
+    /**
+     * Builds the subtree of a range of instances. Ranges of more than a leaf
+     * take a vantage point at random and split the other instances at the
+     * median of their distances to it.
+     *
+     * @param members the array holding the indices of the instances, reordered
+     * @param from the first instance of the range
+     * @param to the instance after the last one of the range
+     * @param random the random number generator choosing the vantage points
+     * @return the root of the subtree
+     */
+    private Node build(int[] members, int from, int to, Random random) {
+        Node node = new Node();
+        if (to - from <= m_LeafSize) {
+            node.m_Members = Arrays.copyOfRange(members, from, to);
+            return node;
+        }
+
+        int vantage = from + random.nextInt(to - from);
+        node.m_Vantage = members[vantage];
+        members[vantage] = members[from];
+        members[from] = node.m_Vantage;
+
+        Instance vantagePoint = m_Instances.instance(node.m_Vantage);
+        double[] keys = new double[to - from - 1];
+        int[] order = new int[to - from - 1];
+        for (int m = from + 1; m < to; m++) {
+            keys[m - from - 1] = m_DistanceFunction.distance(vantagePoint, m_Instances.instance(members[m]));
+            order[m - from - 1] = members[m];
+        }
+        DTWSearch.sortByKey(keys, order, 0, keys.length - 1);
+        System.arraycopy(order, 0, members, from + 1, order.length);
+
+        int middle = keys.length / 2;
+        if (middle > 0) {
+            node.m_NearMin = keys[0];
+            node.m_NearMax = keys[middle - 1];
+            node.m_Near = build(members, from + 1, from + 1 + middle, random);
+        }
+        node.m_FarMin = keys[middle];
+        node.m_FarMax = keys[keys.length - 1];
+        node.m_Far = build(members, from + 1 + middle, to, random);
+        return node;
+    }
+
+    /**
+     * Returns an enumeration describing the available options.
+     *
+     * @return an enumeration of all the available options.
+     */
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> result = new Vector<Option>();
+
+        Enumeration<?> en = super.listOptions();
+        while (en.hasMoreElements()) {
+            result.add((Option) en.nextElement());
+        }
+
+        result.add(new Option(
+                "\tThe largest number of instances of a leaf of the tree.\n"
+                + "\t(default 16)",
+                "leaf-size", 1, "-leaf-size <num>"));
+
+        return result.elements();
+    }
+
+    /**
+     * Parses a given list of options.
+     * <p/>
+     *
+     * <!-- options-start --> Valid options are:
+     * <p/>
+     *
+     * <pre> -leaf-size &lt;num&gt;
+     *  The largest number of instances of a leaf of the tree.
+     *  (default 16)</pre>
+     *
+     * <!-- options-end -->
+     *
+     * @param options the list of options as an array of strings
+     * @throws Exception if an option is not supported
+     */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        super.setOptions(options);
+
+        String tmpStr = Utils.getOption("leaf-size", options);
+        if (tmpStr.length() != 0) {
+            setLeafSize(Integer.parseInt(tmpStr));
+        } else {
+            setLeafSize(16);
+        }
+    }
+
+    /**
+     * Gets the current settings.
+     *
+     * @return an array of strings suitable for passing to setOptions()
+     */
+    @Override
+    public String[] getOptions() {
+        Vector<String> result = new Vector<String>();
+
+        String[] options = super.getOptions();
+        for (int i = 0; i < options.length; i++) {
+            result.add(options[i]);
+        }
+
+        result.add("-leaf-size");
+        result.add("" + getLeafSize());
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    @Override
+    public String distanceFunctionTipText() {
+        return "The distance function to use for finding neighbours "
+                + "(must be a metric, e.g. EuclideanDistance or DTWDistance without warping). ";
+    }
+
+    /**
+     * Sets the distance function to use for nearest neighbour search.
+     *
+     * @param df The new distance function to use.
+     * @throws Exception if the distance function is not a metric.
+     */
+    @Override
+    public void setDistanceFunction(DistanceFunction df) throws Exception {
+        if (!isMetric(df)) {
+            throw new Exception("The distance function to use must be a metric");
+        }
+        m_DistanceFunction = df;
+        m_Root = null;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String leafSizeTipText() {
+        return "The largest number of instances of a leaf of the tree.";
+    }
+
+    /**
+     * Sets the largest number of instances of a leaf. The tree is built again
+     * on the next query.
+     *
+     * @param leafSize the leaf size
+     */
+    public void setLeafSize(int leafSize) {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("The leaf size must be at least 1.");
+        }
+        if (leafSize != m_LeafSize) {
+            m_LeafSize = leafSize;
+            m_Root = null;
+        }
+    }
+
+    /**
+     * Gets the largest number of instances of a leaf.
+     *
+     * @return the leaf size
+     */
+    public int getLeafSize() {
+        return m_LeafSize;
+    }
+
+    /**
+     * Turns the performance statistics on or off. The statistics also count
+     * the leaves and the inner nodes of the tree visited.
+     *
+     * @param measurePerformance true if the performance is to be measured
+     */
+    @Override
+    public void setMeasurePerformance(boolean measurePerformance) {
+        m_MeasurePerformance = measurePerformance;
+        if (m_MeasurePerformance) {
+            if (!(m_Stats instanceof TreePerformanceStats)) {
+                m_Stats = new TreePerformanceStats();
+            }
+        } else {
+            m_Stats = null;
+        }
+    }
+
+    /**
+     * Returns the distances of the k nearest neighbours. The kNearestNeighbours
+     * or nearestNeighbour needs to be called first for this to work.
+     *
+     * @return	the distances
+     * @throws Exception if called before calling kNearestNeighbours or
+     * nearestNeighbours.
+     */
+    @Override
+    public double[] getDistances() throws Exception {
+        if (m_Distances == null) {
+            throw new Exception("No distances available. Please call either "
+                    + "kNearestNeighbours or nearestNeighbours first.");
+        }
+        return m_Distances;
+    }
+
+    /**
+     * Updates the search to cater for a new instance. Our set of instances is
+     * passed by reference and should already have the newly added instance.
+     * It is inserted in the tree if the distances of the tree stay valid and
+     * the tree has not doubled in size since it was built; otherwise the tree
+     * is built again on the next query.
+     *
+     * @param ins The instance to add. Usually this is the instance that is
+     * added to our neighbourhood i.e. the training instances.
+     * @throws Exception if the given instances are null
+     */
+    @Override
+    public void update(Instance ins) throws Exception {
+        if (m_Instances == null) {
+            throw new Exception("No instances supplied yet. Cannot update without"
+                    + "supplying a set of instances first.");
+        }
+        boolean keep = m_Root != null && keepsDistances(ins);
+        m_DistanceFunction.update(ins);
+        if (!keep || m_Instances.numInstances() > 2 * m_NumBuilt) {
+            m_Root = null;
+            return;
+        }
+        for (int i = m_NumIndexed; i < m_Instances.numInstances(); i++) {
+            insert(i);
+        }
+        m_NumIndexed = m_Instances.numInstances();
+    }
+
+    /**
+     * Returns the revision string.
+     *
+     * @return	the revision
+     */
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision$");
+    }
+
+    /**
+     * Internal class of a node of the tree: either a vantage point with the
+     * range of distances to it of the instances of its two children, or, for
+     * a leaf, the indices of its instances.
+     */
+    static class Node implements Serializable {
+
+        /**
+         * For serialization.
+         */
+        private static final long serialVersionUID = -1570625744910599547L;
+
+        /**
+         * The index of the vantage point of an inner node.
+         */
+        int m_Vantage;
+        /**
+         * The children holding the instances below and above the median
+         * distance to the vantage point. The near child is null if the node
+         * only has one other instance.
+         */
+        Node m_Near, m_Far;
+        /**
+         * The smallest and the largest distance to the vantage point of the
+         * instances of the children.
+         */
+        double m_NearMin, m_NearMax, m_FarMin, m_FarMax;
+        /**
+         * The indices of the instances of a leaf, null for an inner node.
+         */
+        int[] m_Members;
+
+        boolean isLeaf() {
+            return m_Members != null;
+        }
+    }
+}
@@ -3,11 +3,11 @@ package weka.filters.supervised.instance;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.Vector;
-import weka.classifiers.lazy.IBk;
 import weka.core.*;
 import weka.core.neighboursearch.DTWSearch;
 import weka.core.neighboursearch.LinearNNSearch;
 import weka.core.neighboursearch.NearestNeighbourSearch;
+import weka.core.neighboursearch.VPTreeSearch;
 import weka.filters.Filter;
 import weka.filters.SupervisedFilter;
 
@@ -122,28 +122,56 @@ public class NumerosityReduction extends Filter implements SupervisedFilter, Opt
     }
 
     /**
-     * Give the nearest neighbors for given instance in the Data Set using 1-NN
-     * with the chosen distance function.
+     * Create the nearest neighbour search over the Data Set for the chosen
+     * distance function: VPTreeSearch if the distance function is a metric,
+     * DTWSearch for DTWDistance, LinearNNSearch otherwise.
      *
-     * @param instance
      * @param data
-     * @param k
-     * @return
+     * @return the search, with the instances set
      * @throws Exception
      */
-    private Instances nearestNeighbors(Instance instance, Instances data, int k) throws Exception {
-        IBk ibk = new IBk(k);
+    private NearestNeighbourSearch nearestNeighbourSearch(Instances data) throws Exception {
+        // whether a distance function is a metric can depend on the data, e.g.
+        // the width of the band of DTWDistance on the length of the series
+        m_DistanceFunction.setInstances(data);
+
         NearestNeighbourSearch nearestNeighbourSearch;
-        if (m_DistanceFunction instanceof DTWDistance) {
-            nearestNeighbourSearch = new DTWSearch(data);
+        if (VPTreeSearch.isMetric(m_DistanceFunction)) {
+            nearestNeighbourSearch = new VPTreeSearch();
+        } else if (m_DistanceFunction instanceof DTWDistance) {
+            nearestNeighbourSearch = new DTWSearch();
         } else {
-            nearestNeighbourSearch = new LinearNNSearch(data);
+            nearestNeighbourSearch = new LinearNNSearch();
         }
         nearestNeighbourSearch.setDistanceFunction(m_DistanceFunction);
-        ibk.setNearestNeighbourSearchAlgorithm(nearestNeighbourSearch);
-        ibk.buildClassifier(data);
+        nearestNeighbourSearch.setInstances(data);
 
-        return ibk.getNearestNeighbourSearchAlgorithm().kNearestNeighbours(instance, k);
+        return nearestNeighbourSearch;
+    }
+
+    /**
+     * Give the nearest neighbors for given instance of the Data Set, leaving
+     * the instance itself out.
+     *
+     * @param search the search over the Data Set
+     * @param instance
+     * @param k
+     * @return
+     * @throws Exception
+     */
+    private Instances nearestNeighbors(NearestNeighbourSearch search, Instance instance, int k) throws Exception {
+        Instances nearest = search.kNearestNeighbours(instance, k + 1);
+        Instances result = new Instances(nearest, k);
+        boolean found = false;
+        for (int i = 0; i < nearest.size() && result.size() < k; i++) {
+            if (!found && compareInstances(instance, nearest.get(i))) {
+                found = true;
+            } else {
+                result.add(nearest.get(i));
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -176,27 +204,20 @@ public class NumerosityReduction extends Filter implements SupervisedFilter, Opt
      */
     private void initializeListOfInstances(Instances data, int k) throws Exception {
 
-        int length = data.size();
+        // the search is built once over all the instances, each one is left
+        // out of its own neighbours
+        NearestNeighbourSearch search = nearestNeighbourSearch(data);
         for (int i = 0; i < data.numInstances(); i++) {
 
-            Instance inst = (DenseInstance) data.remove(0);
-            Instances nearest = nearestNeighbors(inst, data, k);
+            Instance inst = data.get(i);
+            Instances nearest = nearestNeighbors(search, inst, k);
             LinkedList<Integer> nearestIndex = new LinkedList<Integer>();
             for (int l = 0; l < nearest.size(); l++) {
-                int j = getIndexOf(data, nearest.get(l));
-                if (j > length - i - 2) {
-                    j = j - (length - i) + 1;
-                } else {
-                    j = j + i + 1;
-                }
-                nearestIndex.add(j);
-
+                nearestIndex.add(getIndexOf(data, nearest.get(l)));
             }
-            InstancesList list = new InstancesList((Instance) inst, nearestIndex);
+            InstancesList list = new InstancesList(inst, nearestIndex);
 
             m_Instances.add(list);
-
-            data.add(inst);
         }
 
         for (int i = 0; i < m_Instances.size(); i++) {
@@ -612,9 +633,11 @@ public class NumerosityReduction extends Filter implements SupervisedFilter, Opt
      * explorer/experimenter gui
      */
     public String distanceFunctionTipText() {
-        return "The Distance Function (by default: DTWDistance) to use by the filter. In the case of DTWDistance,"
-                + " DTWSearch is used as NearestNeighbourAlgoritm to speed up the filter. "
-                + "For EuclidianDistance, LinnearNNSearch is used as NearestNeighbourAlgoritm. ";
+        return "The Distance Function (by default: DTWDistance) to use by the filter. If the distance function"
+                + " is a metric (e.g. EuclideanDistance, or DTWDistance without warping), VPTreeSearch is used"
+                + " as NearestNeighbourAlgoritm to speed up the filter. In the case of DTWDistance,"
+                + " DTWSearch is used as NearestNeighbourAlgoritm. "
+                + "Otherwise, LinearNNSearch is used as NearestNeighbourAlgoritm. ";
     }
 
     /**
@@ -0,0 +1,565 @@
+package weka.core;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests DTWDistance.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class DTWDistanceTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public DTWDistanceTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that the banded DTW on two rows gives exactly the result of the
+     * DTW over the full matrix, for the degenerate lengths and for band widths
+     * from no warping to the whole matrix.
+     */
+    public void testBandedDTW() {
+        Random random = new Random(1);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        for (int n : new int[]{1, 2, 17, 48}) {
+            for (int window : new int[]{0, 1, 3, n - 1}) {
+                if (window > n - 1) {
+                    continue;
+                }
+                for (int trial = 0; trial < 5; trial++) {
+                    double[] a = SeriesTestUtils.randomWalk(n, random);
+                    double[] b = SeriesTestUtils.randomWalk(n, random);
+                    assertEquals("length " + n + ", window " + window, SeriesTestUtils.dtw(a, b, window),
+                            DTWDistance.bandedDTW(a, 0, b, 0, n, window, Double.POSITIVE_INFINITY, ws), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests the width of the band derived from the window size percentage.
+     */
+    public void testGetWindow() {
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(0);
+        assertEquals(0, dtw.getWindow(48));
+        dtw.setWarpingWindowSize(10);
+        assertEquals(4, dtw.getWindow(48));
+        dtw.setWarpingWindowSize(100);
+        assertEquals(47, dtw.getWindow(48));
+        assertEquals(0, dtw.getWindow(1));
+    }
+
+    /**
+     * Tests that distance() leaves out the class attribute, wherever it is,
+     * and returns the root of the squared DTW distance.
+     */
+    public void testClassAttribute() {
+        int length = 20;
+        int classIndex = 7;
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j <= length; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        Instances data = new Instances("series", attributes, 2);
+        data.setClassIndex(classIndex);
+        Random random = new Random(2);
+        double[][] series = new double[2][];
+        for (int i = 0; i < 2; i++) {
+            series[i] = SeriesTestUtils.randomWalk(length, random);
+            double[] values = new double[length + 1];
+            for (int j = 0, k = 0; j <= length; j++) {
+                values[j] = j == classIndex ? 100 * i : series[i][k++];
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(20);
+        dtw.setInstances(data);
+        double expected = Math.sqrt(SeriesTestUtils.dtw(series[0], series[1], dtw.getWindow(length)));
+        assertEquals(expected, dtw.distance(data.instance(0), data.instance(1)), 0);
+        assertEquals(expected, dtw.distance(data.instance(1), data.instance(0)), 1e-12);
+        assertEquals(0, dtw.distance(data.instance(0), data.instance(0)), 0);
+    }
+
+    /**
+     * Tests that -R and -V restrict the distance to the selected attributes,
+     * whether they are set before or after the instances.
+     *
+     * @throws Exception if the options cannot be set
+     */
+    public void testAttributeRange() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(2, 30, 10);
+        double[] first = new double[10];
+        double[] second = new double[10];
+        for (int j = 0; j < 10; j++) {
+            first[j] = data.instance(0).value(10 + j);
+            second[j] = data.instance(1).value(10 + j);
+        }
+        double expected = Math.sqrt(SeriesTestUtils.dtw(first, second, 2));
+
+        DTWDistance dtw = new DTWDistance();
+        dtw.setOptions(new String[]{"-R", "11-20", "-W", "20"});
+        dtw.setInstances(data);
+        assertEquals(expected, dtw.distance(data.instance(0), data.instance(1)), 0);
+
+        // set after the instances, with the class inside the range
+        dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(20);
+        dtw.setInstances(data);
+        dtw.setAttributeIndices("1-10,21-last");
+        dtw.setInvertSelection(true);
+        assertEquals(10, dtw.getPreparedSeries().getLength());
+        assertEquals(expected, dtw.distance(data.instance(0), data.instance(1)), 0);
+
+        // without instances, the range is resolved against the dataset
+        dtw = new DTWDistance();
+        dtw.setOptions(new String[]{"-R", "11-20", "-W", "20"});
+        assertEquals(expected, dtw.distance(data.instance(0), data.instance(1)), 0);
+    }
+
+    /**
+     * Tests that the banded DTW returns infinity exactly when the distance is
+     * larger than the cut off, and the exact distance otherwise.
+     */
+    public void testCutOff() {
+        Random random = new Random(4);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        for (int n : new int[]{1, 2, 17, 48}) {
+            int window = n / 4;
+            for (int trial = 0; trial < 5; trial++) {
+                double[] a = SeriesTestUtils.randomWalk(n, random);
+                double[] b = SeriesTestUtils.randomWalk(n, random);
+                double exact = SeriesTestUtils.dtw(a, b, window);
+
+                assertEquals(exact, DTWDistance.bandedDTW(a, 0, b, 0, n, window, exact, ws), 0);
+                assertEquals(exact, DTWDistance.bandedDTW(a, 0, b, 0, n, window, 2 * exact, ws), 0);
+                assertEquals(Double.POSITIVE_INFINITY,
+                        DTWDistance.bandedDTW(a, 0, b, 0, n, window, 0.999 * exact, ws), 0);
+                assertEquals(Double.POSITIVE_INFINITY,
+                        DTWDistance.bandedDTW(a, 0, b, 0, n, window, 0, ws), 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that the cut off variants of distance() take and return squared
+     * distances, that postProcessDistances() takes their roots, and that the
+     * distance is not cut off when it equals the cut off value.
+     */
+    public void testCutOffValue() {
+        Instances data = SeriesTestUtils.randomWalks(2, 30, 5);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        dtw.setInstances(data);
+        Instance first = data.instance(0);
+        Instance second = data.instance(1);
+        double squared = dtw.distance(first, second, Double.POSITIVE_INFINITY);
+
+        // the class is the last attribute
+        assertEquals(SeriesTestUtils.dtw(Arrays.copyOf(first.toDoubleArray(), 30),
+                Arrays.copyOf(second.toDoubleArray(), 30), 3), squared, 0);
+        assertEquals(squared, dtw.distance(first, second, squared), 0);
+        assertEquals(squared, dtw.distance(first, second, 1.01 * squared), 0);
+        assertEquals(Double.POSITIVE_INFINITY, dtw.distance(first, second, 0.99 * squared), 0);
+
+        double[] distances = {squared, 0};
+        dtw.postProcessDistances(distances);
+        assertEquals(dtw.distance(first, second), distances[0], 0);
+        assertEquals(0, distances[1], 0);
+    }
+
+    /**
+     * Tests that the blocked Euclidean kernels give exactly the sums of a
+     * plain loop, for lengths around the block size, return the sum at a cut
+     * off equal to it and infinity below it, also when the cut off is
+     * exceeded within the first block.
+     */
+    public void testSquaredEuclidean() {
+        Random random = new Random(11);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        for (int n : new int[]{1, 15, 16, 17, 33, 100}) {
+            double[] a = SeriesTestUtils.randomWalk(n + 2, random);
+            double[] b = SeriesTestUtils.randomWalk(n, random);
+            float[] fa = new float[n + 2];
+            float[] fb = new float[n];
+            double sum = 0;
+            float floatSum = 0;
+            for (int j = 0; j < n; j++) {
+                fa[j + 2] = (float) a[j + 2];
+                fb[j] = (float) b[j];
+                sum += (a[j + 2] - b[j]) * (a[j + 2] - b[j]);
+                floatSum += (fa[j + 2] - fb[j]) * (fa[j + 2] - fb[j]);
+            }
+
+            assertEquals(sum, DTWDistance.squaredEuclidean(a, 2, b, 0, n, Double.POSITIVE_INFINITY, ws), 0);
+            assertEquals(sum, DTWDistance.squaredEuclidean(a, 2, b, 0, n, sum, ws), 0);
+            assertEquals(Double.POSITIVE_INFINITY,
+                    DTWDistance.squaredEuclidean(a, 2, b, 0, n, 0.999 * sum, ws), 0);
+            assertEquals(Double.POSITIVE_INFINITY, DTWDistance.squaredEuclidean(a, 2, b, 0, n, -1, ws), 0);
+            assertEquals(floatSum,
+                    DTWDistance.squaredEuclidean(fa, 2, fb, 0, n, Double.POSITIVE_INFINITY, ws), 0);
+            assertEquals(Double.POSITIVE_INFINITY,
+                    DTWDistance.squaredEuclidean(fa, 2, fb, 0, n, 0.999 * floatSum, ws), 0);
+        }
+    }
+
+    /**
+     * Tests that the anti-diagonal kernel gives bit for bit the distances of
+     * the row kernel, in double and single precision, and abandons exactly
+     * when the row kernel does.
+     */
+    public void testWavefrontDTW() {
+        Random random = new Random(12);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        for (int n : new int[]{1, 2, 17, 48, 100}) {
+            for (int window : new int[]{0, 1, 3, n / 10, n - 1}) {
+                if (window > n - 1) {
+                    continue;
+                }
+                double[] a = SeriesTestUtils.randomWalk(n + 1, random);
+                double[] b = SeriesTestUtils.randomWalk(n, random);
+                float[] fa = new float[n + 1];
+                float[] fb = new float[n];
+                for (int j = 0; j < n; j++) {
+                    fa[j + 1] = (float) a[j + 1];
+                    fb[j] = (float) b[j];
+                }
+                String message = "length " + n + ", window " + window;
+                double rows = DTWDistance.bandedDTW(a, 1, b, 0, n, window, Double.POSITIVE_INFINITY, ws);
+                double floatRows = DTWDistance.bandedDTW(fa, 1, fb, 0, n, window, Double.POSITIVE_INFINITY, ws);
+                assertEquals(message, rows,
+                        DTWDistance.wavefrontDTW(a, 1, b, 0, n, window, Double.POSITIVE_INFINITY, ws), 0);
+                assertEquals(message, floatRows,
+                        DTWDistance.wavefrontDTW(fa, 1, fb, 0, n, window, Double.POSITIVE_INFINITY, ws), 0);
+
+                for (double fraction : new double[]{0, 0.3, 0.999, 1}) {
+                    assertEquals(message + ", cut off " + fraction,
+                            DTWDistance.bandedDTW(a, 1, b, 0, n, window, fraction * rows, ws),
+                            DTWDistance.wavefrontDTW(a, 1, b, 0, n, window, fraction * rows, ws), 0);
+                    assertEquals(message + ", cut off " + fraction,
+                            DTWDistance.bandedDTW(fa, 1, fb, 0, n, window, fraction * floatRows, ws),
+                            DTWDistance.wavefrontDTW(fa, 1, fb, 0, n, window, fraction * floatRows, ws), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the lockstep distances of a block of candidates are bit for
+     * bit the ones of distance() per candidate, in double and single
+     * precision, and that a cut off sets exactly the candidates above it to
+     * infinity.
+     */
+    public void testLockstepDistances() {
+        Random random = new Random(14);
+        int length = 40;
+        for (int count : new int[]{1, 5, 16, 17}) {
+            // the candidates are rows of one array, in shuffled order
+            double[] values = new double[count * length];
+            float[] floatValues = new float[count * length];
+            int[] offsets = new int[count];
+            for (int c = 0; c < count; c++) {
+                offsets[c] = ((c * 7) % count) * length;
+                System.arraycopy(SeriesTestUtils.randomWalk(length, random), 0, values, offsets[c], length);
+            }
+            for (int j = 0; j < values.length; j++) {
+                floatValues[j] = (float) values[j];
+            }
+            double[] query = SeriesTestUtils.randomWalk(length, random);
+            float[] floatQuery = new float[length];
+            for (int j = 0; j < length; j++) {
+                floatQuery[j] = (float) query[j];
+            }
+
+            DTWDistance dtw = new DTWDistance();
+            dtw.setWarpingWindowSize(15);
+            double[] expected = new double[count];
+            double[] expectedFloat = new double[count];
+            for (int c = 0; c < count; c++) {
+                expected[c] = dtw.distance(values, offsets[c], query, 0, length, Double.POSITIVE_INFINITY);
+                expectedFloat[c] = dtw.distance(floatValues, offsets[c], floatQuery, 0, length,
+                        Double.POSITIVE_INFINITY);
+            }
+
+            double[] distances = new double[count];
+            dtw.distances(values, offsets, count, query, 0, length, Double.POSITIVE_INFINITY, distances);
+            double[] floatDistances = new double[count];
+            dtw.distances(floatValues, offsets, count, floatQuery, 0, length, Double.POSITIVE_INFINITY,
+                    floatDistances);
+            for (int c = 0; c < count; c++) {
+                assertEquals("candidate " + c + " of " + count, expected[c], distances[c], 0);
+                assertEquals("candidate " + c + " of " + count, expectedFloat[c], floatDistances[c], 0);
+            }
+
+            double[] sorted = expected.clone();
+            Arrays.sort(sorted);
+            double cutOff = sorted[count / 2];
+            dtw.distances(values, offsets, count, query, 0, length, cutOff, distances);
+            for (int c = 0; c < count; c++) {
+                assertEquals(expected[c] <= cutOff ? expected[c] : Double.POSITIVE_INFINITY, distances[c], 0);
+            }
+            dtw.distances(values, offsets, count, query, 0, length, 0.999 * sorted[0], distances);
+            for (int c = 0; c < count; c++) {
+                assertEquals(Double.POSITIVE_INFINITY, distances[c], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that -K selects the anti-diagonal kernel for distance() and
+     * survives the options round trip.
+     *
+     * @throws Exception if the options cannot be set
+     */
+    public void testKernelOption() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(2, 50, 13);
+        DTWDistance rows = new DTWDistance();
+        rows.setOptions(new String[]{"-W", "20"});
+        DTWDistance diagonals = new DTWDistance();
+        diagonals.setOptions(new String[]{"-W", "20", "-K", "" + DTWDistance.KERNEL_DIAGONALS});
+        assertEquals(DTWDistance.KERNEL_DIAGONALS, diagonals.getKernel().getSelectedTag().getID());
+        assertEquals(DTWDistance.KERNEL_ROWS, rows.getKernel().getSelectedTag().getID());
+
+        DTWDistance copy = new DTWDistance();
+        copy.setOptions(diagonals.getOptions());
+        assertEquals(DTWDistance.KERNEL_DIAGONALS, copy.getKernel().getSelectedTag().getID());
+
+        rows.setInstances(data);
+        diagonals.setInstances(data);
+        assertEquals(rows.distance(data.instance(0), data.instance(1)),
+                diagonals.distance(data.instance(0), data.instance(1)), 0);
+    }
+
+    /**
+     * Tests that the single precision DTW of rounded values stays within the
+     * documented relative error of the double precision DTW of the same
+     * values, and is exact for integer data.
+     */
+    public void testSinglePrecision() {
+        Random random = new Random(7);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        for (int n : new int[]{1, 17, 256, 1024}) {
+            int window = n / 10;
+            double tolerance = (2 * n + 3) * Math.pow(2, -24);
+            for (int trial = 0; trial < 5; trial++) {
+                double[] a = SeriesTestUtils.randomWalk(n, random);
+                double[] b = SeriesTestUtils.randomWalk(n, random);
+                float[] fa = new float[n];
+                float[] fb = new float[n];
+                for (int j = 0; j < n; j++) {
+                    fa[j] = (float) a[j];
+                    fb[j] = (float) b[j];
+                    a[j] = fa[j];
+                    b[j] = fb[j];
+                }
+                double exact = DTWDistance.bandedDTW(a, 0, b, 0, n, window, Double.POSITIVE_INFINITY, ws);
+                double single = DTWDistance.bandedDTW(fa, 0, fb, 0, n, window, Double.POSITIVE_INFINITY, ws);
+                assertEquals("length " + n, exact, single, tolerance * exact);
+
+                // small integers and their squared sums are exact as floats
+                for (int j = 0; j < n; j++) {
+                    a[j] = Math.round(a[j]);
+                    b[j] = Math.round(b[j]);
+                    fa[j] = (float) a[j];
+                    fb[j] = (float) b[j];
+                }
+                exact = DTWDistance.bandedDTW(a, 0, b, 0, n, window, Double.POSITIVE_INFINITY, ws);
+                if (exact < (1 << 24)) {
+                    assertEquals(exact,
+                            DTWDistance.bandedDTW(fa, 0, fb, 0, n, window, Double.POSITIVE_INFINITY, ws), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that -F stores the prepared series as floats and survives the
+     * options round trip.
+     *
+     * @throws Exception if the options cannot be set
+     */
+    public void testSinglePrecisionOption() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(3, 40, 8);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setOptions(new String[]{"-W", "10", "-F"});
+        dtw.setInstances(data);
+        assertTrue(dtw.getPreparedSeries().isSinglePrecision());
+        assertNull(dtw.getPreparedSeries().getValues());
+
+        DTWDistance copy = new DTWDistance();
+        copy.setOptions(dtw.getOptions());
+        assertTrue(copy.getSinglePrecision());
+
+        DTWDistance reference = new DTWDistance();
+        reference.setWarpingWindowSize(10);
+        reference.setInstances(data);
+        double expected = reference.distance(data.instance(0), data.instance(1));
+        assertEquals(expected, dtw.distance(data.instance(0), data.instance(1)), 1e-5 * expected);
+    }
+
+    /**
+     * Tests that threads sharing one distance function get the distances of
+     * a sequential calculation, with the series prepared and with the range
+     * of attributes resolved on every call.
+     *
+     * @throws Exception if a thread fails
+     */
+    public void testConcurrentDistances() throws Exception {
+        final Instances data = SeriesTestUtils.randomWalks(30, 50, 16);
+        for (final boolean prepared : new boolean[]{true, false}) {
+            final DTWDistance dtw = new DTWDistance();
+            dtw.setWarpingWindowSize(20);
+            dtw.setAttributeIndices("3-48");
+            if (prepared) {
+                dtw.setInstances(data);
+            }
+            final double[][] expected = new double[30][30];
+            for (int i = 0; i < 30; i++) {
+                for (int j = 0; j < 30; j++) {
+                    expected[i][j] = dtw.distance(data.instance(i), data.instance(j));
+                }
+            }
+
+            final Throwable[] failure = new Throwable[1];
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int first = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int round = 0; round < 20; round++) {
+                                for (int i = first; i < 30; i += 2) {
+                                    for (int j = 0; j < 30; j++) {
+                                        assertEquals(expected[i][j],
+                                                dtw.distance(data.instance(i), data.instance(j)), 0);
+                                    }
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure[0] != null) {
+                throw new Exception("prepared " + prepared, failure[0]);
+            }
+        }
+    }
+
+    /**
+     * Tests that changing an option after setInstances() replaces the
+     * prepared series instead of modifying the ones already handed out.
+     */
+    public void testOptionsReplaceSeries() {
+        Instances data = SeriesTestUtils.randomWalks(3, 20, 17);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setInstances(data);
+        PreparedSeries before = dtw.getPreparedSeries();
+        double[] values = before.getValues().clone();
+
+        dtw.setAttributeIndices("1-10");
+        assertNotSame(before, dtw.getPreparedSeries());
+        assertEquals(10, dtw.getPreparedSeries().getLength());
+        assertEquals(20, before.getLength());
+        for (int j = 0; j < values.length; j++) {
+            assertEquals(values[j], before.getValues()[j], 0);
+        }
+
+        dtw.setSinglePrecision(true);
+        assertTrue(dtw.getPreparedSeries().isSinglePrecision());
+        assertFalse(before.isSinglePrecision());
+    }
+
+    /**
+     * Tests that update() appends the new series to the prepared series in
+     * place, keeping the rows already there, and ignores stored instances.
+     */
+    public void testUpdateAppendsInPlace() {
+        Instances data = SeriesTestUtils.randomWalks(3, 20, 18);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setInstances(data);
+        PreparedSeries series = dtw.getPreparedSeries();
+        double[] values = Arrays.copyOf(series.getValues(), 3 * 20);
+
+        data.add(SeriesTestUtils.randomWalks(1, 20, 19).instance(0));
+        dtw.update(data.lastInstance());
+        dtw.update(data.instance(0));
+        assertSame(series, dtw.getPreparedSeries());
+        assertEquals(4, series.numSeries());
+        assertEquals(3, series.indexOf(data.lastInstance()));
+        for (int j = 0; j < values.length; j++) {
+            assertEquals(values[j], series.getValues()[j], 0);
+        }
+    }
+
+    /**
+     * Tests that the banded DTW allocates nothing once the rows of its
+     * workspace are large enough.
+     */
+    public void testNoAllocation() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+            return;
+        }
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        Random random = new Random(3);
+        double[] a = SeriesTestUtils.randomWalk(256, random);
+        double[] b = SeriesTestUtils.randomWalk(256, random);
+        DTWDistance.Workspace ws = new DTWDistance.Workspace();
+        double sum = DTWDistance.bandedDTW(a, 0, b, 0, 256, 64, Double.POSITIVE_INFINITY, ws);
+
+        // a full matrix would take 512 KB per call, allow for the few bytes
+        // the measurement and the compiler may allocate on this thread
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) {
+            sum += DTWDistance.bandedDTW(a, 0, b, 0, 256, 1 + i % 64, Double.POSITIVE_INFINITY, ws);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertTrue(sum > 0);
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(DTWDistanceTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
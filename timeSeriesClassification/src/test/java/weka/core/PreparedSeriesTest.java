@@ -0,0 +1,176 @@
+package weka.core;
+
+import java.util.ArrayList;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests PreparedSeries.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class PreparedSeriesTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public PreparedSeriesTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Creates a dataset whose class attribute is in the middle of the series.
+     *
+     * @return the dataset
+     */
+    private Instances classInTheMiddle() {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < 5; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        Instances data = new Instances("series", attributes, 3);
+        data.setClassIndex(2);
+        for (int i = 0; i < 3; i++) {
+            data.add(new DenseInstance(1.0, new double[]{10 * i, 10 * i + 1, -1, 10 * i + 3, 10 * i + 4}));
+        }
+        return data;
+    }
+
+    /**
+     * Tests that each row holds the values of its instance without the class
+     * attribute.
+     */
+    public void testRows() {
+        Instances data = classInTheMiddle();
+        PreparedSeries series = new PreparedSeries(data, PreparedSeries.seriesAttributes(data, new Range("first-last")));
+
+        assertEquals(4, series.getLength());
+        assertEquals(3, series.numSeries());
+        for (int i = 0; i < 3; i++) {
+            double[] expected = {10 * i, 10 * i + 1, 10 * i + 3, 10 * i + 4};
+            for (int j = 0; j < 4; j++) {
+                assertEquals(expected[j], series.getValues()[series.offset(i) + j], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that all attributes make up the series if no class is set.
+     */
+    public void testNoClass() {
+        Instances data = classInTheMiddle();
+        data.setClassIndex(-1);
+
+        Range all = new Range("first-last");
+        assertEquals(5, PreparedSeries.seriesAttributes(data, all).length);
+        assertEquals(5, new PreparedSeries(data, PreparedSeries.seriesAttributes(data, all)).getLength());
+    }
+
+    /**
+     * Tests that a range selects the attributes of the series, inverted or
+     * not, and never selects the class attribute.
+     */
+    public void testRange() {
+        Instances data = classInTheMiddle();
+        Range range = new Range("2-4");
+        int[] attributes = PreparedSeries.seriesAttributes(data, range);
+        assertEquals(2, attributes.length);
+        assertEquals(1, attributes[0]);
+        assertEquals(3, attributes[1]);
+
+        range.setInvert(true);
+        attributes = PreparedSeries.seriesAttributes(data, range);
+        assertEquals(2, attributes.length);
+        assertEquals(0, attributes[0]);
+        assertEquals(4, attributes[1]);
+    }
+
+    /**
+     * Tests that the rows in single precision hold the rounded values and grow
+     * like the double ones.
+     */
+    public void testSinglePrecision() {
+        Instances data = SeriesTestUtils.randomWalks(3, 10, 9);
+        PreparedSeries series = new PreparedSeries(data, PreparedSeries.seriesAttributes(data,
+                new Range("first-last")), true);
+        series.add((Instance) data.instance(0).copy());
+
+        assertTrue(series.isSinglePrecision());
+        assertNull(series.getValues());
+        assertEquals(4, series.numSeries());
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 10; j++) {
+                assertEquals((float) data.instance(i % 3).value(j),
+                        series.getFloatValues()[series.offset(i) + j], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that the rows of stored instances are found by identity and that
+     * added instances get new rows.
+     */
+    public void testAdd() {
+        Instances data = classInTheMiddle();
+        PreparedSeries series = new PreparedSeries(data, PreparedSeries.seriesAttributes(data, new Range("first-last")));
+        Instance copy = (Instance) data.instance(1).copy();
+
+        assertEquals(1, series.indexOf(data.instance(1)));
+        assertEquals(-1, series.indexOf(copy));
+
+        for (int i = 0; i < 10; i++) {
+            series.add(i == 0 ? copy : (Instance) copy.copy());
+        }
+        assertEquals(13, series.numSeries());
+        assertEquals(3, series.indexOf(copy));
+        assertEquals(1, series.indexOf(data.instance(1)));
+        for (int j = 0; j < 4; j++) {
+            assertEquals(series.getValues()[series.offset(1) + j],
+                    series.getValues()[series.offset(12) + j], 0);
+        }
+    }
+
+    /**
+     * Tests that DTWDistance gives the same distances for stored instances,
+     * which it reads from their rows, and for copies of them, which it
+     * extracts.
+     */
+    public void testStoredAndExternal() {
+        Instances data = SeriesTestUtils.randomWalks(4, 25, 6);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(20);
+        dtw.setInstances(data);
+        PreparedSeries series = dtw.getPreparedSeries();
+
+        for (int i = 0; i < 4; i++) {
+            Instance copy = (Instance) data.instance(i).copy();
+            for (int j = 0; j < 4; j++) {
+                double stored = dtw.distance(data.instance(i), data.instance(j), Double.POSITIVE_INFINITY);
+                assertEquals(stored, dtw.distance(copy, data.instance(j), Double.POSITIVE_INFINITY), 0);
+                assertEquals(stored, dtw.distance(series.getValues(), series.offset(i),
+                        series.getValues(), series.offset(j), 25, Double.POSITIVE_INFINITY), 0);
+            }
+        }
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(PreparedSeriesTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
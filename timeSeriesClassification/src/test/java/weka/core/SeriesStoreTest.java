@@ -0,0 +1,190 @@
+package weka.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests SeriesStore.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SeriesStoreTest extends TestCase {
+
+    /**
+     * The file of the store under test.
+     */
+    private File m_File;
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public SeriesStoreTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Creates the file of the store.
+     *
+     * @throws Exception if the file cannot be created
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_File = File.createTempFile("series", ".store");
+    }
+
+    /**
+     * Deletes the file of the store.
+     *
+     * @throws Exception if the tear down fails
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        m_File.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Creates a dataset whose class attribute is in the middle of the series
+     * and whose first attribute is not part of the series.
+     *
+     * @return the dataset
+     */
+    private Instances classInTheMiddle() {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < 5; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        Instances data = new Instances("series", attributes, 3);
+        data.setClassIndex(2);
+        for (int i = 0; i < 3; i++) {
+            data.add(new DenseInstance(1.0, new double[]{10 * i, 10 * i + 1, -i, 10 * i + 3, 10 * i + 4}));
+        }
+        return data;
+    }
+
+    /**
+     * Tests that the rows hold the series attributes only, in their order,
+     * and that several rows are read at once.
+     *
+     * @throws Exception if the store cannot be written or read
+     */
+    public void testRows() throws Exception {
+        Instances data = classInTheMiddle();
+        SeriesStore.write(data, PreparedSeries.seriesAttributes(data, new Range("2-last")), m_File);
+        SeriesStore store = new SeriesStore(m_File);
+
+        assertEquals(3, store.getLength());
+        assertEquals(3, store.numSeries());
+        assertEquals(1, store.getAttributes()[0]);
+        assertEquals(3, store.getAttributes()[1]);
+        assertEquals(4, store.getAttributes()[2]);
+
+        double[] rows = new double[1 + 2 * 3];
+        store.read(1, 2, rows, 1);
+        double[] expected = {0, 11, 13, 14, 21, 23, 24};
+        for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], rows[j], 0);
+        }
+    }
+
+    /**
+     * Tests that the instances built from the rows carry the structure and
+     * the class of the dataset, and that the attributes outside the series
+     * are missing.
+     *
+     * @throws Exception if the store cannot be written or read
+     */
+    public void testInstances() throws Exception {
+        Instances data = classInTheMiddle();
+        SeriesStore.write(data, PreparedSeries.seriesAttributes(data, new Range("2-last")), m_File);
+        SeriesStore store = new SeriesStore(m_File);
+
+        assertEquals(0, store.getStructure().numInstances());
+        assertEquals(2, store.getStructure().classIndex());
+        assertTrue(data.equalHeaders(store.getStructure()));
+        for (int i = 0; i < 3; i++) {
+            Instance inst = store.instance(i);
+            assertEquals(-i, store.classValue(i), 0);
+            assertEquals(-i, inst.classValue(), 0);
+            assertTrue(inst.isMissing(0));
+            for (int j = 1; j < 5; j++) {
+                assertEquals(data.instance(i).value(j), inst.value(j), 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that a deserialized store maps its file again.
+     *
+     * @throws Exception if the store cannot be written, read or serialized
+     */
+    public void testSerialization() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(50, 20, 15);
+        SeriesStore.write(data, PreparedSeries.seriesAttributes(data, new Range("first-last")), m_File);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new SeriesStore(m_File));
+        out.close();
+        SeriesStore store = (SeriesStore) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(50, store.numSeries());
+        assertEquals(20, store.getLength());
+        double[] row = new double[20];
+        store.read(49, 1, row, 0);
+        for (int j = 0; j < 20; j++) {
+            assertEquals(data.instance(49).value(j), row[j], 0);
+        }
+        assertEquals(data.instance(49).classValue(), store.classValue(49), 0);
+    }
+
+    /**
+     * Tests that a file without the magic number is rejected.
+     *
+     * @throws Exception if the file cannot be written
+     */
+    public void testNotAStore() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(m_File));
+        out.writeInt(SeriesStore.MAGIC + 1);
+        out.writeInt(1);
+        out.close();
+        try {
+            new SeriesStore(m_File);
+            fail("The file is not a series store");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(SeriesStoreTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
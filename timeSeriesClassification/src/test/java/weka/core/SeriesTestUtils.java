@@ -0,0 +1,101 @@
+package weka.core;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Helpers of the tests of the DTW distance and searches: random time series
+ * and a straightforward DTW calculation to compare the optimized ones with.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SeriesTestUtils {
+
+    /**
+     * Generates a random walk.
+     *
+     * @param length the length of the walk
+     * @param random the random numbers to use
+     * @return the random walk
+     */
+    public static double[] randomWalk(int length, Random random) {
+        double[] walk = new double[length];
+        double value = 0;
+        for (int j = 0; j < length; j++) {
+            value += random.nextGaussian();
+            walk[j] = value;
+        }
+        return walk;
+    }
+
+    /**
+     * Generates a dataset of random walks of the same length, with a nominal
+     * class as last attribute.
+     *
+     * @param numSeries the number of series
+     * @param length the length of the series
+     * @param seed the seed of the random numbers
+     * @return the dataset, with the class index set
+     */
+    public static Instances randomWalks(int numSeries, int length, long seed) {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < length; j++) {
+            attributes.add(new Attribute("t" + j));
+        }
+        ArrayList<String> labels = new ArrayList<String>();
+        labels.add("a");
+        labels.add("b");
+        attributes.add(new Attribute("class", labels));
+
+        Instances data = new Instances("walks", attributes, numSeries);
+        data.setClassIndex(length);
+        Random random = new Random(seed);
+        for (int i = 0; i < numSeries; i++) {
+            double[] values = new double[length + 1];
+            System.arraycopy(randomWalk(length, random), 0, values, 0, length);
+            values[length] = random.nextInt(2);
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /**
+     * Calculates the squared DTW distance between two series of the same
+     * length over the full matrix, with the warping path constrained to the
+     * cells at most window cells off the diagonal.
+     *
+     * @param a the first series
+     * @param b the second series
+     * @param window the width of the Sakoe-Chiba band
+     * @return the squared DTW distance
+     */
+    public static double dtw(double[] a, double[] b, int window) {
+        int n = a.length;
+        double[][] cost = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (Math.abs(i - j) > window) {
+                    cost[i][j] = Double.POSITIVE_INFINITY;
+                    continue;
+                }
+                double d = (a[j] - b[i]) * (a[j] - b[i]);
+                if (i == 0 && j == 0) {
+                    cost[i][j] = d;
+                } else {
+                    double best = Double.POSITIVE_INFINITY;
+                    if (i > 0) {
+                        best = Math.min(best, cost[i - 1][j]);
+                    }
+                    if (j > 0) {
+                        best = Math.min(best, cost[i][j - 1]);
+                    }
+                    if (i > 0 && j > 0) {
+                        best = Math.min(best, cost[i - 1][j - 1]);
+                    }
+                    cost[i][j] = d + best;
+                }
+            }
+        }
+        return cost[n - 1][n - 1];
+    }
+}
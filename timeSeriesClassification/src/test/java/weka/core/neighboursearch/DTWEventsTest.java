@@ -0,0 +1,156 @@
+package weka.core.neighboursearch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.DTWDistance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.SeriesTestUtils;
+
+/**
+ * Tests the Flight Recorder events of DTWSearch against its pruning counts.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class DTWEventsTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public DTWEventsTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Returns the recorded events of a type, in the order they were committed.
+     *
+     * @param recording the stopped recording
+     * @param name the name of the event type
+     * @return the events
+     * @throws Exception if the recording cannot be read
+     */
+    private List<RecordedEvent> events(Recording recording, String name) throws Exception {
+        File file = File.createTempFile("dtw", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().equals(name)) {
+                    events.add(event);
+                }
+            }
+            return events;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Asserts that the counts of an event are the given metrics.
+     *
+     * @param metrics the expected counts
+     * @param event the event
+     */
+    private void assertCounts(DTWSearchMetrics metrics, RecordedEvent event) {
+        assertEquals(metrics.getCandidates(), event.getLong("candidates"));
+        assertEquals(metrics.getKimPruned(), event.getLong("kimPruned"));
+        assertEquals(metrics.getKeoghPruned(), event.getLong("keoghPruned"));
+        assertEquals(metrics.getReversedKeoghPruned(), event.getLong("reversedKeoghPruned"));
+        assertEquals(metrics.getOrderPruned(), event.getLong("orderPruned"));
+        assertEquals(metrics.getDTWCalculated(), event.getLong("dtwCalculated"));
+        assertEquals(metrics.getDTWAbandoned(), event.getLong("dtwAbandoned"));
+        assertEquals(metrics.getCells(), event.getLong("cells"));
+    }
+
+    /**
+     * Tests that every query and every batch records one event whose counts
+     * are the metrics of the search, and that a batch adds up the counts of
+     * its queries.
+     *
+     * @throws Exception if the search or the recording fails
+     */
+    public void testQueryAndBatchEvents() throws Exception {
+        if (!DTWEvents.AVAILABLE) {
+            return;
+        }
+        Instances train = SeriesTestUtils.randomWalks(200, 48, 40);
+        Instances test = SeriesTestUtils.randomWalks(6, 48, 41);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setLowerBound(new SelectedTag(DTWSearch.LB_CASCADE, DTWSearch.TAGS_LOWER_BOUND));
+        search.setOrderCandidates(true);
+        search.setInstances(train);
+
+        Recording recording = new Recording();
+        recording.enable("weka.DTWQuery").withoutThreshold();
+        recording.enable("weka.DTWBatch").withoutThreshold();
+        recording.start();
+        List<DTWSearchMetrics> queries = new ArrayList<DTWSearchMetrics>();
+        for (int q = 0; q < test.numInstances(); q++) {
+            search.kNearestNeighbours(test.instance(q), 3);
+            queries.add(search.getLastQueryMetrics());
+        }
+        search.resetMetrics();
+        search.kNearestNeighbours(test, 3);
+        DTWSearchMetrics batch = search.getMetrics();
+        recording.stop();
+
+        List<RecordedEvent> queryEvents = events(recording, "weka.DTWQuery");
+        List<RecordedEvent> batchEvents = events(recording, "weka.DTWBatch");
+        recording.close();
+
+        assertEquals(queries.size(), queryEvents.size());
+        for (int q = 0; q < queries.size(); q++) {
+            RecordedEvent event = queryEvents.get(q);
+            assertEquals(48, event.getInt("length"));
+            assertEquals(dtw.getWindow(48), event.getInt("window"));
+            assertEquals(3, event.getInt("k"));
+            assertCounts(queries.get(q), event);
+        }
+
+        assertEquals(1, batchEvents.size());
+        RecordedEvent event = batchEvents.get(0);
+        assertEquals(test.numInstances(), event.getInt("queries"));
+        assertCounts(batch, event);
+        assertEquals(event.getLong("candidates"), event.getLong("kimPruned") + event.getLong("keoghPruned")
+                + event.getLong("reversedKeoghPruned") + event.getLong("orderPruned")
+                + event.getLong("dtwCalculated"));
+    }
+
+    /**
+     * Tests that no events are created while the events are disabled.
+     */
+    public void testDisabled() {
+        assertNull(DTWEvents.beginQuery());
+        assertNull(DTWEvents.beginBatch());
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(DTWEventsTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
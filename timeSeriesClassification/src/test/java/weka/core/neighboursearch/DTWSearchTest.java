@@ -0,0 +1,733 @@
+package weka.core.neighboursearch;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.DTWDistance;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.SeriesTestUtils;
+
+/**
+ * Tests DTWSearch.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class DTWSearchTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public DTWSearchTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that the constructor taking the instances uses DTWDistance.
+     */
+    public void testConstructor() {
+        Instances data = SeriesTestUtils.randomWalks(5, 20, 7);
+        DTWSearch search = new DTWSearch(data);
+
+        assertTrue(search.getDistanceFunction() instanceof DTWDistance);
+        assertSame(data, search.getDistanceFunction().getInstances());
+    }
+
+    /**
+     * Tests that every training instance is its own nearest neighbour (the
+     * neighbours are copies, so they are compared by value), also
+     * after instances were added through update() and after the distance
+     * function was pointed at other instances.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testSelfIsNearest() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(20, 30, 8);
+        DTWSearch search = new DTWSearch();
+        search.setInstances(data);
+
+        Instances more = SeriesTestUtils.randomWalks(3, 30, 9);
+        for (int i = 0; i < more.numInstances(); i++) {
+            data.add(more.instance(i));
+            search.update(data.lastInstance());
+        }
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance nearest = search.nearestNeighbour(data.instance(i));
+            assertEquals(data.instance(i).toString(), nearest.toString());
+            assertEquals(0, search.getDistances()[0], 0);
+        }
+
+        search.getDistanceFunction().setInstances(more);
+        Instance query = new DenseInstance(data.instance(4));
+        query.setDataset(data);
+        assertEquals(query.toString(), search.nearestNeighbour(query).toString());
+    }
+
+    /**
+     * Tests that the nearest neighbour found with each cascade of lower bounds
+     * is at the smallest DTW distance to the query, i.e. that no lower bound
+     * prunes the nearest neighbour.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testLowerBounds() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(60, 40, 11);
+        Instances test = SeriesTestUtils.randomWalks(15, 40, 12);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        dtw.setInstances(train);
+
+        for (int lowerBound = DTWSearch.LB_NONE; lowerBound <= DTWSearch.LB_CASCADE; lowerBound++) {
+            DTWSearch search = new DTWSearch();
+            search.setDistanceFunction(dtw);
+            search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+            search.setInstances(train);
+            for (int q = 0; q < test.numInstances(); q++) {
+                double best = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < train.numInstances(); i++) {
+                    best = Math.min(best, dtw.distance(test.instance(q), train.instance(i)));
+                }
+                Instance nearest = search.nearestNeighbour(test.instance(q));
+                assertEquals("lower bound " + lowerBound, best, search.getDistances()[0], 1e-9);
+                assertEquals(best, dtw.distance(test.instance(q), nearest), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Tests that kNearestNeighbours returns the k nearest instances sorted by
+     * distance, with their own distances, also when k exceeds the number of
+     * training instances.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testKNearestNeighbours() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(40, 30, 17);
+        Instances test = SeriesTestUtils.randomWalks(10, 30, 18);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setInstances(train);
+        checkKNearestNeighbours(search, dtw, train, test);
+    }
+
+    /**
+     * Tests that a search in single precision finds the neighbours of the
+     * double precision search, at distances within the tolerance documented
+     * on DTWDistance.setSinglePrecision, for every cascade of lower bounds and
+     * both candidate orders, and that its envelopes are the rounded double
+     * ones.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testSinglePrecision() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(200, 64, 24);
+        Instances test = SeriesTestUtils.randomWalks(20, 64, 25);
+        DTWSearch reference = new DTWSearch(train);
+
+        for (int lowerBound = DTWSearch.LB_NONE; lowerBound <= DTWSearch.LB_CASCADE; lowerBound++) {
+            for (boolean order : new boolean[]{false, true}) {
+                DTWDistance dtw = new DTWDistance();
+                dtw.setSinglePrecision(true);
+                DTWSearch search = new DTWSearch();
+                search.setDistanceFunction(dtw);
+                search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+                search.setOrderCandidates(order);
+                search.setInstances(train);
+
+                for (int q = 0; q < test.numInstances(); q++) {
+                    Instances expected = reference.kNearestNeighbours(test.instance(q), 3);
+                    Instances neighbours = search.kNearestNeighbours(test.instance(q), 3);
+                    for (int i = 0; i < 3; i++) {
+                        double distance = reference.getDistances()[i];
+                        assertEquals(distance, search.getDistances()[i], 1e-5 * distance);
+                        assertEquals(expected.instance(i).toString(), neighbours.instance(i).toString());
+                    }
+                }
+            }
+        }
+
+        DTWDistance dtw = new DTWDistance();
+        dtw.setSinglePrecision(true);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setInstances(train);
+        for (int j = 0; j < train.numInstances() * 64; j++) {
+            assertEquals((float) reference.m_LowerEnvelopes[j], search.m_LowerEnvelopesFloat[j], 0);
+            assertEquals((float) reference.m_UpperEnvelopes[j], search.m_UpperEnvelopesFloat[j], 0);
+        }
+    }
+
+    /**
+     * Tests that visiting the candidates in lower bound order finds the same
+     * neighbours as the scan in dataset order, for each cascade of lower
+     * bounds.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testOrderCandidates() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(40, 30, 20);
+        Instances test = SeriesTestUtils.randomWalks(10, 30, 21);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        for (int lowerBound = DTWSearch.LB_NONE; lowerBound <= DTWSearch.LB_CASCADE; lowerBound++) {
+            DTWSearch search = new DTWSearch();
+            search.setDistanceFunction(dtw);
+            search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+            search.setOrderCandidates(true);
+            search.setInstances(train);
+            checkKNearestNeighbours(search, dtw, train, test);
+        }
+    }
+
+    /**
+     * Tests that the scans split across execution slots find the same
+     * neighbours as the sequential scan, with enough candidates for several
+     * chunks.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testExecutionSlots() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(5 * DTWSearch.MIN_CHUNK, 30, 23);
+        Instances test = SeriesTestUtils.randomWalks(5, 30, 24);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        for (int slots : new int[]{0, 4}) {
+            for (boolean order : new boolean[]{false, true}) {
+                DTWSearch search = new DTWSearch();
+                search.setDistanceFunction(dtw);
+                search.setNumExecutionSlots(slots);
+                search.setOrderCandidates(order);
+                search.setInstances(train);
+                checkKNearestNeighbours(search, dtw, train, test);
+            }
+        }
+    }
+
+    /**
+     * Tests that the batch search returns the same neighbours and distances as
+     * one search per query, over several tiles of queries (the last one
+     * partial) and of training series, sequentially and in parallel.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testBatch() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(600, 30, 25);
+        Instances test = SeriesTestUtils.randomWalks(40, 30, 26);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch single = new DTWSearch();
+        single.setDistanceFunction(dtw);
+        single.setInstances(train);
+
+        for (int slots : new int[]{1, 4}) {
+            DTWSearch search = new DTWSearch();
+            search.setDistanceFunction(dtw);
+            search.setNumExecutionSlots(slots);
+            search.setInstances(train);
+            try {
+                search.getBatchDistances();
+                fail("distances before a batch search");
+            } catch (Exception e) {
+                // expected
+            }
+
+            Instances[] neighbours = search.kNearestNeighbours(test, 3);
+            double[][] distances = search.getBatchDistances();
+            assertEquals(test.numInstances(), neighbours.length);
+            assertEquals(test.numInstances(), distances.length);
+            for (int q = 0; q < test.numInstances(); q++) {
+                Instances expected = single.kNearestNeighbours(test.instance(q), 3);
+                assertEquals(expected.numInstances(), neighbours[q].numInstances());
+                for (int i = 0; i < expected.numInstances(); i++) {
+                    assertEquals(expected.instance(i).toString(), neighbours[q].instance(i).toString());
+                    assertEquals(single.getDistances()[i], distances[q][i], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the shared k-th distance keeps the smallest distance
+     * published by concurrent threads.
+     *
+     * @throws Exception if a thread is interrupted
+     */
+    public void testSharedBound() throws Exception {
+        final DTWSearch.SharedBound bound = new DTWSearch.SharedBound();
+        assertEquals(Double.POSITIVE_INFINITY, bound.get(), 0);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 10000; i >= 0; i--) {
+                        bound.update(i + offset + 0.5);
+                        bound.update(2 * i + 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0.5, bound.get(), 0);
+        bound.update(1);
+        assertEquals(0.5, bound.get(), 0);
+    }
+
+    /**
+     * Tests the squared LB_Keogh against the sum over all points outside of
+     * the envelope, that it lower bounds the squared DTW distance, and that it
+     * returns infinity for a cut off below the bound and the bound for a cut
+     * off equal to it.
+     */
+    public void testLBKeogh() {
+        Random random = new Random(27);
+        for (int length : new int[]{1, 2, 30}) {
+            int sizeW = length / 5;
+            for (int trial = 0; trial < 20; trial++) {
+                double[] query = SeriesTestUtils.randomWalk(length, random);
+                double[] candidate = SeriesTestUtils.randomWalk(length, random);
+                double[] lowerB = new double[length + 3];
+                double[] upperB = new double[length + 3];
+                double sum = 0;
+                for (int j = 0; j < length; j++) {
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = Math.max(0, j - sizeW); i <= Math.min(length - 1, j + sizeW); i++) {
+                        min = Math.min(min, query[i]);
+                        max = Math.max(max, query[i]);
+                    }
+                    lowerB[j + 3] = min;
+                    upperB[j + 3] = max;
+                    if (candidate[j] > max) {
+                        sum += (candidate[j] - max) * (candidate[j] - max);
+                    } else if (candidate[j] < min) {
+                        sum += (candidate[j] - min) * (candidate[j] - min);
+                    }
+                }
+                double lb = DTWSearch.computeLB_Keogh(lowerB, upperB, 3, candidate, 0, length,
+                        Double.POSITIVE_INFINITY);
+                assertEquals(sum, lb, 0);
+                assertTrue(lb <= SeriesTestUtils.dtw(query, candidate, sizeW));
+                assertEquals(lb, DTWSearch.computeLB_Keogh(lowerB, upperB, 3, candidate, 0, length, lb), 0);
+                if (lb > 0) {
+                    assertEquals(Double.POSITIVE_INFINITY, DTWSearch.computeLB_Keogh(lowerB, upperB, 3,
+                            candidate, 0, length, 0.99 * lb), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the blocked LB_Keogh in double and single precision gives
+     * exactly the sum over the points outside the envelope, for lengths around
+     * the block size, and that a cut off below the sum abandons it.
+     */
+    public void testLBKeoghBlocks() {
+        Random random = new Random(28);
+        for (int length : new int[]{15, 16, 17, 31, 33, 100}) {
+            double[] values = SeriesTestUtils.randomWalk(length, random);
+            double[] lowerB = new double[length];
+            double[] upperB = new double[length];
+            float[] floatValues = new float[length];
+            float[] floatLowerB = new float[length];
+            float[] floatUpperB = new float[length];
+            double sum = 0;
+            float floatSum = 0;
+            for (int j = 0; j < length; j++) {
+                // about a third of the points inside the envelope
+                double center = values[j] + random.nextGaussian();
+                lowerB[j] = center - 0.5;
+                upperB[j] = center + 0.5;
+                floatValues[j] = (float) values[j];
+                floatLowerB[j] = (float) lowerB[j];
+                floatUpperB[j] = (float) upperB[j];
+                if (values[j] > upperB[j]) {
+                    sum += (values[j] - upperB[j]) * (values[j] - upperB[j]);
+                } else if (values[j] < lowerB[j]) {
+                    sum += (values[j] - lowerB[j]) * (values[j] - lowerB[j]);
+                }
+                if (floatValues[j] > floatUpperB[j]) {
+                    floatSum += (floatValues[j] - floatUpperB[j]) * (floatValues[j] - floatUpperB[j]);
+                } else if (floatValues[j] < floatLowerB[j]) {
+                    floatSum += (floatValues[j] - floatLowerB[j]) * (floatValues[j] - floatLowerB[j]);
+                }
+            }
+            assertTrue(sum > 0);
+
+            assertEquals(sum, DTWSearch.computeLB_Keogh(lowerB, upperB, 0, values, 0, length,
+                    Double.POSITIVE_INFINITY), 0);
+            assertEquals(Double.POSITIVE_INFINITY, DTWSearch.computeLB_Keogh(lowerB, upperB, 0, values, 0,
+                    length, 0.999 * sum), 0);
+            assertEquals(floatSum, DTWSearch.computeLB_Keogh(floatLowerB, floatUpperB, 0, floatValues, 0,
+                    length, Double.POSITIVE_INFINITY), 0);
+            assertEquals(Double.POSITIVE_INFINITY, DTWSearch.computeLB_Keogh(floatLowerB, floatUpperB, 0,
+                    floatValues, 0, length, 0.999 * floatSum), 0);
+        }
+    }
+
+    /**
+     * Tests the pruning counts of a scan in dataset order against a replay of
+     * its cascade: LB_Kim, then LB_Keogh with the envelope of the query, then
+     * early abandoning DTW against the k-th distance so far.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testMetrics() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(300, 40, 29);
+        Instances test = SeriesTestUtils.randomWalks(10, 40, 30);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setLowerBound(new SelectedTag(DTWSearch.LB_KIM_KEOGH, DTWSearch.TAGS_LOWER_BOUND));
+        search.setInstances(train);
+        int sizeW = dtw.getWindow(40);
+
+        long kim = 0;
+        long keogh = 0;
+        long calculated = 0;
+        long abandoned = 0;
+        for (int q = 0; q < test.numInstances(); q++) {
+            double[] query = Arrays.copyOf(test.instance(q).toDoubleArray(), 40);
+            double[] lowerB = new double[40];
+            double[] upperB = new double[40];
+            for (int j = 0; j < 40; j++) {
+                lowerB[j] = Double.POSITIVE_INFINITY;
+                upperB[j] = Double.NEGATIVE_INFINITY;
+                for (int i = Math.max(0, j - sizeW); i <= Math.min(39, j + sizeW); i++) {
+                    lowerB[j] = Math.min(lowerB[j], query[i]);
+                    upperB[j] = Math.max(upperB[j], query[i]);
+                }
+            }
+
+            NeighbourHeap heap = new NeighbourHeap();
+            heap.reset(3);
+            long queryKim = 0;
+            long queryKeogh = 0;
+            long queryCalculated = 0;
+            long queryAbandoned = 0;
+            for (int i = 0; i < train.numInstances(); i++) {
+                double[] candidate = Arrays.copyOf(train.instance(i).toDoubleArray(), 40);
+                double kth = heap.threshold();
+                if (DTWSearch.computeLB_Kim(query, 0, candidate, 0, 40) >= kth) {
+                    queryKim++;
+                } else if (DTWSearch.computeLB_Keogh(lowerB, upperB, 0, candidate, 0, 40, kth) >= kth) {
+                    queryKeogh++;
+                } else {
+                    double distance = dtw.distance(candidate, 0, query, 0, 40, kth);
+                    queryCalculated++;
+                    if (distance == Double.POSITIVE_INFINITY) {
+                        queryAbandoned++;
+                    }
+                    heap.offer(i, distance);
+                }
+            }
+
+            search.kNearestNeighbours(test.instance(q), 3);
+            DTWSearchMetrics metrics = search.getLastQueryMetrics();
+            assertEquals(1, metrics.getQueries());
+            assertEquals(300, metrics.getCandidates());
+            assertEquals(queryKim, metrics.getKimPruned());
+            assertEquals(queryKeogh, metrics.getKeoghPruned());
+            assertEquals(0, metrics.getReversedKeoghPruned());
+            assertEquals(0, metrics.getOrderPruned());
+            assertEquals(queryCalculated, metrics.getDTWCalculated());
+            assertEquals(queryAbandoned, metrics.getDTWAbandoned());
+            assertEquals(1 - queryCalculated / 300.0, metrics.getPruningRate(), 1e-12);
+            kim += queryKim;
+            keogh += queryKeogh;
+            calculated += queryCalculated;
+            abandoned += queryAbandoned;
+        }
+
+        DTWSearchMetrics total = search.getMetrics();
+        assertEquals(test.numInstances(), total.getQueries());
+        assertEquals(300 * test.numInstances(), total.getCandidates());
+        assertEquals(kim, total.getKimPruned());
+        assertEquals(keogh, total.getKeoghPruned());
+        assertEquals(calculated, total.getDTWCalculated());
+        assertEquals(abandoned, total.getDTWAbandoned());
+        assertTrue(kim + keogh > 0);
+
+        search.resetMetrics();
+        assertEquals(0, search.getMetrics().getQueries());
+        assertEquals(0, search.getMetrics().getCandidates());
+    }
+
+    /**
+     * Tests that a scan without lower bounds and more neighbours than
+     * candidates calculates every cell of every band, and that the counts of
+     * a scan split across workers and in lower bound order add up to the
+     * candidates.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testMetricsCells() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(5 * DTWSearch.MIN_CHUNK, 30, 31);
+        Instances test = SeriesTestUtils.randomWalks(3, 30, 32);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(20);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setLowerBound(new SelectedTag(DTWSearch.LB_NONE, DTWSearch.TAGS_LOWER_BOUND));
+        search.setInstances(train);
+
+        int sizeW = dtw.getWindow(30);
+        long band = 0;
+        for (int i = 0; i < 30; i++) {
+            band += Math.min(29, i + sizeW) - Math.max(0, i - sizeW) + 1;
+        }
+        search.kNearestNeighbours(test.instance(0), train.numInstances());
+        DTWSearchMetrics metrics = search.getLastQueryMetrics();
+        assertEquals(train.numInstances(), metrics.getDTWCalculated());
+        assertEquals(0, metrics.getDTWAbandoned());
+        assertEquals(train.numInstances() * band, metrics.getCells());
+        assertEquals(0, metrics.getPruningRate(), 0);
+
+        search.setLowerBound(new SelectedTag(DTWSearch.LB_CASCADE, DTWSearch.TAGS_LOWER_BOUND));
+        search.setMeasurePerformance(true);
+        for (boolean order : new boolean[]{false, true}) {
+            search.setOrderCandidates(order);
+            search.setNumExecutionSlots(4);
+            search.resetMetrics();
+            for (int q = 0; q < test.numInstances(); q++) {
+                search.kNearestNeighbours(test.instance(q), 1);
+                metrics = search.getLastQueryMetrics();
+                assertEquals(train.numInstances(), metrics.getCandidates());
+                assertEquals(metrics.getCandidates(), metrics.getKimPruned() + metrics.getKeoghPruned()
+                        + metrics.getReversedKeoghPruned() + metrics.getOrderPruned()
+                        + metrics.getDTWCalculated());
+                assertTrue(metrics.getDTWCalculated() >= 1);
+            }
+            DTWPerformanceStats stats = (DTWPerformanceStats) search.getPerformanceStats();
+            assertEquals(search.getMetrics().getDTWCalculated(),
+                    stats.getMeasure("measureTotal_dtw_calculated"), 0);
+            assertEquals(search.getMetrics().getPruningRate(), stats.getMeasure("measurePruning_rate"), 0);
+        }
+    }
+
+    /**
+     * Tests that sortByKey sorts the keys like Arrays.sort, keeps every index
+     * with its key and orders equal keys by index.
+     */
+    public void testSortByKey() {
+        Random random = new Random(22);
+        for (int n : new int[]{0, 1, 2, 16, 17, 100, 1000}) {
+            double[] keys = new double[n + 4];
+            int[] indices = new int[n + 4];
+            for (int i = 0; i < keys.length; i++) {
+                // few distinct values, so there are many ties
+                keys[i] = random.nextInt(10);
+                indices[i] = keys.length - i;
+            }
+            double[] original = keys.clone();
+            double[] sorted = Arrays.copyOfRange(keys, 2, n + 2);
+            Arrays.sort(sorted);
+
+            DTWSearch.sortByKey(keys, indices, 2, n + 1);
+            for (int i = 0; i < n; i++) {
+                assertEquals(sorted[i], keys[i + 2], 0);
+                assertEquals(keys[i + 2], original[keys.length - indices[i + 2]], 0);
+                if (i > 0 && keys[i + 2] == keys[i + 1]) {
+                    assertTrue(indices[i + 2] > indices[i + 1]);
+                }
+            }
+            // the positions outside of the range are left alone
+            assertEquals(original[0], keys[0], 0);
+            assertEquals(original[n + 3], keys[n + 3], 0);
+        }
+    }
+
+    /**
+     * Checks the k nearest neighbours found by a search and their distances
+     * against the distances to all training instances.
+     *
+     * @param search the search to check
+     * @param dtw the distance function of the search
+     * @param train the training instances
+     * @param test the queries
+     * @throws Exception if the search fails
+     */
+    private void checkKNearestNeighbours(DTWSearch search, DTWDistance dtw, Instances train, Instances test)
+            throws Exception {
+
+        for (int k : new int[]{1, 5, 43}) {
+            for (int q = 0; q < test.numInstances(); q++) {
+                double[] expected = new double[train.numInstances()];
+                for (int i = 0; i < train.numInstances(); i++) {
+                    expected[i] = dtw.distance(test.instance(q), train.instance(i));
+                }
+                Arrays.sort(expected);
+
+                Instances neighbours = search.kNearestNeighbours(test.instance(q), k);
+                double[] distances = search.getDistances();
+                assertEquals(Math.min(k, train.numInstances()), neighbours.numInstances());
+                assertEquals(neighbours.numInstances(), distances.length);
+                for (int i = 0; i < distances.length; i++) {
+                    assertEquals("k " + k + ", neighbour " + i, expected[i], distances[i], 1e-9);
+                    assertEquals(distances[i], dtw.distance(test.instance(q), neighbours.instance(i)), 1e-9);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that -S skips the training instances identical to the query.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testSkipIdentical() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(20, 30, 19);
+        DTWSearch search = new DTWSearch();
+        search.setInstances(train);
+        search.setSkipIdentical(true);
+
+        Instances neighbours = search.kNearestNeighbours(train.instance(3), 3);
+        assertEquals(3, neighbours.numInstances());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(search.getDistances()[i] > 0);
+            assertFalse(train.instance(3).toString().equals(neighbours.instance(i).toString()));
+        }
+    }
+
+    /**
+     * Tests that the envelopes kept up to date through update() and through a
+     * change of the window equal the envelopes computed from scratch, and
+     * that every series lies within its envelope.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testEnvelopes() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(10, 30, 13);
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        DTWSearch search = new DTWSearch();
+        search.setDistanceFunction(dtw);
+        search.setInstances(data);
+
+        Instances more = SeriesTestUtils.randomWalks(15, 30, 14);
+        for (int i = 0; i < more.numInstances(); i++) {
+            data.add(more.instance(i));
+            search.update(data.lastInstance());
+        }
+        assertEnvelopes(data, search, 10);
+
+        dtw.setWarpingWindowSize(30);
+        search.nearestNeighbour(more.instance(0));
+        assertEnvelopes(data, search, 30);
+    }
+
+    /**
+     * Tests the envelopes computed with the deques against the minimum and the
+     * maximum of every window, for degenerate lengths and for envelope widths
+     * from zero to the whole series.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testEnvelopeWindows() throws Exception {
+        for (int length : new int[]{1, 2, 17, 40}) {
+            Instances data = SeriesTestUtils.randomWalks(5, length, 15 + length);
+            for (int percent : new int[]{0, 5, 50, 100}) {
+                DTWDistance dtw = new DTWDistance();
+                dtw.setWarpingWindowSize(percent);
+                DTWSearch search = new DTWSearch();
+                search.setDistanceFunction(dtw);
+                search.setInstances(data);
+
+                int sizeW = dtw.getWindow(length);
+                for (int i = 0; i < data.numInstances(); i++) {
+                    for (int j = 0; j < length; j++) {
+                        double min = Double.POSITIVE_INFINITY;
+                        double max = Double.NEGATIVE_INFINITY;
+                        for (int k = Math.max(0, j - sizeW); k <= Math.min(length - 1, j + sizeW); k++) {
+                            min = Math.min(min, data.instance(i).value(k));
+                            max = Math.max(max, data.instance(i).value(k));
+                        }
+                        String message = "length " + length + ", window " + sizeW + ", point " + j;
+                        assertEquals(message, min, search.m_LowerEnvelopes[i * length + j], 0);
+                        assertEquals(message, max, search.m_UpperEnvelopes[i * length + j], 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the training envelopes of a search against the envelopes of a
+     * search that is set up from scratch.
+     *
+     * @param data the training instances
+     * @param search the search to check
+     * @param window the warping window size in percent
+     * @throws Exception if the search cannot be set up
+     */
+    private void assertEnvelopes(Instances data, DTWSearch search, int window) throws Exception {
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(window);
+        DTWSearch fresh = new DTWSearch();
+        fresh.setDistanceFunction(dtw);
+        fresh.setInstances(new Instances(data));
+
+        int length = data.numAttributes() - 1;
+        for (int i = 0; i < data.numInstances() * length; i++) {
+            double value = data.instance(i / length).value(i % length);
+            assertEquals(fresh.m_LowerEnvelopes[i], search.m_LowerEnvelopes[i], 0);
+            assertEquals(fresh.m_UpperEnvelopes[i], search.m_UpperEnvelopes[i], 0);
+            assertTrue(search.m_LowerEnvelopes[i] <= value);
+            assertTrue(search.m_UpperEnvelopes[i] >= value);
+        }
+    }
+
+    /**
+     * Tests the -L option.
+     *
+     * @throws Exception if the options cannot be set
+     */
+    public void testLowerBoundOption() throws Exception {
+        DTWSearch search = new DTWSearch();
+        assertEquals(DTWSearch.LB_CASCADE, search.getLowerBound().getSelectedTag().getID());
+        search.setOptions(new String[]{"-A", "weka.core.DTWDistance -W 10", "-L", "1"});
+        assertEquals(DTWSearch.LB_KEOGH, search.getLowerBound().getSelectedTag().getID());
+        search.setOptions(new String[]{"-A", "weka.core.DTWDistance -W 10"});
+        assertEquals(DTWSearch.LB_CASCADE, search.getLowerBound().getSelectedTag().getID());
+    }
+
+    /**
+     * Tests that the revision string can be queried, as Weka does for every
+     * RevisionHandler.
+     */
+    public void testRevision() {
+        assertNotNull(new DTWSearch().getRevision());
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(DTWSearchTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,318 @@
+package weka.core.neighboursearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.DTWDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.SeriesTestUtils;
+import weka.core.Utils;
+
+/**
+ * Tests IndexedDTWSearch against a DTWSearch over the same training series.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class IndexedDTWSearchTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public IndexedDTWSearchTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Creates random walks shifted by a level that grows with the series, so
+     * the series spread over the space of the index.
+     *
+     * @param numSeries the number of series
+     * @param length the length of the series
+     * @param seed the seed of the random walks
+     * @return the series
+     */
+    private Instances shiftedWalks(int numSeries, int length, long seed) {
+        Instances data = SeriesTestUtils.randomWalks(numSeries, length, seed);
+        for (int i = 0; i < numSeries; i++) {
+            Instance inst = data.instance(i);
+            for (int j = 0; j < length; j++) {
+                inst.setValue(j, inst.value(j) + 5 * i);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Creates a search with a window of 10% of the series.
+     *
+     * @param search the search to set up
+     * @param train the training series
+     * @return the search
+     * @throws Exception if the instances cannot be set
+     */
+    private DTWSearch setUp(DTWSearch search, Instances train) throws Exception {
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(10);
+        search.setDistanceFunction(dtw);
+        search.setInstances(train);
+        return search;
+    }
+
+    /**
+     * Asserts that the index finds the neighbours of the queries at the
+     * distances a sequential scan finds them.
+     *
+     * @param search the indexed search
+     * @param reference the sequential scan over the same series
+     * @param test the queries
+     * @param k the number of neighbours
+     * @throws Exception if a search fails
+     */
+    private void assertSameDistances(IndexedDTWSearch search, DTWSearch reference, Instances test, int k)
+            throws Exception {
+        for (int q = 0; q < test.numInstances(); q++) {
+            reference.kNearestNeighbours(test.instance(q), k);
+            search.kNearestNeighbours(test.instance(q), k);
+            double[] expected = reference.getDistances();
+            double[] distances = search.getDistances();
+            assertEquals(expected.length, distances.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], distances[i], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Tests that the search is exact for numbers of segments that do and do
+     * not divide the length, including more segments than points, and for
+     * leaves of one series up to a single leaf holding all series.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testExact() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(150, 30, 20);
+        Instances test = SeriesTestUtils.randomWalks(8, 30, 21);
+        DTWSearch reference = setUp(new DTWSearch(), train);
+
+        for (int numSegments : new int[]{1, 7, 30, 40}) {
+            for (int leafSize : new int[]{1, 5, 200}) {
+                IndexedDTWSearch search = new IndexedDTWSearch();
+                search.setNumSegments(numSegments);
+                search.setLeafSize(leafSize);
+                setUp(search, train);
+                assertSameDistances(search, reference, test, 1);
+                assertSameDistances(search, reference, test, 10);
+            }
+        }
+
+        IndexedDTWSearch search = (IndexedDTWSearch) setUp(new IndexedDTWSearch(), train);
+        assertSameDistances(search, reference, test, 200);
+        assertEquals(150, search.getDistances().length);
+    }
+
+    /**
+     * Tests that series far from the query are pruned by the index without
+     * being visited, and that every training series is counted once as a
+     * candidate, either pruned by the index, pruned by a lower bound of the
+     * cascade or compared with DTW.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testIndexPruning() throws Exception {
+        Instances train = shiftedWalks(400, 32, 22);
+        IndexedDTWSearch search = new IndexedDTWSearch();
+        search.setLeafSize(8);
+        setUp(search, train);
+
+        Instance query = (Instance) train.instance(17).copy();
+        Instances neighbours = search.kNearestNeighbours(query, 1);
+        DTWSearchMetrics metrics = search.getLastQueryMetrics();
+
+        assertEquals(train.instance(17).toString(), neighbours.instance(0).toString());
+        assertEquals(400, metrics.getCandidates());
+        assertTrue(metrics.getIndexPruned() > 300);
+        assertEquals(0, metrics.getOrderPruned());
+        assertEquals(metrics.getCandidates(), metrics.getIndexPruned() + metrics.getKimPruned()
+                + metrics.getKeoghPruned() + metrics.getReversedKeoghPruned() + metrics.getDTWCalculated());
+    }
+
+    /**
+     * Tests that ordering the candidates of the leaves by their lower bounds
+     * keeps the search exact for every lower bound setting, and that the
+     * candidates skipped by the order are counted.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testOrderCandidates() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(300, 30, 30);
+        Instances test = SeriesTestUtils.randomWalks(8, 30, 31);
+        DTWSearch reference = setUp(new DTWSearch(), train);
+
+        long orderPruned = 0;
+        for (int lowerBound = DTWSearch.LB_NONE; lowerBound <= DTWSearch.LB_CASCADE; lowerBound++) {
+            IndexedDTWSearch search = new IndexedDTWSearch();
+            search.setLeafSize(64);
+            search.setOrderCandidates(true);
+            search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+            setUp(search, train);
+            assertSameDistances(search, reference, test, 3);
+
+            DTWSearchMetrics metrics = search.getMetrics();
+            assertEquals(300 * test.numInstances(), metrics.getCandidates());
+            assertEquals(metrics.getCandidates(), metrics.getIndexPruned() + metrics.getOrderPruned()
+                    + metrics.getReversedKeoghPruned() + metrics.getDTWCalculated());
+            orderPruned += metrics.getOrderPruned();
+        }
+        assertTrue(orderPruned > 0);
+    }
+
+    /**
+     * Tests that a batch run in parallel on several execution slots gives the
+     * distances of single queries and counts every query.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testExecutionSlots() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(200, 30, 32);
+        Instances test = SeriesTestUtils.randomWalks(13, 30, 33);
+        IndexedDTWSearch search = (IndexedDTWSearch) setUp(new IndexedDTWSearch(), train);
+        search.setNumExecutionSlots(4);
+
+        search.kNearestNeighbours(test, 5);
+        double[][] distances = search.getBatchDistances();
+        assertEquals(test.numInstances(), search.getMetrics().getQueries());
+        assertEquals(200 * test.numInstances(), search.getMetrics().getCandidates());
+        for (int q = 0; q < test.numInstances(); q++) {
+            search.kNearestNeighbours(test.instance(q), 5);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(search.getDistances()[i], distances[q][i], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that series added through update() are inserted in the index,
+     * also beyond the size at which a leaf is split, and are found.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testUpdate() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(20, 30, 23);
+        IndexedDTWSearch search = new IndexedDTWSearch();
+        search.setLeafSize(4);
+        setUp(search, data);
+
+        Instances more = SeriesTestUtils.randomWalks(30, 30, 24);
+        for (int i = 0; i < more.numInstances(); i++) {
+            data.add(more.instance(i));
+            search.update(data.lastInstance());
+        }
+        assertEquals(50, search.m_Root.m_Size);
+
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance nearest = search.nearestNeighbour(data.instance(i));
+            assertEquals(data.instance(i).toString(), nearest.toString());
+            assertEquals(0, search.getDistances()[0], 0);
+        }
+        assertSameDistances(search, setUp(new DTWSearch(), data), SeriesTestUtils.randomWalks(5, 30, 25), 3);
+    }
+
+    /**
+     * Tests that a batch gives, query by query, the distances of single
+     * searches.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testBatch() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(100, 30, 26);
+        Instances test = SeriesTestUtils.randomWalks(6, 30, 27);
+        IndexedDTWSearch search = (IndexedDTWSearch) setUp(new IndexedDTWSearch(), train);
+
+        Instances[] batch = search.kNearestNeighbours(test, 4);
+        double[][] distances = search.getBatchDistances();
+        assertEquals(test.numInstances(), batch.length);
+        for (int q = 0; q < test.numInstances(); q++) {
+            Instances neighbours = search.kNearestNeighbours(test.instance(q), 4);
+            assertEquals(neighbours.toString(), batch[q].toString());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(search.getDistances()[i], distances[q][i], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that a deserialized search keeps its index and searches it.
+     *
+     * @throws Exception if the search cannot be serialized
+     */
+    public void testSerialization() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(80, 30, 28);
+        IndexedDTWSearch search = (IndexedDTWSearch) setUp(new IndexedDTWSearch(), train);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(search);
+        out.close();
+        IndexedDTWSearch copy = (IndexedDTWSearch) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertNotNull(copy.m_Root);
+        assertEquals(80, copy.m_Root.m_Size);
+        assertSameDistances(copy, search, SeriesTestUtils.randomWalks(5, 30, 29), 3);
+    }
+
+    /**
+     * Tests that the options of the index are parsed, returned and reset to
+     * their defaults, and that invalid values are rejected.
+     *
+     * @throws Exception if the options cannot be set
+     */
+    public void testOptions() throws Exception {
+        IndexedDTWSearch search = new IndexedDTWSearch();
+        search.setOptions(new String[]{"-A", "weka.core.DTWDistance -W 10", "-num-segments", "5",
+                "-leaf-size", "10"});
+        assertEquals(5, search.getNumSegments());
+        assertEquals(10, search.getLeafSize());
+
+        String[] options = search.getOptions();
+        assertEquals("5", options[Utils.getOptionPos("num-segments", options) + 1]);
+        assertEquals("10", options[Utils.getOptionPos("leaf-size", options) + 1]);
+
+        search.setOptions(new String[]{"-A", "weka.core.DTWDistance -W 10"});
+        assertEquals(8, search.getNumSegments());
+        assertEquals(32, search.getLeafSize());
+
+        try {
+            search.setLeafSize(0);
+            fail("A leaf should hold at least one series");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(IndexedDTWSearchTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
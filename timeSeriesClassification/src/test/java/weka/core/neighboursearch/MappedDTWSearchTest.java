@@ -0,0 +1,191 @@
+package weka.core.neighboursearch;
+
+import java.io.File;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Instances;
+import weka.core.PreparedSeries;
+import weka.core.Range;
+import weka.core.SelectedTag;
+import weka.core.SeriesStore;
+import weka.core.SeriesTestUtils;
+
+/**
+ * Tests MappedDTWSearch against a DTWSearch over the same training series
+ * held in the heap.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class MappedDTWSearchTest extends TestCase {
+
+    /**
+     * The training series.
+     */
+    private Instances m_Train;
+    /**
+     * The queries.
+     */
+    private Instances m_Test;
+    /**
+     * The file holding the store of the training series.
+     */
+    private File m_File;
+    /**
+     * The store of the training series.
+     */
+    private SeriesStore m_Store;
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public MappedDTWSearchTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Generates the series and writes the training series to a store.
+     *
+     * @throws Exception if the setup fails
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_Train = SeriesTestUtils.randomWalks(300, 64, 1);
+        m_Test = SeriesTestUtils.randomWalks(20, 64, 2);
+        m_File = File.createTempFile("series", ".store");
+        SeriesStore.write(m_Train, PreparedSeries.seriesAttributes(m_Train, new Range("first-last")), m_File);
+        m_Store = new SeriesStore(m_File);
+    }
+
+    /**
+     * Deletes the store.
+     *
+     * @throws Exception if the tear down fails
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        m_Store = null;
+        m_File.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Asserts that the mapped search finds the same neighbours, at the same
+     * distances, as an in-memory search visiting the candidates in the same
+     * order.
+     *
+     * @param search the mapped search
+     * @param k the number of neighbours
+     * @throws Exception if a search fails
+     */
+    private void assertSameAsInMemory(MappedDTWSearch search, int k) throws Exception {
+        DTWSearch reference = new DTWSearch(m_Train);
+        reference.setOrderCandidates(false);
+        for (int q = 0; q < m_Test.numInstances(); q++) {
+            Instances expected = reference.kNearestNeighbours(m_Test.instance(q), k);
+            Instances neighbours = search.kNearestNeighbours(m_Test.instance(q), k);
+            assertEquals(expected.numInstances(), neighbours.numInstances());
+            for (int i = 0; i < expected.numInstances(); i++) {
+                assertEquals(reference.getDistances()[i], search.getDistances()[i], 1e-9);
+                assertEquals(expected.instance(i).toString(), neighbours.instance(i).toString());
+            }
+        }
+    }
+
+    /**
+     * Tests the scan of the store for every lower bound setting.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testLowerBounds() throws Exception {
+        for (int lowerBound = DTWSearch.LB_NONE; lowerBound <= DTWSearch.LB_CASCADE; lowerBound++) {
+            MappedDTWSearch search = new MappedDTWSearch(m_Store);
+            search.setLowerBound(new SelectedTag(lowerBound, DTWSearch.TAGS_LOWER_BOUND));
+            assertSameAsInMemory(search, 5);
+        }
+    }
+
+    /**
+     * Tests the scan of the store on several execution slots, with more
+     * neighbours than fit in a block of rows.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testExecutionSlots() throws Exception {
+        MappedDTWSearch search = new MappedDTWSearch(m_Store);
+        search.setNumExecutionSlots(4);
+        assertSameAsInMemory(search, 1);
+        assertSameAsInMemory(search, 200);
+    }
+
+    /**
+     * Tests that a batch gives, query by query, the neighbours and distances
+     * of single searches.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testBatch() throws Exception {
+        MappedDTWSearch search = new MappedDTWSearch(m_Store);
+        Instances[] batch = search.kNearestNeighbours(m_Test, 3);
+        double[][] distances = search.getBatchDistances();
+        assertEquals(m_Test.numInstances(), batch.length);
+        for (int q = 0; q < m_Test.numInstances(); q++) {
+            Instances neighbours = search.kNearestNeighbours(m_Test.instance(q), 3);
+            assertEquals(neighbours.toString(), batch[q].toString());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(search.getDistances()[i], distances[q][i], 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that a stored series is its own nearest neighbour and comes back
+     * with its class.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testSelfIsNearest() throws Exception {
+        MappedDTWSearch search = new MappedDTWSearch(m_Store);
+        for (int i = 0; i < 10; i++) {
+            Instances neighbours = search.kNearestNeighbours(m_Train.instance(i), 1);
+            assertEquals(0, search.getDistances()[0], 0);
+            assertEquals(m_Train.instance(i).toString(), neighbours.instance(0).toString());
+        }
+    }
+
+    /**
+     * Tests that a store cannot be updated.
+     *
+     * @throws Exception if the search cannot be created
+     */
+    public void testUpdate() throws Exception {
+        MappedDTWSearch search = new MappedDTWSearch(m_Store);
+        try {
+            search.update(m_Test.instance(0));
+            fail("A series store should be read-only");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(MappedDTWSearchTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,102 @@
+package weka.core.neighboursearch;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests NeighbourHeap.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class NeighbourHeapTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public NeighbourHeapTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that the heap keeps the k smallest of random distances, returns
+     * them sorted and reports the k-th distance as threshold once it is full.
+     */
+    public void testKeepsSmallest() {
+        Random random = new Random(16);
+        NeighbourHeap heap = new NeighbourHeap();
+        for (int k : new int[]{1, 2, 7, 50, 200}) {
+            double[] distances = new double[100];
+            heap.reset(k);
+            for (int i = 0; i < distances.length; i++) {
+                // few distinct values, so there are ties
+                distances[i] = random.nextInt(30);
+                heap.offer(i, distances[i]);
+                if (i + 1 < k) {
+                    assertEquals(Double.POSITIVE_INFINITY, heap.threshold(), 0);
+                }
+            }
+            double[] sorted = distances.clone();
+            Arrays.sort(sorted);
+            int size = Math.min(k, distances.length);
+            if (k <= distances.length) {
+                assertEquals(sorted[k - 1], heap.threshold(), 0);
+            }
+
+            heap.sort();
+            assertEquals(size, heap.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(sorted[i], heap.distance(i), 0);
+                assertEquals(distances[heap.index(i)], heap.distance(i), 0);
+            }
+        }
+    }
+
+    /**
+     * Tests that a candidate at the k-th distance does not replace the one
+     * found first.
+     */
+    public void testTies() {
+        NeighbourHeap heap = new NeighbourHeap();
+        heap.reset(2);
+        assertTrue(heap.offer(0, 1));
+        assertTrue(heap.offer(1, 3));
+        assertFalse(heap.offer(2, 3));
+        assertTrue(heap.offer(3, 2));
+        heap.sort();
+        assertEquals(0, heap.index(0));
+        assertEquals(3, heap.index(1));
+    }
+
+    /**
+     * Tests that a heap of no neighbours keeps nothing.
+     */
+    public void testEmpty() {
+        NeighbourHeap heap = new NeighbourHeap();
+        heap.reset(0);
+        assertFalse(heap.offer(0, 1));
+        assertEquals(0, heap.size());
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(NeighbourHeapTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,198 @@
+package weka.core.neighboursearch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.SeriesTestUtils;
+
+/**
+ * Tests SubsequenceSearch against the DTW distances of every subsequence of
+ * the stream.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class SubsequenceSearchTest extends TestCase {
+
+    /**
+     * The length of the queries.
+     */
+    private static final int LENGTH = 32;
+
+    /**
+     * The stream, longer than the points processed at a time.
+     */
+    private double[] m_Stream;
+    /**
+     * The file holding the stream.
+     */
+    private File m_File;
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public SubsequenceSearchTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Writes a random walk to a temporary file.
+     *
+     * @throws Exception if the setup fails
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_Stream = SeriesTestUtils.randomWalk(210000, new Random(1));
+        m_File = write(m_Stream);
+    }
+
+    /**
+     * Deletes the temporary files.
+     *
+     * @throws Exception if the tear down fails
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        m_File.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Writes a stream of doubles to a temporary file.
+     *
+     * @param stream the stream
+     * @return the file
+     * @throws IOException if the file cannot be written
+     */
+    private static File write(double[] stream) throws IOException {
+        File file = File.createTempFile("stream", ".bin");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (double value : stream) {
+                out.writeDouble(value);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Z-normalizes a series with its population standard deviation.
+     *
+     * @param series the series
+     * @return the normalized series
+     */
+    private static double[] normalize(double[] series) {
+        double mean = 0;
+        for (double value : series) {
+            mean += value;
+        }
+        mean /= series.length;
+        double variance = 0;
+        for (double value : series) {
+            variance += (value - mean) * (value - mean);
+        }
+        double std = Math.sqrt(variance / series.length);
+        double[] normalized = new double[series.length];
+        for (int i = 0; i < series.length; i++) {
+            normalized[i] = (series[i] - mean) / std;
+        }
+        return normalized;
+    }
+
+    /**
+     * Tests the best match against the DTW distance of every subsequence.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testBruteForce() throws Exception {
+        double[] query = SeriesTestUtils.randomWalk(LENGTH, new Random(2));
+        SubsequenceSearch search = new SubsequenceSearch(query);
+        search.setWarpingWindowSize(10);
+        long location = search.search(m_File);
+
+        double[] q = normalize(query);
+        int window = 10 * LENGTH / 100;
+        double best = Double.POSITIVE_INFINITY;
+        long expected = -1;
+        double[] subsequence = new double[LENGTH];
+        for (int i = 0; i + LENGTH <= m_Stream.length; i++) {
+            System.arraycopy(m_Stream, i, subsequence, 0, LENGTH);
+            double distance = SeriesTestUtils.dtw(normalize(subsequence), q, window);
+            if (distance < best) {
+                best = distance;
+                expected = i;
+            }
+        }
+
+        assertEquals(expected, location);
+        assertEquals(expected, search.getLocation());
+        assertEquals(Math.sqrt(best), search.getDistance(), 1e-6);
+    }
+
+    /**
+     * Tests that a scaled and shifted copy of the query is found where it was
+     * planted, across the boundary of the points processed at a time.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testPlanted() throws Exception {
+        double[] query = SeriesTestUtils.randomWalk(LENGTH, new Random(3));
+        int position = 100000 - LENGTH / 2;
+        for (int i = 0; i < LENGTH; i++) {
+            m_Stream[position + i] = 3 * query[i] + 50;
+        }
+        File file = write(m_Stream);
+        try {
+            SubsequenceSearch search = new SubsequenceSearch(query);
+            assertEquals(position, search.search(file));
+            assertEquals(0, search.getDistance(), 1e-6);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that no match is found in a stream shorter than the query.
+     *
+     * @throws Exception if the search fails
+     */
+    public void testShortStream() throws Exception {
+        double[] stream = new double[LENGTH - 1];
+        System.arraycopy(m_Stream, 0, stream, 0, stream.length);
+        File file = write(stream);
+        try {
+            SubsequenceSearch search = new SubsequenceSearch(SeriesTestUtils.randomWalk(LENGTH, new Random(2)));
+            assertEquals(-1, search.search(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(SubsequenceSearchTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,280 @@
+package weka.core.neighboursearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.DTWDistance;
+import weka.core.DistanceFunction;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.ManhattanDistance;
+import weka.core.SeriesTestUtils;
+
+/**
+ * Tests VPTreeSearch against a LinearNNSearch with the same distance
+ * function.
+ *
+ * @author Csar Soto-Valero (cesarsotovalero@gmail.com)
+ */
+public class VPTreeSearchTest extends TestCase {
+
+    /**
+     * Constructs the test.
+     *
+     * @param name the name of the test
+     */
+    public VPTreeSearchTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Asserts that the tree finds the neighbours of the queries at the
+     * distances a linear scan finds them.
+     *
+     * @param search the tree search
+     * @param train the instances of the search
+     * @param df a distance function like the one of the search
+     * @param test the queries
+     * @param k the number of neighbours
+     * @throws Exception if a search fails
+     */
+    private void assertSameAsLinear(VPTreeSearch search, Instances train, DistanceFunction df, Instances test,
+            int k) throws Exception {
+        LinearNNSearch reference = new LinearNNSearch();
+        reference.setDistanceFunction(df);
+        reference.setInstances(train);
+        for (int q = 0; q < test.numInstances(); q++) {
+            Instances expected = reference.kNearestNeighbours(test.instance(q), k);
+            Instances neighbours = search.kNearestNeighbours(test.instance(q), k);
+            assertEquals(expected.numInstances(), neighbours.numInstances());
+            for (int i = 0; i < expected.numInstances(); i++) {
+                assertEquals(reference.getDistances()[i], search.getDistances()[i], 1e-9);
+                assertEquals(expected.instance(i).toString(), neighbours.instance(i).toString());
+            }
+        }
+    }
+
+    /**
+     * Tests that the search is exact with the Euclidean and the Manhattan
+     * distance, for leaves of one instance up to a single leaf holding all
+     * instances, and for more neighbours than instances.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testExact() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(300, 16, 30);
+        Instances test = SeriesTestUtils.randomWalks(10, 16, 31);
+
+        for (int leafSize : new int[]{1, 4, 16, 500}) {
+            VPTreeSearch search = new VPTreeSearch();
+            search.setDistanceFunction(new EuclideanDistance());
+            search.setLeafSize(leafSize);
+            search.setInstances(train);
+            assertSameAsLinear(search, train, new EuclideanDistance(), test, 1);
+            assertSameAsLinear(search, train, new EuclideanDistance(), test, 10);
+        }
+
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(new ManhattanDistance());
+        search.setInstances(train);
+        assertSameAsLinear(search, train, new ManhattanDistance(), test, 5);
+        assertSameAsLinear(search, train, new ManhattanDistance(), test, 400);
+        assertEquals(300, search.getDistances().length);
+    }
+
+    /**
+     * Tests that DTWDistance is accepted without warping, where it gives the
+     * neighbours of the Euclidean distance, and rejected with a warping window
+     * or in single precision.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testDTWDistance() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(200, 20, 32);
+        Instances test = SeriesTestUtils.randomWalks(5, 20, 33);
+
+        DTWDistance dtw = new DTWDistance();
+        dtw.setWarpingWindowSize(0);
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(dtw);
+        search.setInstances(train);
+        EuclideanDistance euclidean = new EuclideanDistance();
+        euclidean.setDontNormalize(true);
+        assertSameAsLinear(search, train, euclidean, test, 3);
+
+        DTWDistance warping = new DTWDistance();
+        warping.setWarpingWindowSize(10);
+        assertFalse(VPTreeSearch.isMetric(warping));
+        DTWDistance single = new DTWDistance();
+        single.setWarpingWindowSize(0);
+        single.setSinglePrecision(true);
+        assertFalse(VPTreeSearch.isMetric(single));
+        try {
+            new VPTreeSearch().setDistanceFunction(warping);
+            fail("DTW with warping is not a metric");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that the triangle inequality prunes most of the instances when
+     * they are spread out, and that the tree statistics count the nodes.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testPruning() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(1000, 8, 34);
+        for (int i = 0; i < train.numInstances(); i++) {
+            Instance inst = train.instance(i);
+            for (int j = 0; j < 8; j++) {
+                inst.setValue(j, inst.value(j) + 10 * i);
+            }
+        }
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(new EuclideanDistance());
+        search.setMeasurePerformance(true);
+        search.setInstances(train);
+
+        Instance query = (Instance) train.instance(500).copy();
+        assertEquals(train.instance(500).toString(), search.nearestNeighbour(query).toString());
+        TreePerformanceStats stats = (TreePerformanceStats) search.getPerformanceStats();
+        assertTrue(stats.getTotalPointsVisited() < 100);
+        assertTrue(stats.getTotalLeavesVisited() > 0);
+        assertTrue(stats.getTotalIntNodesVisited() > 0);
+    }
+
+    /**
+     * Tests that instances added through update() are found.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testUpdate() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(50, 16, 35);
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(new EuclideanDistance());
+        search.setLeafSize(4);
+        search.setInstances(data);
+
+        Instances more = SeriesTestUtils.randomWalks(20, 16, 36);
+        for (int i = 0; i < more.numInstances(); i++) {
+            data.add(more.instance(i));
+            search.update(data.lastInstance());
+        }
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance nearest = search.nearestNeighbour(data.instance(i));
+            assertEquals(data.instance(i).toString(), nearest.toString());
+            assertEquals(0, search.getDistances()[0], 0);
+        }
+        assertSameAsLinear(search, data, new EuclideanDistance(), SeriesTestUtils.randomWalks(5, 16, 37), 3);
+    }
+
+    /**
+     * Tests that update() inserts the new instances in the tree, splitting
+     * leaves, while the distances do not depend on the instances, and that
+     * the tree is built again once it has doubled in size.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testInsert() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(40, 16, 40);
+        EuclideanDistance euclidean = new EuclideanDistance();
+        euclidean.setDontNormalize(true);
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(euclidean);
+        search.setLeafSize(2);
+        search.setInstances(data);
+        VPTreeSearch.Node root = search.m_Root;
+
+        Instances more = SeriesTestUtils.randomWalks(40, 16, 41);
+        for (int i = 0; i < more.numInstances(); i++) {
+            data.add(more.instance(i));
+            search.update(data.lastInstance());
+            assertSame(root, search.m_Root);
+            assertEquals(40, search.m_NumBuilt);
+            assertEquals(41 + i, search.m_NumIndexed);
+        }
+        EuclideanDistance reference = new EuclideanDistance();
+        reference.setDontNormalize(true);
+        assertSameAsLinear(search, data, reference, SeriesTestUtils.randomWalks(5, 16, 42), 4);
+        for (int i = 0; i < data.numInstances(); i++) {
+            assertEquals(data.instance(i).toString(), search.nearestNeighbour(data.instance(i)).toString());
+        }
+
+        data.add(SeriesTestUtils.randomWalks(1, 16, 43).instance(0));
+        search.update(data.lastInstance());
+        assertNull(search.m_Root);
+        search.nearestNeighbour(data.lastInstance());
+        assertEquals(81, search.m_NumBuilt);
+    }
+
+    /**
+     * Tests that an instance outside the normalization ranges makes the tree
+     * be built again, and one inside them is inserted.
+     *
+     * @throws Exception if a search fails
+     */
+    public void testNormalizationRanges() throws Exception {
+        Instances data = SeriesTestUtils.randomWalks(30, 16, 44);
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(new EuclideanDistance());
+        search.setInstances(data);
+
+        data.add((Instance) data.instance(3).copy());
+        search.update(data.lastInstance());
+        assertNotNull(search.m_Root);
+        assertEquals(31, search.m_NumIndexed);
+
+        Instance outside = (Instance) data.instance(3).copy();
+        outside.setValue(0, 1000);
+        data.add(outside);
+        search.update(data.lastInstance());
+        assertNull(search.m_Root);
+        assertSameAsLinear(search, data, new EuclideanDistance(), SeriesTestUtils.randomWalks(5, 16, 45), 3);
+    }
+
+    /**
+     * Tests that a deserialized search keeps its tree and searches it.
+     *
+     * @throws Exception if the search cannot be serialized
+     */
+    public void testSerialization() throws Exception {
+        Instances train = SeriesTestUtils.randomWalks(100, 16, 38);
+        VPTreeSearch search = new VPTreeSearch();
+        search.setDistanceFunction(new EuclideanDistance());
+        search.setInstances(train);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(search);
+        out.close();
+        VPTreeSearch copy = (VPTreeSearch) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertNotNull(copy.m_Root);
+        assertSameAsLinear(copy, train, new EuclideanDistance(), SeriesTestUtils.randomWalks(5, 16, 39), 3);
+    }
+
+    /**
+     * Returns a test suite.
+     *
+     * @return the test suite
+     */
+    public static Test suite() {
+        return new TestSuite(VPTreeSearchTest.class);
+    }
+
+    /**
+     * Runs the test from the commandline.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}